@@ -36,6 +36,7 @@ import com.houdah.foundation.formatters.KeyFormatterFormatter;
 import com.houdah.ruleengine.RuleContext;
 import com.houdah.ruleengine.RuleModel;
 import com.houdah.ruleengine.RuleModelUtilities;
+import com.houdah.ruleengine.SharedRuleContext;
 
 import com.webobjects.appserver.WOApplication;
 import com.webobjects.foundation.NSArray;
@@ -64,7 +65,7 @@ public abstract class Application extends com.houdah.web.control.application.App
 	protected RuleContext			ruleContext;
 	
 	
-	protected RuleContext			formatterRuleContext;
+	protected SharedRuleContext		formatterRuleContext;
 	
 	
 	protected NSMutableDictionary	formattersForDescription;
@@ -83,7 +84,7 @@ public abstract class Application extends com.houdah.web.control.application.App
 		
 		this.ruleModel = RuleModelUtilities.loadFromBundles("agile", null, null, includeFiles);
 		this.ruleContext = createRuleContext();
-		this.formatterRuleContext = createNestedRuleContext();
+		this.formatterRuleContext = createSharedRuleContext();
 		this.formattersForDescription = new NSMutableDictionary();
 	}
 	
@@ -141,9 +142,14 @@ public abstract class Application extends com.houdah.web.control.application.App
 	}
 	
 	
-	protected RuleContext createNestedRuleContext()
+	/**
+	 * Creates the context used for looking up formatters. It may be queried
+	 * by concurrent requests. The application rule context must thus not be
+	 * modified once the application is constructed.
+	 */
+	protected SharedRuleContext createSharedRuleContext()
 	{
-		RuleContext newRuleContext = new RuleContext(ruleContext());
+		SharedRuleContext newRuleContext = new SharedRuleContext(ruleContext());
 		
 		return newRuleContext;
 	}
@@ -151,21 +157,26 @@ public abstract class Application extends com.houdah.web.control.application.App
 	
 	protected Format formatterForEntityAndTask(String entityName, String task)
 	{
-		RuleContext localContext = this.formatterRuleContext;
+		SharedRuleContext localContext = this.formatterRuleContext;
+		NSMutableDictionary bindings = new NSMutableDictionary(2);
 		
-		synchronized (localContext) {
-			localContext.takeValueForKey(entityName, "entityName");
-			localContext.takeValueForKey(task, "task");
-			
-			NSArray formatter = (NSArray) localContext.valueForKey("formatter");
+		if (entityName != null) {
+			bindings.setObjectForKey(entityName, "entityName");
+		}
+		
+		if (task != null) {
+			bindings.setObjectForKey(task, "task");
+		}
+		
+		NSArray formatter = (NSArray) localContext.valueForKeyWithBindings("formatter", bindings);
+		
+		if (formatter != null) {
+			return formatterForDescription(formatter);
+		} else {
+			String formatterName = (String) localContext.valueForKeyWithBindings("formatterName",
+					bindings);
 			
-			if (formatter != null) {
-				return formatterForDescription(formatter);
-			} else {
-				String formatterName = (String) localContext.valueForKey("formatterName");
-				
-				return FormatterFactory.sharedInstance().lookup(formatterName);
-			}
+			return FormatterFactory.sharedInstance().lookup(formatterName);
 		}
 	}
 	
@@ -188,7 +199,11 @@ public abstract class Application extends com.houdah.web.control.application.App
 	
 	private Format formatterForDescription(NSArray description)
 	{
-		Format formatter = (Format) this.formattersForDescription.objectForKey(description);
+		Format formatter;
+		
+		synchronized (this.formattersForDescription) {
+			formatter = (Format) this.formattersForDescription.objectForKey(description);
+		}
 		
 		if (formatter == null) {
 			int dCount = description.count();
@@ -212,7 +227,16 @@ public abstract class Application extends com.houdah.web.control.application.App
 			
 			formatter = new KeyFormatterFormatter(keyFormatters);
 			
-			this.formattersForDescription.setObjectForKey(formatter, description);
+			synchronized (this.formattersForDescription) {
+				Format sharedFormatter = (Format) this.formattersForDescription
+						.objectForKey(description);
+				
+				if (sharedFormatter != null) {
+					formatter = sharedFormatter;
+				} else {
+					this.formattersForDescription.setObjectForKey(formatter, description);
+				}
+			}
 		}
 		
 		return formatter;
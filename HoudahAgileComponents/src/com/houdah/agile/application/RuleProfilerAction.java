@@ -0,0 +1,98 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.agile.application;
+
+import com.houdah.ruleengine.RuleProfiler;
+
+import com.webobjects.appserver.WOActionResults;
+import com.webobjects.appserver.WORequest;
+import com.webobjects.appserver.WOResponse;
+
+/**
+ * Exports the statistics of the RuleProfiler.<br/>
+ * 
+ * .../wa/RuleProfilerAction/report?sort=fireTime returns the report as tab
+ * separated text, sorted on the given column. .../wa/RuleProfilerAction/reset
+ * clears the statistics. Both answer 404 unless profiling is enabled.
+ */
+public class RuleProfilerAction extends com.houdah.web.control.application.DirectAction
+{
+	// Public class constants
+	
+	/**
+	 * A query dictionary key
+	 */
+	public static final String	SORT_KEY	= "sort";
+	
+	
+	
+	
+	// Constructor
+	
+	public RuleProfilerAction(WORequest request)
+	{
+		super(request);
+	}
+	
+	
+	
+	// Action methods
+	
+	public WOActionResults reportAction()
+	{
+		RuleProfiler profiler = RuleProfiler.sharedInstance();
+		WOResponse response = new WOResponse();
+		
+		if (profiler != null) {
+			String sortKey = (String) request().formValueForKey(SORT_KEY);
+			
+			response.setHeader("text/plain; charset=UTF-8", "Content-Type");
+			response.appendContentString(profiler.report(sortKey));
+		} else {
+			response.setStatus(404);
+		}
+		
+		return response;
+	}
+	
+	
+	public WOActionResults resetAction()
+	{
+		RuleProfiler profiler = RuleProfiler.sharedInstance();
+		WOResponse response = new WOResponse();
+		
+		if (profiler != null) {
+			profiler.reset();
+		} else {
+			response.setStatus(404);
+		}
+		
+		return response;
+	}
+}
@@ -34,10 +34,22 @@ import com.houdah.eovalidation.control.ValidatingEditingContext;
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOObjectStore;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSLog;
 import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 
 public class AuditingEditingContext extends ValidatingEditingContext
 {
+	// Public class constants
+	
+	/**
+	 * System property enabling asynchronous history for all editing contexts.
+	 */
+	public static final String	ASYNCHRONOUS_HISTORY_PROPERTY	= "HoudahAuditTrail.asynchronousHistory";
+	
+	
+	
 	// Private class constants
 	
 	private static final long	serialVersionUID	= 5328201534976033544L;
@@ -49,6 +61,23 @@ public class AuditingEditingContext extends ValidatingEditingContext
 	private AuditUser			auditUser;
 	
 	
+	private boolean				asynchronousHistoryEnabled;
+	
+	
+	/**
+	 * Historic changes captured for the changes not saved yet.
+	 */
+	private NSMutableArray		pendingHistoricChanges;
+	
+	
+	/**
+	 * Indexes of the historic objects inserted but not saved yet, by history
+	 * entity and inverse relationship. Only kept while the AuditingEditor
+	 * commits the audit trail.
+	 */
+	private NSMutableDictionary	insertedHistoricObjectIndexes;
+	
+	
 	
 	
 	// Constructor
@@ -94,6 +123,92 @@ public class AuditingEditingContext extends ValidatingEditingContext
 	
 	
 	
+	public boolean isAsynchronousHistoryEnabled()
+	{
+		return this.asynchronousHistoryEnabled;
+	}
+	
+	
+	/**
+	 * Enables writing historic records in the background.<br/>
+	 * 
+	 * TraceableRecords then capture their former values into HistoricChanges
+	 * instead of inserting historic records into this editing context. Once
+	 * the changes are saved to the database, the captured values are handed
+	 * to the shared HistoryWriter. Nested editing contexts hand them to their
+	 * parent instead.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the spill directory of the HistoryWriter is not set
+	 * @see HistoryWriter
+	 */
+	public void setAsynchronousHistoryEnabled(boolean asynchronousHistoryEnabled)
+	{
+		if (asynchronousHistoryEnabled) {
+			HistoryWriter.sharedSpillDirectory();
+		}
+		
+		this.asynchronousHistoryEnabled = asynchronousHistoryEnabled;
+	}
+	
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.webobjects.eocontrol.EOEditingContext#saveChanges()
+	 */
+	public void saveChanges()
+	{
+		super.saveChanges();
+		
+		NSArray historicChanges = takePendingHistoricChanges();
+		int hCount = historicChanges.count();
+		
+		if (hCount > 0) {
+			EOObjectStore parentStore = parentObjectStore();
+			
+			if (parentStore instanceof AuditingEditingContext) {
+				AuditingEditingContext parentContext = (AuditingEditingContext) parentStore;
+				
+				for (int h = 0; h < hCount; h++) {
+					parentContext.addPendingHistoricChange((HistoricChange) historicChanges
+							.objectAtIndex(h));
+				}
+			} else {
+				HistoryWriter writer = HistoryWriter.sharedInstance();
+				
+				// The changes are committed: failing the save would be wrong
+				for (int h = 0; h < hCount; h++) {
+					HistoricChange historicChange = (HistoricChange) historicChanges
+							.objectAtIndex(h);
+					
+					try {
+						writer.enqueue(historicChange);
+					} catch (RuntimeException e) {
+						NSLog.err.appendln("Lost " + historicChange + ": " + e);
+					}
+				}
+			}
+		}
+	}
+	
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.webobjects.eocontrol.EOEditingContext#revert()
+	 */
+	public void revert()
+	{
+		takePendingHistoricChanges();
+		
+		super.revert();
+	}
+	
+	
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -150,8 +265,107 @@ public class AuditingEditingContext extends ValidatingEditingContext
 	
 	// Protected instance methods
 	
+	/**
+	 * Called by TraceableRecord to record a historic change to be written
+	 * once saved.
+	 */
+	protected synchronized void addPendingHistoricChange(HistoricChange historicChange)
+	{
+		if (this.pendingHistoricChanges == null) {
+			this.pendingHistoricChanges = new NSMutableArray();
+		}
+		
+		this.pendingHistoricChanges.addObject(historicChange);
+	}
+	
+	
+	protected synchronized NSArray takePendingHistoricChanges()
+	{
+		NSArray historicChanges = this.pendingHistoricChanges;
+		
+		this.pendingHistoricChanges = null;
+		
+		return (historicChanges != null) ? historicChanges : NSArray.EmptyArray;
+	}
+	
+	
+	/**
+	 * Called by the AuditingEditor before committing the audit trail of the
+	 * objects about to be saved.
+	 */
+	protected void willCommitAuditTrail()
+	{
+		this.insertedHistoricObjectIndexes = new NSMutableDictionary();
+	}
+	
+	
+	/**
+	 * Called by the AuditingEditor once the audit trail is committed.
+	 */
+	protected void didCommitAuditTrail()
+	{
+		this.insertedHistoricObjectIndexes = null;
+	}
+	
+	
+	/**
+	 * Indexes the historic objects inserted but not saved yet by the object
+	 * they belong to. The inserted objects are scanned once per entity and
+	 * relationship while the audit trail is committed, rather than once per
+	 * object saved.
+	 * 
+	 * @param historicEntityName
+	 *            the name of the history entity
+	 * @param inverseForRelationshipName
+	 *            the relationship from the historic objects to their owner
+	 * @return the most recent inserted historic object by owner, null when
+	 *         the audit trail is not being committed
+	 */
+	protected NSMutableDictionary insertedHistoricObjects(String historicEntityName,
+			String inverseForRelationshipName)
+	{
+		if (this.insertedHistoricObjectIndexes == null) {
+			return null;
+		}
+		
+		String indexKey = historicEntityName + "." + inverseForRelationshipName;
+		NSMutableDictionary index = (NSMutableDictionary) this.insertedHistoricObjectIndexes
+				.objectForKey(indexKey);
+		
+		if (index == null) {
+			NSArray insertedObjects = insertedObjects();
+			int iCount = insertedObjects.count();
+			
+			index = new NSMutableDictionary();
+			
+			for (int i = 0; i < iCount; i++) {
+				EOEnterpriseObject object = (EOEnterpriseObject) insertedObjects.objectAtIndex(i);
+				
+				if (historicEntityName.equals(object.entityName())) {
+					Object owner = object.valueForKey(inverseForRelationshipName);
+					
+					if (owner != null) {
+						TraceableRecord historicObject = TraceableRecord.laterHistoricObject(
+								(TraceableRecord) index.objectForKey(owner),
+								(TraceableRecord) object);
+						
+						index.setObjectForKey(historicObject, owner);
+					}
+				}
+			}
+			
+			this.insertedHistoricObjectIndexes.setObjectForKey(index, indexKey);
+		}
+		
+		return index;
+	}
+	
+	
 	protected void initAuditingEditingContext()
 	{
+		setAsynchronousHistoryEnabled(Boolean.getBoolean(ASYNCHRONOUS_HISTORY_PROPERTY));
+		
+
 		/*
 		 * // Prevent multiple calls to audit trail mechanisms // by not
 		 * activating if nested in another AuditingEditingContext boolean
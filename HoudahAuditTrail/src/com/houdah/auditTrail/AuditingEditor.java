@@ -42,13 +42,48 @@ public class AuditingEditor
 	}
 	
 	
+	/**
+	 * Commits the audit trail of the objects about to be saved.<br/>
+	 * 
+	 * Only updated and inserted objects are considered, so that the cost of a
+	 * save depends on the size of the change rather than on the number of
+	 * objects registered with the editing context. Both arrays are taken
+	 * before any historic object gets inserted. Historic objects inserted but
+	 * not saved yet are indexed once for the whole pass.
+	 */
 	public void editingContextWillSaveChanges(EOEditingContext context)
 	{
-		NSArray allObjects = context.registeredObjects();
-		int count = allObjects.count();
+		context.processRecentChanges();
+		
+		NSArray updatedObjects = context.updatedObjects();
+		NSArray insertedObjects = context.insertedObjects();
+		AuditingEditingContext auditingContext = (context instanceof AuditingEditingContext) ? (AuditingEditingContext) context
+				: null;
+		
+		if (auditingContext != null) {
+			auditingContext.willCommitAuditTrail();
+		}
+		
+		try {
+			auditObjects(updatedObjects);
+			auditObjects(insertedObjects);
+		} finally {
+			if (auditingContext != null) {
+				auditingContext.didCommitAuditTrail();
+			}
+		}
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected void auditObjects(NSArray objects)
+	{
+		int count = objects.count();
 		
 		for (int i = 0; i < count; i++) {
-			EOEnterpriseObject object = (EOEnterpriseObject) allObjects.objectAtIndex(i);
+			EOEnterpriseObject object = (EOEnterpriseObject) objects.objectAtIndex(i);
 			
 			if (object instanceof ChangeableRecord) {
 				ChangeableRecord changeableRecord = (ChangeableRecord) object;
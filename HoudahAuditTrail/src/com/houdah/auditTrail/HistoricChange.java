@@ -0,0 +1,183 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import java.io.Serializable;
+import java.util.Enumeration;
+
+import com.houdah.eocontrol.utilities.ControlUtilities;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.foundation.NSDictionary;
+
+/**
+ * Values of a historic record captured when its source object was saved.<br/>
+ * 
+ * Used by the asynchronous history mode of AuditingEditingContext. Instead of
+ * objects, to-one relationships are held as the global IDs of their
+ * destinations, so that captured changes may be handed to another thread or
+ * written to disk.
+ * 
+ * @see AuditingEditingContext#setAsynchronousHistoryEnabled(boolean)
+ * @see HistoryWriter
+ */
+public class HistoricChange implements Serializable
+{
+	// Private class constants
+	
+	private static final long	serialVersionUID	= 4170254312894630711L;
+	
+	
+	
+	// Private instance variables
+	
+	private String				historicEntityName;
+	
+	
+	private EOGlobalID			sourceGlobalID;
+	
+	
+	private String				inverseRelationshipName;
+	
+	
+	private NSDictionary		values;
+	
+	
+	private String				comment;
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param historicEntityName
+	 *            the entity of the historic record
+	 * @param sourceGlobalID
+	 *            the global ID of the object the history is kept for
+	 * @param inverseRelationshipName
+	 *            the relationship from the historic record to the source
+	 *            object, may be null
+	 * @param values
+	 *            the values of the historic record. Global IDs stand for
+	 *            to-one destinations
+	 * @param comment
+	 *            the comment of the historic record, may be null
+	 */
+	public HistoricChange(String historicEntityName, EOGlobalID sourceGlobalID,
+			String inverseRelationshipName, NSDictionary values, String comment)
+	{
+		this.historicEntityName = historicEntityName;
+		this.sourceGlobalID = sourceGlobalID;
+		this.inverseRelationshipName = inverseRelationshipName;
+		this.values = values;
+		this.comment = comment;
+	}
+	
+	
+	
+	// Public accessors
+	
+	public String historicEntityName()
+	{
+		return this.historicEntityName;
+	}
+	
+	
+	public EOGlobalID sourceGlobalID()
+	{
+		return this.sourceGlobalID;
+	}
+	
+	
+	public String inverseRelationshipName()
+	{
+		return this.inverseRelationshipName;
+	}
+	
+	
+	public NSDictionary values()
+	{
+		return this.values;
+	}
+	
+	
+	public String comment()
+	{
+		return this.comment;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * Creates the historic record in an editing context.
+	 * 
+	 * @param editingContext
+	 *            the editing context to insert the record into
+	 * @return the new historic record
+	 */
+	public TraceableRecord insertHistoricObject(EOEditingContext editingContext)
+	{
+		TraceableRecord historicObject = (TraceableRecord) ControlUtilities
+				.createAndInsertInstance(editingContext, this.historicEntityName);
+		Enumeration keyEnumeration = this.values.keyEnumerator();
+		
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			Object value = this.values.objectForKey(key);
+			
+			if (value instanceof EOGlobalID) {
+				value = editingContext.faultForGlobalID((EOGlobalID) value, editingContext);
+			}
+			
+			historicObject.takeStoredValueForKey(value, key);
+		}
+		
+		historicObject.setComment(this.comment);
+		
+		if (this.inverseRelationshipName != null) {
+			historicObject.takeValueForKey(editingContext.faultForGlobalID(this.sourceGlobalID,
+					editingContext), this.inverseRelationshipName);
+		}
+		
+		return historicObject;
+	}
+	
+	
+	public String toString()
+	{
+		return "HistoricChange {historicEntityName = " + this.historicEntityName
+				+ "; sourceGlobalID = " + this.sourceGlobalID + "}";
+	}
+}
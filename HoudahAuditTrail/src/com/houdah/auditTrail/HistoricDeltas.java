@@ -0,0 +1,163 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Enumeration;
+
+import com.houdah.foundation.ForwardException;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Encoding of the changed values stored by compact historic records.<br/>
+ * 
+ * A delta is a serialized dictionary of property values. Enterprise objects
+ * are stored as their permanent global IDs, null values as
+ * NSKeyValueCoding.NullValue.
+ * 
+ * @see TraceableRecord#historicDeltaKey()
+ */
+public class HistoricDeltas
+{
+	// Constructor
+	
+	private HistoricDeltas()
+	{
+		throw new IllegalStateException("Do not instantiate this utility class");
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Encodes changed values.
+	 * 
+	 * @param values
+	 *            the values by property key, NullValue standing in for null
+	 * @param editingContext
+	 *            the editing context of the enterprise objects among the
+	 *            values
+	 * @return the serialized delta
+	 * @throws IllegalArgumentException
+	 *             if an enterprise object among the values has no permanent
+	 *             global ID, as it could not be restored from the delta
+	 */
+	public static NSData deltaData(NSDictionary values, EOEditingContext editingContext)
+	{
+		NSMutableDictionary delta = new NSMutableDictionary(values.count());
+		Enumeration keyEnumeration = values.keyEnumerator();
+		
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			Object value = values.objectForKey(key);
+			
+			if (value instanceof EOEnterpriseObject) {
+				EOGlobalID globalID = editingContext.globalIDForObject((EOEnterpriseObject) value);
+				
+				if ((globalID == null) || globalID.isTemporary()) {
+					throw new IllegalArgumentException("No permanent global ID for the " + key
+							+ " value " + value);
+				}
+				
+				value = globalID;
+			}
+			
+			delta.setObjectForKey(value, key);
+		}
+		
+		try {
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+			ObjectOutputStream stream = new ObjectOutputStream(byteStream);
+			
+			stream.writeObject(delta.immutableClone());
+			stream.close();
+			
+			return new NSData(byteStream.toByteArray());
+		} catch (IOException e) {
+			throw new ForwardException(e);
+		}
+	}
+	
+	
+	/**
+	 * Decodes changed values.
+	 * 
+	 * @param data
+	 *            a delta as returned by deltaData()
+	 * @param editingContext
+	 *            the editing context to get enterprise objects from
+	 * @return the values by property key, NullValue standing in for null
+	 */
+	public static NSDictionary deltaValues(NSData data, EOEditingContext editingContext)
+	{
+		NSDictionary delta;
+		
+		try {
+			ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(data
+					.bytes()));
+			
+			try {
+				delta = (NSDictionary) stream.readObject();
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			throw new ForwardException(e);
+		} catch (ClassNotFoundException e) {
+			throw new ForwardException(e);
+		}
+		
+		NSMutableDictionary values = new NSMutableDictionary(delta.count());
+		Enumeration keyEnumeration = delta.keyEnumerator();
+		
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			Object value = delta.objectForKey(key);
+			
+			if (value instanceof EOGlobalID) {
+				value = editingContext.faultForGlobalID((EOGlobalID) value, editingContext);
+			}
+			
+			values.setObjectForKey(value, key);
+		}
+		
+		return values;
+	}
+}
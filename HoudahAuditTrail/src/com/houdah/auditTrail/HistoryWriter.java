@@ -0,0 +1,684 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.houdah.eovalidation.control.ValidatingEditingContext;
+import com.houdah.foundation.ForwardException;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSLog;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Background writer of the historic records captured by editing contexts in
+ * asynchronous history mode.<br/>
+ * 
+ * Captured changes are queued in a bounded queue. A worker thread takes them
+ * off in batches and saves each batch through its own editing context. When
+ * the queue is full, or when a batch fails to save, changes are spilled to
+ * files in the spill directory. The worker retries spilled changes whenever
+ * it is idle. When a batch of spilled changes fails, its changes are retried
+ * one by one. A spilled change failing MAXIMUM_ATTEMPTS times while others
+ * are saved is renamed to a FAILED_EXT file and left for manual recovery.<br/>
+ * 
+ * On shutdown, the queue is flushed. Whatever could not be written in time,
+ * including the batch being saved, is spilled to disk. A batch whose save
+ * completes after being spilled is written a second time at the next start.<br/>
+ * 
+ * Spilled files are read back at the next start, so no audit row is lost as
+ * long as the spill directory survives. The spill directory must be set
+ * through SPILL_DIRECTORY_PROPERTY. It should not be a temporary directory
+ * that is cleared on reboot. Nor should it be shared by processes running
+ * at the same time: each would replay the changes spilled by the others.
+ * The spill files of each writer are named after a token of its own, so
+ * that a file is never replaced by one spilled by another writer.
+ */
+public class HistoryWriter
+{
+	// Public class constants
+	
+	/**
+	 * System property setting the capacity of the queue. Defaults to 1024.
+	 */
+	public static final String	QUEUE_CAPACITY_PROPERTY		= "HoudahAuditTrail.historyQueueCapacity";
+	
+	
+	/**
+	 * System property setting the number of historic records saved at once.
+	 * Defaults to 100.
+	 */
+	public static final String	BATCH_SIZE_PROPERTY			= "HoudahAuditTrail.historyBatchSize";
+	
+	
+	/**
+	 * System property naming the spill directory. Required for asynchronous
+	 * history.
+	 */
+	public static final String	SPILL_DIRECTORY_PROPERTY	= "HoudahAuditTrail.historySpillDirectory";
+	
+	
+	/**
+	 * System property setting how many milliseconds shutdown waits for the
+	 * queue to be written. Defaults to 30 seconds.
+	 */
+	public static final String	SHUTDOWN_TIMEOUT_PROPERTY	= "HoudahAuditTrail.historyShutdownTimeout";
+	
+	
+	/**
+	 * Extension of the spill files.
+	 */
+	public static final String	SPILL_EXT					= ".history";
+	
+	
+	/**
+	 * Extension given to spilled changes that repeatedly failed to save.
+	 */
+	public static final String	FAILED_EXT					= ".failed";
+	
+	
+	
+	// Protected class constants
+	
+	/**
+	 * Milliseconds the worker waits for changes before looking for spilled
+	 * ones.
+	 */
+	protected static final long	IDLE_INTERVAL				= 1000;
+	
+	
+	/**
+	 * Milliseconds the worker waits after a failed save before retrying
+	 * spilled changes.
+	 */
+	protected static final long	RETRY_INTERVAL				= 60000;
+	
+	
+	/**
+	 * Number of failed attempts after which a spilled change is set aside.
+	 * Only attempts failing while other changes could be saved count.
+	 */
+	protected static final int	MAXIMUM_ATTEMPTS			= 5;
+	
+	
+	
+	// Private class variables
+	
+	private static HistoryWriter	sharedInstance;
+	
+	
+	
+	// Private instance variables
+	
+	private BlockingQueue		queue;
+	
+	
+	private int					batchSize;
+	
+	
+	private File				spillDirectory;
+	
+	
+	private Thread				worker;
+	
+	
+	private volatile boolean	isStopping;
+	
+	
+	/**
+	 * Time before which spilled changes are not retried.
+	 */
+	private long				retryTime;
+	
+	
+	private long				spillCount;
+	
+	
+	/**
+	 * Part of the spill file names unique to this writer.
+	 */
+	private String				spillToken	= UUID.randomUUID().toString();
+	
+	
+	/**
+	 * The batch the worker is saving. Guarded by this writer.
+	 */
+	private NSArray				inFlightChanges;
+	
+	
+	/**
+	 * Files the in-flight batch was spilled to on shutdown. Guarded by this
+	 * writer.
+	 */
+	private NSArray				inFlightSpillFiles;
+	
+	
+	/**
+	 * Failed attempts by spill file name. Only used by the worker.
+	 */
+	private HashMap				attemptsByFileName	= new HashMap();
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param capacity
+	 *            the maximum number of queued changes
+	 * @param batchSize
+	 *            the maximum number of historic records saved at once
+	 * @param spillDirectory
+	 *            the directory to spill changes to
+	 */
+	public HistoryWriter(int capacity, int batchSize, File spillDirectory)
+	{
+		this.queue = new ArrayBlockingQueue(capacity);
+		this.batchSize = batchSize;
+		this.spillDirectory = spillDirectory;
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * The writer used by all editing contexts. Started on first use, flushed
+	 * when the virtual machine shuts down.
+	 */
+	public static synchronized HistoryWriter sharedInstance()
+	{
+		if (HistoryWriter.sharedInstance == null) {
+			final HistoryWriter writer = new HistoryWriter(Integer.getInteger(
+					QUEUE_CAPACITY_PROPERTY, 1024).intValue(), Integer.getInteger(
+					BATCH_SIZE_PROPERTY, 100).intValue(), HistoryWriter.sharedSpillDirectory());
+			final long shutdownTimeout = Long.getLong(SHUTDOWN_TIMEOUT_PROPERTY, 30000)
+					.longValue();
+			
+			writer.start();
+			
+			Runtime.getRuntime().addShutdownHook(new Thread("HistoryWriter shutdown") {
+				public void run()
+				{
+					writer.shutdown(shutdownTimeout);
+				}
+			});
+			
+			HistoryWriter.sharedInstance = writer;
+		}
+		
+		return HistoryWriter.sharedInstance;
+	}
+	
+	
+	
+	/**
+	 * The spill directory of the shared writer.
+	 * 
+	 * @throws IllegalStateException
+	 *             if SPILL_DIRECTORY_PROPERTY is not set
+	 */
+	public static File sharedSpillDirectory()
+	{
+		String path = System.getProperty(SPILL_DIRECTORY_PROPERTY);
+		
+		if ((path == null) || (path.length() == 0)) {
+			throw new IllegalStateException("Asynchronous history requires the "
+					+ SPILL_DIRECTORY_PROPERTY + " property");
+		}
+		
+		return new File(path);
+	}
+	
+	
+	
+	// Public instance methods
+	
+	public synchronized void start()
+	{
+		if (this.worker == null) {
+			this.worker = new Thread("HistoryWriter") {
+				public void run()
+				{
+					HistoryWriter.this.run();
+				}
+			};
+			
+			this.worker.setDaemon(true);
+			this.worker.start();
+		}
+	}
+	
+	
+	/**
+	 * Hands over a change to be written. Spills it to disk if the queue is
+	 * full or the writer is shutting down.
+	 * 
+	 * @throws ForwardException
+	 *             if the change could not be spilled to disk
+	 */
+	public void enqueue(HistoricChange change)
+	{
+		if (this.isStopping || !this.queue.offer(change)) {
+			spill(change);
+		}
+	}
+	
+	
+	/**
+	 * Writes the queued changes and stops the worker. Changes still queued
+	 * or being saved when the timeout expires are spilled to disk.
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait for the worker
+	 */
+	public void shutdown(long timeout)
+	{
+		this.isStopping = true;
+		
+		Thread worker;
+		
+		synchronized (this) {
+			worker = this.worker;
+		}
+		
+		if (worker != null) {
+			try {
+				worker.join(timeout);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		synchronized (this) {
+			if (this.inFlightChanges != null) {
+				NSMutableArray files = new NSMutableArray();
+				int cCount = this.inFlightChanges.count();
+				
+				for (int c = 0; c < cCount; c++) {
+					HistoricChange change = (HistoricChange) this.inFlightChanges.objectAtIndex(c);
+					
+					try {
+						files.addObject(spill(change));
+					} catch (RuntimeException e) {
+						NSLog.err.appendln("Lost " + change + ": " + e);
+					}
+				}
+				
+				this.inFlightChanges = null;
+				this.inFlightSpillFiles = files;
+			}
+		}
+		
+		HistoricChange change;
+		
+		while ((change = (HistoricChange) this.queue.poll()) != null) {
+			try {
+				spill(change);
+			} catch (RuntimeException e) {
+				NSLog.err.appendln("Lost " + change + ": " + e);
+			}
+		}
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	/**
+	 * Worker loop. Runs until the writer is stopping and the queue is empty.
+	 */
+	protected void run()
+	{
+		while (true) {
+			HistoricChange change;
+			
+			try {
+				change = (HistoricChange) this.queue.poll(IDLE_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ie) {
+				continue;
+			}
+			
+			try {
+				if (change != null) {
+					ArrayList batch = new ArrayList(this.batchSize);
+					
+					batch.add(change);
+					this.queue.drainTo(batch, this.batchSize - 1);
+					
+					writeQueuedBatch(new NSArray(batch.toArray()));
+				} else if (this.isStopping) {
+					break;
+				} else {
+					writeSpilledChanges();
+				}
+			} catch (RuntimeException e) {
+				NSLog.err.appendln("HistoryWriter: " + e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Saves a batch taken off the queue, spilling it if the save fails. The
+	 * batch is exposed to shutdown() while it is being saved.
+	 */
+	protected void writeQueuedBatch(NSArray changes)
+	{
+		synchronized (this) {
+			this.inFlightChanges = changes;
+		}
+		
+		boolean saved = false;
+		
+		try {
+			saved = writeBatch(changes);
+		} finally {
+			boolean wasSpilled;
+			NSArray spillFiles;
+			
+			synchronized (this) {
+				wasSpilled = (this.inFlightChanges == null);
+				spillFiles = this.inFlightSpillFiles;
+				this.inFlightChanges = null;
+				this.inFlightSpillFiles = null;
+			}
+			
+			if (saved && (spillFiles != null)) {
+				int fCount = spillFiles.count();
+				
+				for (int f = 0; f < fCount; f++) {
+					((File) spillFiles.objectAtIndex(f)).delete();
+				}
+			} else if (!saved && !wasSpilled) {
+				int cCount = changes.count();
+				
+				for (int c = 0; c < cCount; c++) {
+					spill((HistoricChange) changes.objectAtIndex(c));
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Saves historic records for a batch of changes.
+	 * 
+	 * @return true if the records were saved
+	 */
+	protected boolean writeBatch(NSArray changes)
+	{
+		EOEditingContext editingContext = createEditingContext();
+		
+		editingContext.lock();
+		
+		try {
+			int cCount = changes.count();
+			
+			for (int c = 0; c < cCount; c++) {
+				((HistoricChange) changes.objectAtIndex(c)).insertHistoricObject(editingContext);
+			}
+			
+			editingContext.saveChanges();
+			
+			return true;
+		} catch (RuntimeException e) {
+			NSLog.err.appendln("Unable to write " + changes.count() + " historic records: " + e);
+			
+			synchronized (this) {
+				this.retryTime = System.currentTimeMillis() + RETRY_INTERVAL;
+			}
+			
+			return false;
+		} finally {
+			editingContext.unlock();
+			editingContext.dispose();
+		}
+	}
+	
+	
+	/**
+	 * Writes a batch of spilled changes, oldest first. The files are deleted
+	 * once saved. If the batch fails, its changes are retried one by one, so
+	 * that a change which cannot be saved does not hold back the others.
+	 */
+	protected void writeSpilledChanges()
+	{
+		synchronized (this) {
+			if (System.currentTimeMillis() < this.retryTime) {
+				return;
+			}
+		}
+		
+		File[] files = this.spillDirectory.listFiles(new FilenameFilter() {
+			public boolean accept(File directory, String name)
+			{
+				return name.endsWith(SPILL_EXT);
+			}
+		});
+		
+		if ((files == null) || (files.length == 0)) {
+			return;
+		}
+		
+		Arrays.sort(files);
+		
+		int fCount = Math.min(files.length, this.batchSize);
+		NSMutableArray changes = new NSMutableArray(fCount);
+		NSMutableArray readFiles = new NSMutableArray(fCount);
+		
+		for (int f = 0; f < fCount; f++) {
+			try {
+				changes.addObject(readSpilledChange(files[f]));
+				readFiles.addObject(files[f]);
+			} catch (Exception e) {
+				NSLog.err.appendln("Ignoring unreadable spilled history " + files[f] + ": " + e);
+				
+				files[f].renameTo(new File(files[f].getPath() + ".unreadable"));
+			}
+		}
+		
+		int cCount = changes.count();
+		
+		if (cCount == 0) {
+			return;
+		}
+		
+		if (writeBatch(changes)) {
+			for (int c = 0; c < cCount; c++) {
+				File file = (File) readFiles.objectAtIndex(c);
+				
+				file.delete();
+				this.attemptsByFileName.remove(file.getName());
+			}
+		} else if (cCount > 1) {
+			NSMutableArray failedFiles = new NSMutableArray();
+			boolean savedAny = false;
+			
+			for (int c = 0; c < cCount; c++) {
+				File file = (File) readFiles.objectAtIndex(c);
+				
+				if (writeBatch(new NSArray(changes.objectAtIndex(c)))) {
+					file.delete();
+					this.attemptsByFileName.remove(file.getName());
+					
+					savedAny = true;
+				} else {
+					failedFiles.addObject(file);
+				}
+			}
+			
+			// Failures only count if the database could be written to
+			if (savedAny) {
+				int ffCount = failedFiles.count();
+				
+				for (int ff = 0; ff < ffCount; ff++) {
+					recordFailedAttempt((File) failedFiles.objectAtIndex(ff));
+				}
+				
+				synchronized (this) {
+					this.retryTime = 0;
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Counts a failed attempt to save a spilled change. Sets the file aside
+	 * after MAXIMUM_ATTEMPTS attempts.
+	 */
+	protected void recordFailedAttempt(File file)
+	{
+		String fileName = file.getName();
+		Integer attempts = (Integer) this.attemptsByFileName.get(fileName);
+		int attemptCount = (attempts != null) ? attempts.intValue() + 1 : 1;
+		
+		if (attemptCount >= MAXIMUM_ATTEMPTS) {
+			NSLog.err.appendln("Setting aside spilled history " + file + " after "
+					+ attemptCount + " failed attempts");
+			
+			file.renameTo(new File(file.getPath() + FAILED_EXT));
+			this.attemptsByFileName.remove(fileName);
+		} else {
+			this.attemptsByFileName.put(fileName, new Integer(attemptCount));
+		}
+	}
+	
+	
+	/**
+	 * Writes a change to a file of its own in the spill directory. The file is
+	 * synced to disk before this method returns.
+	 * 
+	 * @return the file written
+	 * @throws ForwardException
+	 *             if the file could not be written
+	 */
+	protected File spill(HistoricChange change)
+	{
+		long sequence;
+		
+		synchronized (this) {
+			sequence = this.spillCount++;
+		}
+		
+		String name = HistoryWriter.padded(System.currentTimeMillis(), 13) + "-"
+				+ this.spillToken + "-" + HistoryWriter.padded(sequence, 10);
+		File file = new File(this.spillDirectory, name + SPILL_EXT);
+		File temporaryFile = new File(this.spillDirectory, name + ".tmp");
+		
+		try {
+			this.spillDirectory.mkdirs();
+			
+			FileOutputStream fileStream = new FileOutputStream(temporaryFile);
+			ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(
+					fileStream));
+			
+			try {
+				stream.writeObject(change);
+				stream.flush();
+				fileStream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+			
+			if (!temporaryFile.renameTo(file)) {
+				throw new IOException("Unable to rename " + temporaryFile + " to " + file);
+			}
+			
+			return file;
+		} catch (IOException e) {
+			temporaryFile.delete();
+			
+			throw new ForwardException(e);
+		}
+	}
+	
+	
+	protected HistoricChange readSpilledChange(File file) throws IOException,
+			ClassNotFoundException
+	{
+		ObjectInputStream stream = new ObjectInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		
+		try {
+			return (HistoricChange) stream.readObject();
+		} finally {
+			stream.close();
+		}
+	}
+	
+	
+	/**
+	 * Creates the editing context a batch is saved with. Historic records are
+	 * not audited themselves, so this need not be an AuditingEditingContext.
+	 */
+	protected EOEditingContext createEditingContext()
+	{
+		return new ValidatingEditingContext();
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Formats a number with leading zeros, so that spill file names sort in
+	 * the order they were written.
+	 */
+	protected static String padded(long number, int length)
+	{
+		StringBuffer buffer = new StringBuffer(Long.toString(number));
+		
+		while (buffer.length() < length) {
+			buffer.insert(0, '0');
+		}
+		
+		return buffer.toString();
+	}
+}
@@ -28,14 +28,26 @@
 
 package com.houdah.auditTrail;
 
+import java.util.Enumeration;
+
 import com.houdah.eocontrol.utilities.ControlUtilities;
 
+import com.webobjects.eocontrol.EOAndQualifier;
 import com.webobjects.eocontrol.EOClassDescription;
 import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOFaulting;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.eocontrol.EOSortOrdering;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSSet;
 
 public abstract class TraceableRecord extends ChangeableRecord
@@ -57,6 +69,23 @@ public abstract class TraceableRecord extends ChangeableRecord
 	public static final Integer	ZERO_VERSION		= new Integer(0);
 	
 	
+	/**
+	 * Default number of versions from one full historic record to the next
+	 * when storing compact historic records.
+	 */
+	public static final int		DEFAULT_CHECKPOINT_INTERVAL	= 10;
+	
+	
+	
+	// Protected class constants
+	
+	/**
+	 * Keys copied to compact historic records alongside the delta.
+	 */
+	protected static final NSSet	ALWAYS_HISTORIC_KEYS	= new NSSet(new Object[] { VERSION,
+			AUDIT_DATE, AUDIT_USER });
+	
+	
 	
 	// Private instance variables
 	
@@ -101,7 +130,10 @@ public abstract class TraceableRecord extends ChangeableRecord
 	
 	
 	/**
-	 * Retrieves the immediate ancessor of an historic object.
+	 * Retrieves the immediate ancessor of an historic object.<br/>
+	 * 
+	 * If the relationship to the history array is still a fault, only the
+	 * most recent historic object is fetched, rather than the whole history.
 	 * 
 	 * @return the former version of the object, null if none exists, null if
 	 *         the current object is itself an historic object
@@ -114,6 +146,17 @@ public abstract class TraceableRecord extends ChangeableRecord
 			throw new RuntimeException(getClass().getName()
 					+ ".toHistoricRelationshipName() returned null");
 		} else {
+			Object historicArray = storedValueForKey(toHistoricRelationshipName);
+			
+			if ((historicArray instanceof EOFaulting) && ((EOFaulting) historicArray).isFault()
+					&& (editingContext() != null) && !isNew()) {
+				String inverseForRelationshipName = inverseForHistoricRelationshipName();
+				
+				if (inverseForRelationshipName != null) {
+					return fetchLatestHistoricObject(inverseForRelationshipName);
+				}
+			}
+			
 			NSArray history = (NSArray) valueForKey(toHistoricRelationshipName);
 			int hCount = history.count();
 			
@@ -183,6 +226,169 @@ public abstract class TraceableRecord extends ChangeableRecord
 	
 	
 	
+	/**
+	 * Tells TraceableRecord to store compact historic records.<br/>
+	 * 
+	 * Compact historic records hold the version, audit date, audit user and
+	 * the relationship to this object. The former values of the properties
+	 * changed by the save are serialized into the delta attribute. Every
+	 * historicCheckpointInterval() versions, a full historic record is stored
+	 * instead, with a null delta.<br/>
+	 * 
+	 * This method provides the default implementation returning null, i.e.
+	 * full historic records only.
+	 * 
+	 * @return the name of an NSData attribute of the history entity, null to
+	 *         copy all properties
+	 * @see #valuesForVersion(int)
+	 */
+	public String historicDeltaKey()
+	{
+		return null;
+	}
+	
+	
+	
+	/**
+	 * Number of versions from one full historic record to the next. Only used
+	 * when historicDeltaKey() is set.
+	 * 
+	 * @return DEFAULT_CHECKPOINT_INTERVAL unless overridden
+	 */
+	public int historicCheckpointInterval()
+	{
+		return DEFAULT_CHECKPOINT_INTERVAL;
+	}
+	
+	
+	
+	/**
+	 * Rebuilds the values of a former version of the object from saved
+	 * historic records.<br/>
+	 * 
+	 * With compact historic records, the deltas are replayed backwards from
+	 * the first full historic record following the requested version, or
+	 * from the current values if there is none. Every version in between must
+	 * have its historic record.
+	 * 
+	 * @param version
+	 *            the version to rebuild
+	 * @return the values of the properties the history entity keeps,
+	 *         NullValue standing in for null, null if the version or one of
+	 *         the versions needed to rebuild it is not found
+	 */
+	public NSDictionary valuesForVersion(int version)
+	{
+		String historicEntityName = historicEntityName();
+		String inverseForRelationshipName = inverseForHistoricRelationshipName();
+		
+		if ((historicEntityName == null) || (inverseForRelationshipName == null)) {
+			throw new RuntimeException(getClass().getName() + " has no history relationship");
+		}
+		
+		NSArray propertyKeys = historicPropertyKeys(historicEntityName);
+		int currentVersion = version().intValue();
+		
+		if (version == currentVersion) {
+			return storedValuesForKeys(this, propertyKeys);
+		} else if ((version < 0) || (version > currentVersion) || isNew()) {
+			return null;
+		}
+		
+		EOEditingContext editingContext = editingContext();
+		String deltaKey = historicDeltaKey();
+		EOQualifier ownerQualifier = new EOKeyValueQualifier(inverseForRelationshipName,
+				EOQualifier.QualifierOperatorEqual, this);
+		EOQualifier fromVersionQualifier = new EOKeyValueQualifier(TraceableRecord.VERSION,
+				EOQualifier.QualifierOperatorGreaterThanOrEqualTo, new Integer(version));
+		NSMutableArray qualifiers = new NSMutableArray(new Object[] { ownerQualifier,
+				fromVersionQualifier });
+		NSMutableDictionary values = null;
+		int latestVersion = version;
+		
+		if (deltaKey == null) {
+			qualifiers.replaceObjectAtIndex(new EOKeyValueQualifier(TraceableRecord.VERSION,
+					EOQualifier.QualifierOperatorEqual, new Integer(version)), 1);
+		} else {
+			// Find the full historic record to start from
+			EOQualifier checkpointQualifier = new EOAndQualifier(new NSArray(new Object[] {
+					ownerQualifier,
+					fromVersionQualifier,
+					new EOKeyValueQualifier(deltaKey, EOQualifier.QualifierOperatorEqual,
+							NSKeyValueCoding.NullValue) }));
+			EOFetchSpecification checkpointSpecification = new EOFetchSpecification(
+					historicEntityName, checkpointQualifier, new NSArray(new EOSortOrdering(
+							TraceableRecord.VERSION, EOSortOrdering.CompareAscending)));
+			
+			checkpointSpecification.setFetchLimit(1);
+			
+			NSArray checkpoints = editingContext.objectsWithFetchSpecification(checkpointSpecification);
+			
+			if (checkpoints.count() > 0) {
+				TraceableRecord checkpoint = (TraceableRecord) checkpoints.objectAtIndex(0);
+				
+				if (checkpoint.version().intValue() == version) {
+					return storedValuesForKeys(checkpoint, propertyKeys);
+				}
+				
+				qualifiers.addObject(new EOKeyValueQualifier(TraceableRecord.VERSION,
+						EOQualifier.QualifierOperatorLessThan, checkpoint.version()));
+				values = storedValuesForKeys(checkpoint, propertyKeys).mutableClone();
+				latestVersion = checkpoint.version().intValue() - 1;
+			} else {
+				qualifiers.addObject(new EOKeyValueQualifier(TraceableRecord.VERSION,
+						EOQualifier.QualifierOperatorLessThan, version()));
+				values = storedValuesForKeys(this, propertyKeys).mutableClone();
+				latestVersion = currentVersion - 1;
+			}
+		}
+		
+		EOFetchSpecification historySpecification = new EOFetchSpecification(historicEntityName,
+				new EOAndQualifier(qualifiers), new NSArray(new EOSortOrdering(
+						TraceableRecord.VERSION, EOSortOrdering.CompareDescending)));
+		NSArray history = editingContext.objectsWithFetchSpecification(historySpecification);
+		int hCount = history.count();
+		
+		// One historic record per version, from latestVersion down to version
+		if (hCount != latestVersion - version + 1) {
+			return null;
+		}
+		
+		for (int h = 0; h < hCount; h++) {
+			TraceableRecord historicObject = (TraceableRecord) history.objectAtIndex(h);
+			
+			if (historicObject.version().intValue() != latestVersion - h) {
+				return null;
+			}
+			
+			NSData delta = (deltaKey != null) ? (NSData) historicObject.storedValueForKey(deltaKey)
+					: null;
+			
+			if (delta == null) {
+				values = storedValuesForKeys(historicObject, propertyKeys).mutableClone();
+			} else {
+				values.addEntriesFromDictionary(HistoricDeltas.deltaValues(delta, editingContext));
+				
+				Enumeration keyEnumeration = ALWAYS_HISTORIC_KEYS.objectEnumerator();
+				
+				while (keyEnumeration.hasMoreElements()) {
+					String key = (String) keyEnumeration.nextElement();
+					
+					if (values.objectForKey(key) != null) {
+						Object value = historicObject.storedValueForKey(key);
+						
+						values.setObjectForKey((value != null) ? value : NSKeyValueCoding.NullValue,
+								key);
+					}
+				}
+			}
+		}
+		
+		return values.immutableClone();
+	}
+	
+	
+	
 	/**
 	 * Tells TraceableRecord what Entity to use for history objects.<br/>
 	 * 
@@ -309,32 +515,24 @@ public abstract class TraceableRecord extends ChangeableRecord
 				if (historicEntityName == null) {
 					throw new RuntimeException(getClass().getName()
 							+ ".historicEntityName() returned null");
+				} else if (usesAsynchronousHistory()) {
+					recordHistoricChange(historicEntityName);
 				} else {
 					TraceableRecord latestHistoricObject = latestHistoricObject();
 					
 					if (!((latestHistoricObject != null) && latestHistoricObject.isNew())) {
 						TraceableRecord historicObject = (TraceableRecord) ControlUtilities
 								.createAndInsertInstance(editingContext(), historicEntityName);
-						NSArray historicAttributeKeys = historicObject.attributeKeys();
-						NSArray historiyToOneKeys = historicObject.toOneRelationshipKeys();
-						NSArray historicPropertyKeys = historicAttributeKeys
-								.arrayByAddingObjectsFromArray(historiyToOneKeys);
-						NSArray atributeKeys = attributeKeys();
-						NSArray toOneKeys = toOneRelationshipKeys();
-						NSArray propertyKeys = atributeKeys
-								.arrayByAddingObjectsFromArray(toOneKeys);
-						NSSet propertyKeySet = new NSSet(propertyKeys);
+						NSDictionary historicValues = historicValues(historicEntityName);
+						Enumeration keyEnumeration = historicValues.keyEnumerator();
 						
 						
 						// Copy the properties
-						for (int i = 0; i < historicPropertyKeys.count(); i++) {
-							String key = (String) historicPropertyKeys.objectAtIndex(i);
+						while (keyEnumeration.hasMoreElements()) {
+							String key = (String) keyEnumeration.nextElement();
 							
-							if (propertyKeySet.containsObject(key)) {
-								Object value = this.originalValues.objectForKey(key);
-								
-								historicObject.takeStoredValueForKey(value, key);
-							}
+							historicObject.takeStoredValueForKey(historicValues.objectForKey(key),
+									key);
 						}
 						
 						
@@ -361,6 +559,16 @@ public abstract class TraceableRecord extends ChangeableRecord
 							
 							if (inverseForRelationshipName != null) {
 								historicObject.takeValueForKey(this, inverseForRelationshipName);
+								
+								EOEditingContext editingContext = editingContext();
+								NSMutableDictionary insertedHistoricObjects = (editingContext instanceof AuditingEditingContext) ? ((AuditingEditingContext) editingContext)
+										.insertedHistoricObjects(historicEntityName,
+												inverseForRelationshipName)
+										: null;
+								
+								if (insertedHistoricObjects != null) {
+									insertedHistoricObjects.setObjectForKey(historicObject, this);
+								}
 							}
 							
 							
@@ -390,4 +598,258 @@ public abstract class TraceableRecord extends ChangeableRecord
 			this.originalValues = null;
 		}
 	}
+	
+	
+	
+	/**
+	 * Looks up the most recent historic object without resolving the history
+	 * array. The database is asked for its newest historic row only. Historic
+	 * objects inserted but not saved yet are taken into account, through the
+	 * index the AuditingEditingContext keeps while committing the audit trail.
+	 * 
+	 * @param inverseForRelationshipName
+	 *            the relationship from the historic objects to this object
+	 * @return the most recent historic object, null if none exists
+	 */
+	private TraceableRecord fetchLatestHistoricObject(String inverseForRelationshipName)
+	{
+		EOEditingContext editingContext = editingContext();
+		String historicEntityName = historicEntityName();
+		EOQualifier qualifier = new EOKeyValueQualifier(inverseForRelationshipName,
+				EOQualifier.QualifierOperatorEqual, this);
+		EOSortOrdering versionOrdering = new EOSortOrdering(TraceableRecord.AUDIT_DATE,
+				EOSortOrdering.CompareDescending);
+		EOFetchSpecification fetchSpecification = new EOFetchSpecification(historicEntityName,
+				qualifier, new NSArray(versionOrdering));
+		
+		fetchSpecification.setFetchLimit(1);
+		
+		NSArray fetchedObjects = editingContext.objectsWithFetchSpecification(fetchSpecification);
+		TraceableRecord latestHistoricObject = (fetchedObjects.count() > 0) ? (TraceableRecord) fetchedObjects
+				.objectAtIndex(0)
+				: null;
+		NSMutableDictionary insertedHistoricObjects = (editingContext instanceof AuditingEditingContext) ? ((AuditingEditingContext) editingContext)
+				.insertedHistoricObjects(historicEntityName, inverseForRelationshipName)
+				: null;
+		
+		if (insertedHistoricObjects != null) {
+			return laterHistoricObject(latestHistoricObject,
+					(TraceableRecord) insertedHistoricObjects.objectForKey(this));
+		}
+		
+		NSArray insertedObjects = editingContext.insertedObjects();
+		int iCount = insertedObjects.count();
+		
+		for (int i = 0; i < iCount; i++) {
+			EOEnterpriseObject object = (EOEnterpriseObject) insertedObjects.objectAtIndex(i);
+			
+			if (historicEntityName.equals(object.entityName())
+					&& (object.valueForKey(inverseForRelationshipName) == this)) {
+				latestHistoricObject = laterHistoricObject(latestHistoricObject,
+						(TraceableRecord) object);
+			}
+		}
+		
+		return latestHistoricObject;
+	}
+	
+	
+	
+	/**
+	 * Determines the values of the history object, compacted to a delta
+	 * unless this version is due for a full historic record.
+	 * 
+	 * @param historicEntityName
+	 *            the name of the history entity
+	 * @return the values by property key of the history entity
+	 */
+	private NSDictionary historicValues(String historicEntityName)
+	{
+		NSArray propertyKeys = historicPropertyKeys(historicEntityName);
+		String deltaKey = historicDeltaKey();
+		boolean isCheckpoint = (deltaKey == null)
+				|| (version().intValue() % historicCheckpointInterval() == 0);
+		NSMutableDictionary values = new NSMutableDictionary();
+		NSMutableDictionary delta = new NSMutableDictionary();
+		int pCount = propertyKeys.count();
+		
+		for (int p = 0; p < pCount; p++) {
+			String key = (String) propertyKeys.objectAtIndex(p);
+			Object value = this.originalValues.objectForKey(key);
+			
+			if (value == null) {
+				continue;
+			}
+			
+			if (isCheckpoint || ALWAYS_HISTORIC_KEYS.containsObject(key)) {
+				values.setObjectForKey(value, key);
+			} else {
+				Object currentValue = valueForKey(key);
+				
+				if (currentValue == null) {
+					currentValue = NSKeyValueCoding.NullValue;
+				}
+				
+				if (!value.equals(currentValue)) {
+					delta.setObjectForKey(value, key);
+				}
+			}
+		}
+		
+		if (!isCheckpoint) {
+			values.setObjectForKey(HistoricDeltas.deltaData(delta, editingContext()), deltaKey);
+		}
+		
+		return values;
+	}
+	
+	
+	
+	/**
+	 * The keys of the attributes and to-one relationships shared by this
+	 * object and its history objects, less the delta key.
+	 */
+	private NSArray historicPropertyKeys(String historicEntityName)
+	{
+		EOClassDescription historicClassDescription = EOClassDescription
+				.classDescriptionForEntityName(historicEntityName);
+		NSArray historicPropertyKeys = historicClassDescription.attributeKeys()
+				.arrayByAddingObjectsFromArray(historicClassDescription.toOneRelationshipKeys());
+		NSSet propertyKeySet = new NSSet(attributeKeys().arrayByAddingObjectsFromArray(
+				toOneRelationshipKeys()));
+		NSMutableArray propertyKeys = new NSMutableArray(historicPropertyKeys.count());
+		String deltaKey = historicDeltaKey();
+		int hCount = historicPropertyKeys.count();
+		
+		for (int h = 0; h < hCount; h++) {
+			String key = (String) historicPropertyKeys.objectAtIndex(h);
+			
+			if (propertyKeySet.containsObject(key) && !key.equals(deltaKey)) {
+				propertyKeys.addObject(key);
+			}
+		}
+		
+		return propertyKeys;
+	}
+	
+	
+	
+	private String inverseForHistoricRelationshipName()
+	{
+		String toHistoricRelationshipName = historicRelationshipName();
+		String inverseForRelationshipName = null;
+		
+		if (toHistoricRelationshipName != null) {
+			inverseForRelationshipName = customInverseHistoricRelationshipName();
+			
+			if (inverseForRelationshipName == null) {
+				inverseForRelationshipName = inverseForRelationshipKey(toHistoricRelationshipName);
+			}
+		}
+		
+		return inverseForRelationshipName;
+	}
+	
+	
+	
+	/**
+	 * Picks the more recent of two historic objects. An inserted historic
+	 * object may not have its audit date yet, in which case it is taken as
+	 * the more recent one.
+	 * 
+	 * @return the more recent historic object, null if both are null
+	 */
+	static TraceableRecord laterHistoricObject(TraceableRecord historicObject,
+			TraceableRecord otherHistoricObject)
+	{
+		if (otherHistoricObject == null) {
+			return historicObject;
+		} else if ((historicObject == null)
+				|| (historicObject.auditDate() == null)
+				|| ((otherHistoricObject.auditDate() != null) && (otherHistoricObject.auditDate()
+						.compareTo(historicObject.auditDate()) >= 0))) {
+			return otherHistoricObject;
+		} else {
+			return historicObject;
+		}
+	}
+	
+	
+	
+	private static NSDictionary storedValuesForKeys(EOEnterpriseObject object, NSArray keys)
+	{
+		NSMutableDictionary values = new NSMutableDictionary(keys.count());
+		int kCount = keys.count();
+		
+		for (int k = 0; k < kCount; k++) {
+			String key = (String) keys.objectAtIndex(k);
+			Object value = object.storedValueForKey(key);
+			
+			values.setObjectForKey((value != null) ? value : NSKeyValueCoding.NullValue, key);
+		}
+		
+		return values;
+	}
+	
+	
+	
+	private boolean usesAsynchronousHistory()
+	{
+		EOEditingContext editingContext = editingContext();
+		
+		return ((editingContext instanceof AuditingEditingContext) && ((AuditingEditingContext) editingContext)
+				.isAsynchronousHistoryEnabled());
+	}
+	
+	
+	
+	/**
+	 * Captures the values of the history object into a HistoricChange and
+	 * hands it to the AuditingEditingContext, which passes it on to the
+	 * HistoryWriter once saved.<br/>
+	 * 
+	 * The relationship to the historic data is not updated in memory. It
+	 * reflects the new history object once refetched.
+	 * 
+	 * @param historicEntityName
+	 *            the name of the history entity
+	 */
+	private void recordHistoricChange(String historicEntityName)
+	{
+		EOEditingContext editingContext = editingContext();
+		NSDictionary historicValues = historicValues(historicEntityName);
+		NSMutableDictionary values = new NSMutableDictionary(historicValues.count());
+		Enumeration keyEnumeration = historicValues.keyEnumerator();
+		
+		
+		// Copy the properties, replacing objects by their global IDs
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			Object value = historicValues.objectForKey(key);
+			
+			if (value instanceof EOEnterpriseObject) {
+				EOGlobalID globalID = editingContext.globalIDForObject((EOEnterpriseObject) value);
+				
+				value = ((globalID != null) && !globalID.isTemporary()) ? globalID : null;
+			}
+			
+			if ((value != null) && (value != NSKeyValueCoding.NullValue)) {
+				values.setObjectForKey(value, key);
+			}
+		}
+		
+		HistoricChange historicChange = new HistoricChange(historicEntityName, editingContext
+				.globalIDForObject(this), inverseForHistoricRelationshipName(), values
+				.immutableClone(), this.comment);
+		
+		((AuditingEditingContext) editingContext).addPendingHistoricChange(historicChange);
+		
+		
+		// Hand off the comment
+		this.comment = null;
+		
+		
+		// Update the version number
+		setVersion(new Integer(version().intValue() + 1));
+	}
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAdaptorOperation;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EODatabaseOperation;
+import com.webobjects.foundation.NSArray;
+
+/**
+ * Database context delegate counting the rows written to the database.<br/>
+ * 
+ * Rows of historic entities are counted separately, so that the number of rows
+ * written per business change can be broken down. The counts are shared by
+ * all threads, including the history writer's.
+ */
+public class AdaptorOperationCounter
+{
+	// Private instance variables
+	
+	private AtomicLong	rowCount			= new AtomicLong();
+	
+	
+	private AtomicLong	historicRowCount	= new AtomicLong();
+	
+	
+	
+	
+	// Constructors
+	
+	public AdaptorOperationCounter()
+	{
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * Takes the number of rows inserted, updated or deleted since the last
+	 * call.
+	 */
+	public long takeRowCount()
+	{
+		return this.rowCount.getAndSet(0);
+	}
+	
+	
+	/**
+	 * Takes the number of historic rows inserted, updated or deleted since the
+	 * last call. These are included in the row count.
+	 */
+	public long takeHistoricRowCount()
+	{
+		return this.historicRowCount.getAndSet(0);
+	}
+	
+	
+	
+	// Database context delegate methods
+	
+	public NSArray databaseContextWillPerformAdaptorOperations(EODatabaseContext databaseContext,
+			NSArray adaptorOperations, EOAdaptorChannel adaptorChannel)
+	{
+		int aCount = adaptorOperations.count();
+		
+		for (int a = 0; a < aCount; a++) {
+			EOAdaptorOperation operation = (EOAdaptorOperation) adaptorOperations.objectAtIndex(a);
+			int operator = operation.adaptorOperator();
+			
+			if ((operator == EODatabaseOperation.AdaptorInsertOperator)
+					|| (operator == EODatabaseOperation.AdaptorUpdateOperator)
+					|| (operator == EODatabaseOperation.AdaptorDeleteOperator)) {
+				this.rowCount.incrementAndGet();
+				
+				if (BenchmarkDatabase.isHistoricEntityName(operation.entity().name())) {
+					this.historicRowCount.incrementAndGet();
+				}
+			}
+		}
+		
+		return adaptorOperations;
+	}
+}
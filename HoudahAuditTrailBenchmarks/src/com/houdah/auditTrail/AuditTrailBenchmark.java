@@ -0,0 +1,378 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.houdah.eocontrol.utilities.ControlUtilities;
+import com.houdah.eovalidation.control.ValidatingEditingContext;
+
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOObjectStore;
+import com.webobjects.foundation.NSLog;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Cost of the audit trail when saving changes to Movie, Talent and Review
+ * objects of the embedded benchmark database.<br/>
+ * 
+ * Each invocation makes changesPerSave changes and saves them. A change is an
+ * insert with a probability of insertPercentage percent, an update of a
+ * registered object otherwise. Changes are made:
+ * <ul>
+ * <li>in a ValidatingEditingContext when history is "none"
+ * <li>in an AuditingEditingContext creating historic objects in the same
+ * transaction when history is "synchronous"
+ * <li>in an AuditingEditingContext handing historic changes to the
+ * HistoryWriter when history is "asynchronous"
+ * </ul>
+ * When nested is true, changes are made in a child context which is saved
+ * into the working context, which is then saved to the database.<br/>
+ * 
+ * The working context starts out with registeredObjects saved objects. Inserted
+ * objects stay registered, so their count grows during a trial.<br/>
+ * 
+ * Throughput mode reports saves per millisecond, sample time mode reports the
+ * latency percentiles of a save. The rows written are counted by an
+ * AdaptorOperationCounter. The counts are reported as auxiliary counters in
+ * throughput mode. The row amplification factor, i.e. the number of rows
+ * written per change, is logged to NSLog.out at the end of each trial. As the
+ * auxiliary counters are summed rather than averaged, it is not reported as
+ * one of them. Rows the
+ * HistoryWriter writes after the last measurement are not counted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuditTrailBenchmark
+{
+	// Public class constants
+	
+	public static final String	NONE			= "none";
+	
+	
+	public static final String	SYNCHRONOUS		= "synchronous";
+	
+	
+	public static final String	ASYNCHRONOUS	= "asynchronous";
+	
+	
+	
+	// Protected class constants
+	
+	protected static final long	SEED			= 42;
+	
+	
+	protected static final int	SEED_BATCH_SIZE	= 1000;
+	
+	
+	
+	// Public parameters
+	
+	@Param( { NONE, SYNCHRONOUS, ASYNCHRONOUS })
+	public String						history;
+	
+	
+	@Param( { "20", "80" })
+	public int							insertPercentage;
+	
+	
+	@Param( { "10" })
+	public int							changesPerSave;
+	
+	
+	@Param( { "false", "true" })
+	public boolean						nested;
+	
+	
+	@Param( { "100", "10000" })
+	public int							registeredObjects;
+	
+	
+	
+	// Private instance variables
+	
+	private AdaptorOperationCounter		operationCounter;
+	
+	
+	private ValidatingEditingContext	editingContext;
+	
+	
+	private NSMutableArray[]			registeredObjectsByEntity;
+	
+	
+	private Random						random;
+	
+	
+	private int							counter;
+	
+	
+	private long						changeCount;
+	
+	
+	private long						rowCount;
+	
+	
+	private long						historicRowCount;
+	
+	
+	
+	
+	// Setup
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.operationCounter = BenchmarkDatabase.setUp();
+		this.editingContext = createEditingContext(null);
+		this.editingContext.lock();
+		this.registeredObjectsByEntity = new NSMutableArray[BenchmarkDatabase.ENTITY_NAMES.length];
+		this.random = new Random(SEED);
+		this.counter = 0;
+		
+		for (int e = 0; e < this.registeredObjectsByEntity.length; e++) {
+			this.registeredObjectsByEntity[e] = new NSMutableArray();
+		}
+		
+		// Half movies, a quarter talents and a quarter reviews
+		for (int r = 0; r < this.registeredObjects; r++) {
+			int e = (r % 4 < 2) ? 0 : (r % 4) - 1;
+			
+			this.registeredObjectsByEntity[e].addObject(insert(this.editingContext, e));
+			
+			if ((r + 1) % SEED_BATCH_SIZE == 0) {
+				this.editingContext.saveChanges();
+			}
+		}
+		
+		this.editingContext.saveChanges();
+		
+		this.operationCounter.takeRowCount();
+		this.operationCounter.takeHistoricRowCount();
+		this.changeCount = 0;
+		this.rowCount = 0;
+		this.historicRowCount = 0;
+	}
+	
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.editingContext.unlock();
+		this.editingContext.dispose();
+		
+		if (this.changeCount > 0) {
+			NSLog.out.appendln("Row amplification: "
+					+ ((double) this.rowCount / this.changeCount) + " rows per change, "
+					+ ((double) this.historicRowCount / this.changeCount)
+					+ " historic rows per change");
+		}
+	}
+	
+	
+	
+	// Benchmarks
+	
+	@Benchmark
+	public void saveChanges(RowCounters counters)
+	{
+		ValidatingEditingContext changeContext = (this.nested) ? createEditingContext(
+				this.editingContext) : this.editingContext;
+		
+		if (this.nested) {
+			changeContext.lock();
+		}
+		
+		try {
+			for (int c = 0; c < this.changesPerSave; c++) {
+				int e = this.random.nextInt(BenchmarkDatabase.ENTITY_NAMES.length);
+				
+				if (this.random.nextInt(100) < this.insertPercentage) {
+					insert(changeContext, e);
+				} else {
+					update(changeContext, e);
+				}
+			}
+			
+			changeContext.saveChanges();
+			
+			if (this.nested) {
+				this.editingContext.saveChanges();
+			}
+		} finally {
+			if (this.nested) {
+				changeContext.unlock();
+				changeContext.dispose();
+			}
+		}
+		
+		long rows = this.operationCounter.takeRowCount();
+		long historicRows = this.operationCounter.takeHistoricRowCount();
+		
+		this.changeCount += this.changesPerSave;
+		this.rowCount += rows;
+		this.historicRowCount += historicRows;
+		
+		counters.changes += this.changesPerSave;
+		counters.rows += rows;
+		counters.historicRows += historicRows;
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected ValidatingEditingContext createEditingContext(EOObjectStore parentStore)
+	{
+		if (NONE.equals(this.history)) {
+			return (parentStore != null) ? new ValidatingEditingContext(parentStore)
+					: new ValidatingEditingContext();
+		}
+		
+		AuditingEditingContext editingContext = (parentStore != null) ? new AuditingEditingContext(
+				parentStore) : new AuditingEditingContext();
+		
+		editingContext.setAsynchronousHistoryEnabled(ASYNCHRONOUS.equals(this.history));
+		
+		return editingContext;
+	}
+	
+	
+	protected EOEnterpriseObject insert(EOEditingContext editingContext, int entityIndex)
+	{
+		String entityName = BenchmarkDatabase.ENTITY_NAMES[entityIndex];
+		EOEnterpriseObject object = ControlUtilities.createAndInsertInstance(editingContext,
+				entityName);
+		String value = nextValue();
+		
+		if (BenchmarkDatabase.MOVIE.equals(entityName)) {
+			object.takeValueForKey(value, "title");
+			object.takeValueForKey("Drama", "category");
+		} else if (BenchmarkDatabase.TALENT.equals(entityName)) {
+			object.takeValueForKey(value, "firstName");
+			object.takeValueForKey(value, "lastName");
+		} else {
+			NSMutableArray movies = this.registeredObjectsByEntity[0];
+			EOEnterpriseObject movie = (movies.count() > 0) ? (EOEnterpriseObject) movies
+					.objectAtIndex(this.random.nextInt(movies.count())) : insert(editingContext, 0);
+			
+			object.addObjectToBothSidesOfRelationshipWithKey(localInstance(editingContext, movie),
+					"movie");
+			object.takeValueForKey(value, "reviewer");
+			object.takeValueForKey(value, "review");
+		}
+		
+		return object;
+	}
+	
+	
+	protected void update(EOEditingContext editingContext, int entityIndex)
+	{
+		NSMutableArray objects = this.registeredObjectsByEntity[entityIndex];
+		
+		if (objects.count() == 0) {
+			insert(editingContext, entityIndex);
+		} else {
+			EOEnterpriseObject object = localInstance(editingContext, (EOEnterpriseObject) objects
+					.objectAtIndex(this.random.nextInt(objects.count())));
+			String entityName = BenchmarkDatabase.ENTITY_NAMES[entityIndex];
+			String key = (BenchmarkDatabase.MOVIE.equals(entityName)) ? "title"
+					: (BenchmarkDatabase.TALENT.equals(entityName)) ? "lastName" : "reviewer";
+			
+			object.takeValueForKey(nextValue(), key);
+		}
+	}
+	
+	
+	protected EOEnterpriseObject localInstance(EOEditingContext editingContext,
+			EOEnterpriseObject object)
+	{
+		return (object.editingContext() == editingContext) ? object : EOUtilities
+				.localInstanceOfObject(editingContext, object);
+	}
+	
+	
+	protected String nextValue()
+	{
+		return "Value " + (this.counter++);
+	}
+	
+	
+	
+	
+	// Public inner classes
+	
+	/**
+	 * Counts of the changes saved and the rows written during an iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class RowCounters
+	{
+		public long	changes;
+		
+		
+		public long	rows;
+		
+		
+		public long	historicRows;
+		
+		
+		
+		
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			this.changes = 0;
+			this.rows = 0;
+			this.historicRows = 0;
+		}
+	}
+}
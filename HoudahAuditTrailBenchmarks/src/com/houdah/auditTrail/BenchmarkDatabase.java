@@ -0,0 +1,568 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.houdah.foundation.ForwardException;
+import com.houdah.foundation.utilities.StringUtilities;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOSchemaGeneration;
+import com.webobjects.eoaccess.EOSynchronizationFactory;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSPropertyListSerialization;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Embedded database the audit trail benchmarks run against.<br/>
+ * 
+ * The schema is derived from the Movie, Talent and Review entities of the
+ * HoudahMovies model. Its location is read from the MOVIES_MODEL_PROPERTY
+ * system property and defaults to its place in the source tree, relative to
+ * this module. The Movies business classes are not auditable, so the derived
+ * model:
+ * <ul>
+ * <li>maps the entities to BenchmarkRecord and adds version and audit date
+ * attributes
+ * <li>adds an historic entity per entity, mapped to BenchmarkHistoricRecord,
+ * along with the relationships between the two
+ * <li>drops the relationships to the other entities of the Movies model
+ * <li>maps string attributes to VARCHAR columns
+ * <li>connects to an in-memory Derby database
+ * </ul>
+ * The database is set up once per JVM. EOModelGroup's default group is
+ * replaced by a group holding the derived model only. The HistoryWriter
+ * spills to a fresh temporary directory, as its spilled changes refer to
+ * rows of the in-memory database.
+ */
+public class BenchmarkDatabase
+{
+	// Public class constants
+	
+	public static final String		MOVIES_MODEL_PROPERTY	= "HoudahAuditTrailBenchmarks.moviesModel";
+	
+	
+	public static final String		MODEL_NAME				= "AuditTrailBenchmark";
+	
+	
+	public static final String		MOVIE					= "Movie";
+	
+	
+	public static final String		TALENT					= "Talent";
+	
+	
+	public static final String		REVIEW					= "Review";
+	
+	
+	public static final String		HISTORIC_SUFFIX			= "History";
+	
+	
+	
+	// Protected class constants
+	
+	protected static final String	DEFAULT_MOVIES_MODEL	= "../HoudahMovies/Resources/Movies.eomodeld";
+	
+	
+	protected static final String[]	ENTITY_NAMES			= { MOVIE, TALENT, REVIEW };
+	
+	
+	protected static final String	URL						= "jdbc:derby:memory:" + MODEL_NAME
+																	+ ";create=true";
+	
+	
+	protected static final String	DRIVER					= "org.apache.derby.jdbc.EmbeddedDriver";
+	
+	
+	protected static final String	HISTORY_ID				= "historyID";
+	
+	
+	protected static final String	SOURCE					= "source";
+	
+	
+	protected static final String	VARCHAR_WIDTH			= "4000";
+	
+	
+	
+	// Private class variables
+	
+	private static AdaptorOperationCounter	operationCounter	= null;
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor
+	 */
+	private BenchmarkDatabase()
+	{
+		throw new IllegalStateException("Do not instantiate this utility class");
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Derives the model, creates the schema, points the HistoryWriter to a
+	 * spill directory of its own and installs the operation counter as
+	 * default database context delegate. Subsequent calls do nothing.
+	 * 
+	 * @return the operation counter
+	 */
+	public static synchronized AdaptorOperationCounter setUp()
+	{
+		if (BenchmarkDatabase.operationCounter == null) {
+			try {
+				System.setProperty(HistoryWriter.SPILL_DIRECTORY_PROPERTY, BenchmarkDatabase
+						.createTemporaryDirectory(HistoryWriter.class.getName()).getPath());
+				
+				EOModel model = new EOModel(BenchmarkDatabase.writeDerivedModel().toURI().toURL());
+				EOModelGroup modelGroup = new EOModelGroup();
+				
+				modelGroup.addModel(model);
+				EOModelGroup.setDefaultGroup(modelGroup);
+				
+				BenchmarkDatabase.createSchema(model);
+				
+				BenchmarkDatabase.operationCounter = new AdaptorOperationCounter();
+				EODatabaseContext.setDefaultDelegate(BenchmarkDatabase.operationCounter);
+			} catch (IOException ioe) {
+				throw new ForwardException(ioe);
+			}
+		}
+		
+		return BenchmarkDatabase.operationCounter;
+	}
+	
+	
+	public static boolean isHistoricEntityName(String entityName)
+	{
+		return entityName.endsWith(HISTORIC_SUFFIX);
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Creates an empty directory in java.io.tmpdir.
+	 * 
+	 * @param prefix
+	 *            the start of the directory name
+	 * @return the directory
+	 */
+	protected static File createTemporaryDirectory(String prefix) throws IOException
+	{
+		File temporaryDirectory = File.createTempFile(prefix, "");
+		
+		if (!temporaryDirectory.delete() || !temporaryDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + temporaryDirectory.getAbsolutePath());
+		}
+		
+		return temporaryDirectory;
+	}
+	
+	
+	/**
+	 * Writes the derived model to a temporary directory.
+	 * 
+	 * @return the .eomodeld directory
+	 */
+	protected static File writeDerivedModel() throws IOException
+	{
+		File sourceDirectory = new File(System.getProperty(MOVIES_MODEL_PROPERTY,
+				DEFAULT_MOVIES_MODEL));
+		File temporaryDirectory = BenchmarkDatabase.createTemporaryDirectory(MODEL_NAME);
+		File modelDirectory = new File(temporaryDirectory, MODEL_NAME + ".eomodeld");
+		
+		if (!modelDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + modelDirectory.getAbsolutePath());
+		}
+		
+		temporaryDirectory.deleteOnExit();
+		modelDirectory.deleteOnExit();
+		
+		NSSet entityNames = new NSSet(ENTITY_NAMES);
+		NSMutableArray entityIndex = new NSMutableArray();
+		
+		for (int e = 0; e < ENTITY_NAMES.length; e++) {
+			NSDictionary entity = (NSDictionary) BenchmarkDatabase.readPropertyList(new File(
+					sourceDirectory, ENTITY_NAMES[e] + ".plist"));
+			NSDictionary auditedEntity = BenchmarkDatabase.auditedEntity(entity, entityNames);
+			NSDictionary historicEntity = BenchmarkDatabase.historicEntity(auditedEntity);
+			NSDictionary[] derivedEntities = { auditedEntity, historicEntity };
+			
+			for (int d = 0; d < derivedEntities.length; d++) {
+				NSMutableDictionary indexEntry = new NSMutableDictionary();
+				String name = (String) derivedEntities[d].objectForKey("name");
+				
+				indexEntry.setObjectForKey(name, "name");
+				indexEntry.setObjectForKey(derivedEntities[d].objectForKey("className"),
+						"className");
+				entityIndex.addObject(indexEntry);
+				
+				BenchmarkDatabase.writePropertyList(derivedEntities[d], new File(modelDirectory,
+						name + ".plist"));
+			}
+		}
+		
+		NSMutableDictionary connectionDictionary = new NSMutableDictionary();
+		
+		connectionDictionary.setObjectForKey(URL, "URL");
+		connectionDictionary.setObjectForKey(DRIVER, "driver");
+		
+		NSMutableDictionary index = new NSMutableDictionary(BenchmarkDatabase
+				.readPropertyList(new File(sourceDirectory, "index.eomodeld")));
+		
+		index.setObjectForKey(connectionDictionary, "connectionDictionary");
+		index.setObjectForKey(entityIndex, "entities");
+		
+		BenchmarkDatabase.writePropertyList(index, new File(modelDirectory, "index.eomodeld"));
+		
+		return modelDirectory;
+	}
+	
+	
+	/**
+	 * Derives an audited entity from a Movies entity.
+	 * 
+	 * @param entity
+	 *            the property list of the Movies entity
+	 * @param entityNames
+	 *            the entities kept in the derived model
+	 */
+	protected static NSDictionary auditedEntity(NSDictionary entity, NSSet entityNames)
+	{
+		String name = (String) entity.objectForKey("name");
+		String primaryKey = BenchmarkDatabase.primaryKey(entity);
+		NSArray sourceAttributes = (NSArray) entity.objectForKey("attributes");
+		NSMutableArray attributes = new NSMutableArray();
+		int aCount = sourceAttributes.count();
+		
+		for (int a = 0; a < aCount; a++) {
+			attributes.addObject(BenchmarkDatabase.derivedAttribute((NSDictionary) sourceAttributes
+					.objectAtIndex(a)));
+		}
+		
+		attributes.addObject(BenchmarkDatabase.attribute(ChangeableRecord.AUDIT_DATE, "AUDIT_DATE",
+				"timestamp", "NSCalendarDate", null));
+		attributes.addObject(BenchmarkDatabase.attribute(TraceableRecord.VERSION, "VERSION",
+				"integer", "NSNumber", "i"));
+		
+		NSArray sourceRelationships = (NSArray) entity.objectForKey("relationships");
+		NSMutableArray relationships = new NSMutableArray();
+		int rCount = (sourceRelationships != null) ? sourceRelationships.count() : 0;
+		
+		for (int r = 0; r < rCount; r++) {
+			NSDictionary relationship = (NSDictionary) sourceRelationships.objectAtIndex(r);
+			
+			if (entityNames.containsObject(relationship.objectForKey("destination"))) {
+				relationships.addObject(relationship);
+			}
+		}
+		
+		relationships.addObject(BenchmarkDatabase.relationship(BenchmarkRecord.HISTORY, name
+				+ HISTORIC_SUFFIX, primaryKey, primaryKey, true));
+		
+		NSMutableArray classProperties = new NSMutableArray();
+		NSArray sourceClassProperties = (NSArray) entity.objectForKey("classProperties");
+		NSArray propertyNames = ((NSArray) attributes.valueForKey("name"))
+				.arrayByAddingObjectsFromArray((NSArray) relationships.valueForKey("name"));
+		int cCount = sourceClassProperties.count();
+		
+		for (int c = 0; c < cCount; c++) {
+			Object property = sourceClassProperties.objectAtIndex(c);
+			
+			if (propertyNames.containsObject(property)) {
+				classProperties.addObject(property);
+			}
+		}
+		
+		classProperties.addObject(ChangeableRecord.AUDIT_DATE);
+		classProperties.addObject(TraceableRecord.VERSION);
+		classProperties.addObject(BenchmarkRecord.HISTORY);
+		
+		NSMutableDictionary auditedEntity = new NSMutableDictionary();
+		
+		auditedEntity.setObjectForKey(name, "name");
+		auditedEntity.setObjectForKey(BenchmarkRecord.class.getName(), "className");
+		auditedEntity.setObjectForKey(entity.objectForKey("externalName"), "externalName");
+		auditedEntity.setObjectForKey(attributes, "attributes");
+		auditedEntity.setObjectForKey(relationships, "relationships");
+		auditedEntity.setObjectForKey(classProperties, "classProperties");
+		auditedEntity.setObjectForKey(new NSArray(primaryKey), "primaryKeyAttributes");
+		auditedEntity.setObjectForKey(((NSArray) entity.objectForKey("attributesUsedForLocking"))
+				.arrayByAddingObject(TraceableRecord.VERSION), "attributesUsedForLocking");
+		
+		return auditedEntity;
+	}
+	
+	
+	/**
+	 * Derives the historic entity of an audited entity. Historic objects hold
+	 * the attributes and to-one relationships of their source object, a
+	 * comment and a to-one relationship back to their source object.
+	 * 
+	 * @param auditedEntity
+	 *            the property list of the audited entity
+	 */
+	protected static NSDictionary historicEntity(NSDictionary auditedEntity)
+	{
+		String sourceName = (String) auditedEntity.objectForKey("name");
+		String primaryKey = BenchmarkDatabase.primaryKey(auditedEntity);
+		NSMutableArray attributes = new NSMutableArray((NSArray) auditedEntity
+				.objectForKey("attributes"));
+		
+		attributes.addObject(BenchmarkDatabase.attribute(HISTORY_ID, "HISTORY_ID", "integer",
+				"NSNumber", "i"));
+		attributes.addObject(BenchmarkDatabase.attribute(TraceableRecord.COMMENT, "COMMENT",
+				"VARCHAR", "NSString", null));
+		
+		NSArray sourceRelationships = (NSArray) auditedEntity.objectForKey("relationships");
+		NSMutableArray relationships = new NSMutableArray();
+		NSMutableArray toManyNames = new NSMutableArray();
+		int rCount = sourceRelationships.count();
+		
+		for (int r = 0; r < rCount; r++) {
+			NSDictionary relationship = (NSDictionary) sourceRelationships.objectAtIndex(r);
+			
+			if ("Y".equals(relationship.objectForKey("isToMany"))) {
+				toManyNames.addObject(relationship.objectForKey("name"));
+			} else {
+				relationships.addObject(relationship);
+			}
+		}
+		
+		relationships.addObject(BenchmarkDatabase.relationship(SOURCE, sourceName, primaryKey,
+				primaryKey, false));
+		
+		NSMutableArray classProperties = new NSMutableArray((NSArray) auditedEntity
+				.objectForKey("classProperties"));
+		
+		classProperties.removeObjectsInArray(toManyNames);
+		classProperties.addObject(TraceableRecord.COMMENT);
+		classProperties.addObject(SOURCE);
+		
+		NSMutableDictionary historicEntity = new NSMutableDictionary();
+		
+		historicEntity.setObjectForKey(sourceName + HISTORIC_SUFFIX, "name");
+		historicEntity.setObjectForKey(BenchmarkHistoricRecord.class.getName(), "className");
+		historicEntity.setObjectForKey(auditedEntity.objectForKey("externalName") + "_history",
+				"externalName");
+		historicEntity.setObjectForKey(attributes, "attributes");
+		historicEntity.setObjectForKey(relationships, "relationships");
+		historicEntity.setObjectForKey(classProperties, "classProperties");
+		historicEntity.setObjectForKey(new NSArray(HISTORY_ID), "primaryKeyAttributes");
+		historicEntity.setObjectForKey(new NSArray(HISTORY_ID), "attributesUsedForLocking");
+		
+		return historicEntity;
+	}
+	
+	
+	/**
+	 * Copies an attribute of the Movies model. The model targets a database
+	 * where CHAR columns may exceed 254 characters and where BLOB columns hold
+	 * strings. Derby allows neither, so string attributes are mapped to
+	 * VARCHAR columns.
+	 */
+	protected static NSDictionary derivedAttribute(NSDictionary attribute)
+	{
+		if ("NSString".equals(attribute.objectForKey("valueClassName"))) {
+			NSMutableDictionary derivedAttribute = new NSMutableDictionary(attribute);
+			
+			derivedAttribute.setObjectForKey("VARCHAR", "externalType");
+			derivedAttribute.removeObjectForKey("valueType");
+			
+			if (derivedAttribute.objectForKey("width") == null) {
+				derivedAttribute.setObjectForKey(VARCHAR_WIDTH, "width");
+			}
+			
+			return derivedAttribute;
+		}
+		
+		return attribute;
+	}
+	
+	
+	protected static NSDictionary attribute(String name, String columnName, String externalType,
+			String valueClassName, String valueType)
+	{
+		NSMutableDictionary attribute = new NSMutableDictionary();
+		
+		attribute.setObjectForKey(name, "name");
+		attribute.setObjectForKey(columnName, "columnName");
+		attribute.setObjectForKey(externalType, "externalType");
+		attribute.setObjectForKey(valueClassName, "valueClassName");
+		attribute.setObjectForKey("Y", "allowsNull");
+		
+		if (valueType != null) {
+			attribute.setObjectForKey(valueType, "valueType");
+		}
+		
+		if ("VARCHAR".equals(externalType)) {
+			attribute.setObjectForKey(VARCHAR_WIDTH, "width");
+		}
+		
+		return attribute;
+	}
+	
+	
+	protected static NSDictionary relationship(String name, String destination,
+			String sourceAttribute, String destinationAttribute, boolean isToMany)
+	{
+		NSMutableDictionary join = new NSMutableDictionary();
+		
+		join.setObjectForKey(sourceAttribute, "sourceAttribute");
+		join.setObjectForKey(destinationAttribute, "destinationAttribute");
+		
+		NSMutableDictionary relationship = new NSMutableDictionary();
+		
+		relationship.setObjectForKey(name, "name");
+		relationship.setObjectForKey(destination, "destination");
+		relationship.setObjectForKey(isToMany ? "Y" : "N", "isToMany");
+		relationship.setObjectForKey("EOInnerJoin", "joinSemantic");
+		relationship.setObjectForKey(new NSArray(join), "joins");
+		
+		if (isToMany) {
+			relationship.setObjectForKey("EODeleteRuleCascade", "deleteRule");
+			relationship.setObjectForKey("Y", "ownsDestination");
+		}
+		
+		return relationship;
+	}
+	
+	
+	protected static String primaryKey(NSDictionary entity)
+	{
+		NSArray primaryKeyAttributes = (NSArray) entity.objectForKey("primaryKeyAttributes");
+		
+		if (primaryKeyAttributes.count() != 1) {
+			throw new IllegalArgumentException("Entity " + entity.objectForKey("name")
+					+ " does not have a simple primary key");
+		}
+		
+		return (String) primaryKeyAttributes.objectAtIndex(0);
+	}
+	
+	
+	/**
+	 * Creates the tables and the primary key support of a model.
+	 */
+	protected static void createSchema(EOModel model)
+	{
+		EOEditingContext editingContext = new EOEditingContext();
+		
+		editingContext.lock();
+		
+		try {
+			EODatabaseContext databaseContext = EOUtilities.databaseContextForModelNamed(
+					editingContext, model.name());
+			
+			databaseContext.lock();
+			
+			try {
+				EOAdaptorChannel adaptorChannel = databaseContext.availableChannel()
+						.adaptorChannel();
+				EOSynchronizationFactory synchronizationFactory = databaseContext
+						.adaptorContext().adaptor().synchronizationFactory();
+				NSMutableDictionary options = new NSMutableDictionary();
+				
+				options.setObjectForKey("YES", EOSchemaGeneration.CreateTablesKey);
+				options.setObjectForKey("YES", EOSchemaGeneration.CreatePrimaryKeySupportKey);
+				options.setObjectForKey("YES", EOSchemaGeneration.PrimaryKeyConstraintsKey);
+				options.setObjectForKey("NO", EOSchemaGeneration.ForeignKeyConstraintsKey);
+				options.setObjectForKey("NO", EOSchemaGeneration.DropTablesKey);
+				options.setObjectForKey("NO", EOSchemaGeneration.DropPrimaryKeySupportKey);
+				options.setObjectForKey("NO", EOSchemaGeneration.CreateDatabaseKey);
+				options.setObjectForKey("NO", EOSchemaGeneration.DropDatabaseKey);
+				
+				NSArray statements = synchronizationFactory.schemaCreationStatementsForEntities(
+						model.entities(), options);
+				
+				if (!adaptorChannel.isOpen()) {
+					adaptorChannel.openChannel();
+				}
+				
+				int sCount = statements.count();
+				
+				for (int s = 0; s < sCount; s++) {
+					adaptorChannel.evaluateExpression((EOSQLExpression) statements
+							.objectAtIndex(s));
+				}
+			} finally {
+				databaseContext.unlock();
+			}
+		} finally {
+			editingContext.unlock();
+			editingContext.dispose();
+		}
+	}
+	
+	
+	protected static Object readPropertyList(File file)
+	{
+		String contents = StringUtilities.stringFromFile(file);
+		
+		if (contents == null) {
+			throw new IllegalStateException("Cannot read " + file.getAbsolutePath());
+		}
+		
+		return NSPropertyListSerialization.propertyListFromString(contents);
+	}
+	
+	
+	protected static void writePropertyList(Object propertyList, File file) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		
+		file.deleteOnExit();
+		
+		try {
+			writer.write(NSPropertyListSerialization.stringFromPropertyList(propertyList));
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import com.webobjects.eocontrol.EOClassDescription;
+
+/**
+ * Business object class of the historic entities of the benchmark model.<br/>
+ * 
+ * Historic objects hold a copy of the version, audit date and properties of
+ * their source object, as well as the comment of the change.
+ */
+public class BenchmarkHistoricRecord extends BenchmarkRecord
+{
+	// Constructors
+	
+	public BenchmarkHistoricRecord()
+	{
+	}
+	
+	
+	public BenchmarkHistoricRecord(EOClassDescription classDescription)
+	{
+		super(classDescription);
+	}
+	
+	
+	
+	// Public accessors
+	
+	public String comment()
+	{
+		return (String) storedValueForKey(COMMENT);
+	}
+	
+	
+	public synchronized void setComment(String comment)
+	{
+		takeStoredValueForKey(comment, COMMENT);
+	}
+	
+	
+	
+	// Public instance methods
+	
+	public boolean needsHistoricObject()
+	{
+		return false;
+	}
+	
+	
+	public String historicRelationshipName()
+	{
+		return null;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.auditTrail;
+
+import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.foundation.NSTimestamp;
+
+/**
+ * Business object class of the audited Movie, Talent and Review entities of
+ * the benchmark model.<br/>
+ * 
+ * The version and audit date are plain attributes. The benchmark model has no
+ * user entity, so the audit user is always null.
+ */
+public class BenchmarkRecord extends TraceableRecord
+{
+	// Public class constants
+	
+	public static final String	HISTORY	= "history";
+	
+	
+	
+	
+	// Constructors
+	
+	public BenchmarkRecord()
+	{
+	}
+	
+	
+	public BenchmarkRecord(EOClassDescription classDescription)
+	{
+		super(classDescription);
+	}
+	
+	
+	
+	// Public accessors
+	
+	public Number version()
+	{
+		return (Number) storedValueForKey(VERSION);
+	}
+	
+	
+	public void setVersion(Number aValue)
+	{
+		takeStoredValueForKey(aValue, VERSION);
+	}
+	
+	
+	public NSTimestamp auditDate()
+	{
+		return (NSTimestamp) storedValueForKey(AUDIT_DATE);
+	}
+	
+	
+	public void setAuditDate(NSTimestamp value)
+	{
+		takeStoredValueForKey(value, AUDIT_DATE);
+	}
+	
+	
+	public AuditUser auditUser()
+	{
+		return null;
+	}
+	
+	
+	public void setAuditUser(AuditUser value)
+	{
+	}
+	
+	
+	
+	// Public instance methods
+	
+	public boolean needsHistoricObject()
+	{
+		return true;
+	}
+	
+	
+	public String historicRelationshipName()
+	{
+		return HISTORY;
+	}
+}
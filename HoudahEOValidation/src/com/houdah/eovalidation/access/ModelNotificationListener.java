@@ -28,14 +28,25 @@
 
 package com.houdah.eovalidation.access;
 
-import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.houdah.foundation.ForwardException;
 
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EOEntityClassDescription;
 import com.webobjects.eoaccess.EOModel;
 import com.webobjects.eoaccess.EOModelGroup;
 import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSNotification;
 import com.webobjects.foundation.NSNotificationCenter;
@@ -51,15 +62,49 @@ import com.webobjects.foundation.NSSelector;
  */
 public class ModelNotificationListener
 {
+	// Public class constants
+	
+	/**
+	 * System property requesting the class descriptions of all models to be
+	 * built once the application has finished launching.
+	 */
+	public static final String		PRIME_CLASS_DESCRIPTIONS_PROPERTY	= "HoudahEOValidation.primeClassDescriptions";
+	
+	
+	/**
+	 * System property setting the number of threads priming class
+	 * descriptions. Defaults to the number of available processors.
+	 */
+	public static final String		PRIMING_THREADS_PROPERTY			= "HoudahEOValidation.primingThreads";
+	
+	
+	
+	// Protected class constants
+	
+	/**
+	 * Name of WOApplication.ApplicationDidFinishLaunchingNotification. This
+	 * framework does not depend on JavaWebObjects.
+	 */
+	protected static final String	APPLICATION_DID_FINISH_LAUNCHING	= "ApplicationDidFinishLaunchingNotification";
+	
+	
+	
 	// Private instance methods
 	
-	private EOModel				model;
+	private EOModel					model;
 	
 	
-	private NSMutableDictionary	cachedDescriptionsByEntityName;
+	/**
+	 * The class descriptions of the model. Set by compare-and-set once all
+	 * descriptions are built, read without locking.
+	 */
+	private AtomicReference			cachedDescriptions					= new AtomicReference();
 	
 	
-	private NSMutableDictionary	cachedDescriptionsByClassName;
+	/**
+	 * Set on the threads building the class descriptions of the model.
+	 */
+	private ThreadLocal				isPrimingOnThread					= new ThreadLocal();
 	
 	
 	
@@ -82,10 +127,86 @@ public class ModelNotificationListener
 		defaultCenter.addObserver(ModelNotificationListener.class, modelAddedNotification,
 				EOModelGroup.ModelAddedNotification, null);
 		
+		if (Boolean.getBoolean(PRIME_CLASS_DESCRIPTIONS_PROPERTY)) {
+			NSSelector applicationDidFinishLaunching = new NSSelector(
+					"applicationDidFinishLaunching", new Class[] { NSNotification.class });
+			
+			defaultCenter.addObserver(ModelNotificationListener.class,
+					applicationDidFinishLaunching, APPLICATION_DID_FINISH_LAUNCHING, null);
+		}
+		
 		EOClassDescription.invalidateClassDescriptionCache();
 	}
 	
 	
+	/**
+	 * Builds the class descriptions of all models of the default model group
+	 * ahead of their first use.<br/>
+	 * 
+	 * Called once the application has finished launching when the
+	 * HoudahEOValidation.primeClassDescriptions property is set. May also be
+	 * called directly, e.g. by tools not running a WOApplication. The models
+	 * are primed concurrently.
+	 */
+	public static void primeClassDescriptions()
+	{
+		NSArray models = EOModelGroup.defaultGroup().models();
+		NSMutableArray listeners = new NSMutableArray(models.count());
+		int mCount = models.count();
+		
+		for (int m = 0; m < mCount; m++) {
+			EOModel model = (EOModel) models.objectAtIndex(m);
+			Object listener = model.userInfo().objectForKey(
+					ModelNotificationListener.class.getName());
+			
+			if (listener instanceof ModelNotificationListener) {
+				listeners.addObject(listener);
+			}
+		}
+		
+		int lCount = listeners.count();
+		int threadCount = Math.min(lCount, Integer.getInteger(PRIMING_THREADS_PROPERTY,
+				Runtime.getRuntime().availableProcessors()).intValue());
+		
+		if (threadCount <= 1) {
+			for (int l = 0; l < lCount; l++) {
+				((ModelNotificationListener) listeners.objectAtIndex(l)).primeCaches();
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			
+			try {
+				Future[] futures = new Future[lCount];
+				
+				for (int l = 0; l < lCount; l++) {
+					futures[l] = executor.submit(new PrimingTask(
+							(ModelNotificationListener) listeners.objectAtIndex(l)));
+				}
+				
+				for (int l = 0; l < lCount; l++) {
+					futures[l].get();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				
+				throw new ForwardException(ie);
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				
+				throw new ForwardException(cause);
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+	
+	
 	
 	// Constructor
 	
@@ -151,13 +272,19 @@ public class ModelNotificationListener
 	{
 		EOEntity entity = (EOEntity) notification.object();
 		
+		// Entities of other models are handled by their own listener
+		if (entity.model() != model()) {
+			return;
+		}
+		
 		try {
-			// HACK: We push the class description rather rudely into the entity
-			// to have it ready when classDescriptionForNewInstances() is called
-			// on it.
-			synchronized (entity) {
-				NSKeyValueCoding.Utility.takeValueForKey(entity,
-						classDescriptionForEntityNamed(entity.name()), "classDescription");
+			EOEntityClassDescription classDescription = classDescriptionForEntityNamed(entity
+					.name());
+			
+			// Null while the caches are being primed. The description is then
+			// pushed once priming is done.
+			if (classDescription != null) {
+				pushClassDescription(entity, classDescription);
 			}
 		} catch (RuntimeException ex) {
 			// Ignore entities without class definitions
@@ -264,39 +391,104 @@ public class ModelNotificationListener
 	}
 	
 	
+	/**
+	 * Primes the class descriptions before the application starts serving
+	 * requests.
+	 * 
+	 * @param notification
+	 *            notification posted by WOApplication
+	 */
+	public static void applicationDidFinishLaunching(NSNotification notification)
+	{
+		ModelNotificationListener.primeClassDescriptions();
+	}
+	
+	
 	
 	// Protected instance methods
 	
 	/**
 	 * Prime the caches in order to guarantee unique class description
-	 * instances.
+	 * instances. Does nothing if the caches are already primed.<br/>
+	 * 
+	 * The descriptions are built without holding any lock. Loading the
+	 * entities of the model notifies the listeners. Nested calls on the
+	 * building thread find the caches being primed and return without
+	 * priming them a second time. When several threads build the
+	 * descriptions, the first to publish them wins and the others discard
+	 * theirs. The winner then pushes its descriptions into the entities.
 	 */
-	protected synchronized void primeCaches()
+	protected void primeCaches()
 	{
-		Enumeration entityEnumerator = model().entities().objectEnumerator();
+		if ((this.cachedDescriptions.get() != null) || (this.isPrimingOnThread.get() != null)) {
+			return;
+		}
 		
-		this.cachedDescriptionsByEntityName = new NSMutableDictionary();
-		this.cachedDescriptionsByClassName = new NSMutableDictionary();
+		this.isPrimingOnThread.set(Boolean.TRUE);
 		
-		while (entityEnumerator.hasMoreElements()) {
-			EOEntity entity = (EOEntity) entityEnumerator.nextElement();
-			
+		try {
+			NSArray entities = model().entities();
+			Map descriptionsByEntityName = new ConcurrentHashMap();
+			Map descriptionsByClassName = new ConcurrentHashMap();
+			int eCount = entities.count();
 			
-			// Exclude prototypes and malformed entities
-			if (entity.className() != null) {
-				EOClassDescription descriptionForEntity = createClassDescriptionEntity(entity);
+			for (int e = 0; e < eCount; e++) {
+				EOEntity entity = (EOEntity) entities.objectAtIndex(e);
 				
-				this.cachedDescriptionsByEntityName.setObjectForKey(descriptionForEntity, entity
-						.name());
 				
+				// Exclude prototypes and malformed entities
+				if (entity.className() != null) {
+					EOClassDescription descriptionForEntity = createClassDescriptionEntity(entity);
+					
+					descriptionsByEntityName.put(entity.name(), descriptionForEntity);
+					
+					
+					// No need to cache for EOGenericRecord as they are never
+					// requested by class
+					if (!entity.className().equals("EOGenericRecord")) {
+						descriptionsByClassName.put(entity.className(), descriptionForEntity);
+					}
+				}
+			}
+			
+			
+			// Publish the complete maps, unless another thread was faster
+			if (!this.cachedDescriptions.compareAndSet(null, new CachedDescriptions(
+					descriptionsByEntityName, descriptionsByClassName))) {
+				return;
+			}
+			
+			
+			// Entities loaded while priming were passed over
+			for (int e = 0; e < eCount; e++) {
+				EOEntity entity = (EOEntity) entities.objectAtIndex(e);
+				Object descriptionForEntity = descriptionsByEntityName.get(entity.name());
 				
-				// No need to cache for EOGenericRecord as they are never
-				// requested by class
-				if (!entity.className().equals("EOGenericRecord")) {
-					this.cachedDescriptionsByClassName.setObjectForKey(descriptionForEntity, entity
-							.className());
+				if (descriptionForEntity instanceof EOEntityClassDescription) {
+					try {
+						pushClassDescription(entity, (EOEntityClassDescription) descriptionForEntity);
+					} catch (RuntimeException ex) {
+						// Ignore entities without class definitions
+					}
 				}
 			}
+		} finally {
+			this.isPrimingOnThread.set(null);
+		}
+	}
+	
+	
+	
+	/**
+	 * Installs a class description into an entity.
+	 */
+	protected void pushClassDescription(EOEntity entity, EOEntityClassDescription classDescription)
+	{
+		// HACK: We push the class description rather rudely into the entity
+		// to have it ready when classDescriptionForNewInstances() is called
+		// on it.
+		synchronized (entity) {
+			NSKeyValueCoding.Utility.takeValueForKey(entity, classDescription, "classDescription");
 		}
 	}
 	
@@ -325,16 +517,16 @@ public class ModelNotificationListener
 	 * @param entityName
 	 *            name of entity to lookup class description for.
 	 * @return EOEntityClassDescription class description for this entity or
-	 *         null if the entity is not in the model.
+	 *         null if the entity is not in the model, or if the caches are
+	 *         being primed by the current thread.
 	 */
-	protected synchronized EOEntityClassDescription classDescriptionForEntityNamed(String entityName)
+	protected EOEntityClassDescription classDescriptionForEntityNamed(String entityName)
 	{
-		if (this.cachedDescriptionsByEntityName == null) {
-			primeCaches();
-		}
+		CachedDescriptions cachedDescriptions = cachedDescriptions();
 		
-		return (EOEntityClassDescription) this.cachedDescriptionsByEntityName
-				.objectForKey(entityName);
+		return (cachedDescriptions != null) ? (EOEntityClassDescription) cachedDescriptions.byEntityName
+				.get(entityName)
+				: null;
 	}
 	
 	
@@ -345,15 +537,87 @@ public class ModelNotificationListener
 	 * @param className
 	 *            name of class to lookup class description for.
 	 * @return EOEntityClassDescription class description for this class or null
-	 *         if an entity with this className is not in the model
+	 *         if an entity with this className is not in the model, or if the
+	 *         caches are being primed by the current thread.
 	 */
-	protected synchronized EOEntityClassDescription classDescriptionForClassNamed(String className)
+	protected EOEntityClassDescription classDescriptionForClassNamed(String className)
 	{
-		if (this.cachedDescriptionsByClassName == null) {
+		CachedDescriptions cachedDescriptions = cachedDescriptions();
+		
+		return (cachedDescriptions != null) ? (EOEntityClassDescription) cachedDescriptions.byClassName
+				.get(className)
+				: null;
+	}
+	
+	
+	
+	/**
+	 * The class descriptions of the model, primed if need be.
+	 * 
+	 * @return the class descriptions, null if the caches are being primed by
+	 *         the current thread
+	 */
+	protected CachedDescriptions cachedDescriptions()
+	{
+		CachedDescriptions cachedDescriptions = (CachedDescriptions) this.cachedDescriptions.get();
+		
+		if (cachedDescriptions == null) {
 			primeCaches();
+			
+			cachedDescriptions = (CachedDescriptions) this.cachedDescriptions.get();
+		}
+		
+		return cachedDescriptions;
+	}
+	
+	
+	
+	
+	// Protected inner classes
+	
+	/**
+	 * The class descriptions of a model, by entity name and by class name.
+	 */
+	protected static class CachedDescriptions
+	{
+		protected final Map	byEntityName;
+		
+		
+		protected final Map	byClassName;
+		
+		
+		
+		
+		protected CachedDescriptions(Map byEntityName, Map byClassName)
+		{
+			this.byEntityName = byEntityName;
+			this.byClassName = byClassName;
 		}
+	}
+	
+	
+	
+	/**
+	 * Primes the caches of one model listener.
+	 */
+	protected static class PrimingTask implements Callable
+	{
+		private ModelNotificationListener	listener;
+		
 		
-		return (EOEntityClassDescription) this.cachedDescriptionsByClassName
-				.objectForKey(className);
+		
+		
+		protected PrimingTask(ModelNotificationListener listener)
+		{
+			this.listener = listener;
+		}
+		
+		
+		public Object call()
+		{
+			this.listener.primeCaches();
+			
+			return null;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -36,15 +36,19 @@ import com.houdah.eovalidation.control.ValidatingClassDescription;
 import com.houdah.eovalidation.control.ValidatingEditingContext;
 import com.houdah.eovalidation.control.ValidatingRecord;
 import com.houdah.eovalidation.control.ValidationContext;
+import com.houdah.eovalidation.control.ValidatorMethods;
 import com.houdah.foundation.ForwardException;
 import com.houdah.ruleengine.RuleContext;
+import com.houdah.ruleengine.RuleModel;
 
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EOEntityClassDescription;
 import com.webobjects.eoaccess.EOProperty;
 import com.webobjects.eoaccess.EORelationship;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSValidation;
 import com.webobjects.foundation.NSValidation.ValidationException;
 
@@ -80,7 +84,10 @@ public class ValidatingEntityClassDescription extends EOEntityClassDescription i
 	protected static final String	ADDITIONAL_KEYS_KEY	= "additionalKeys";
 	
 	
-	protected static final String	METHOD_KEY			= "method";
+	protected static final String	CROSS_FIELD_KEYS_KEY	= "crossFieldKeys";
+	
+	
+	protected static final String	METHOD_KEY			= ValidatorMethods.METHOD_KEY;
 	
 	
 	protected static final String	PROPERTY_TYPE_KEY	= "propertyType";
@@ -96,6 +103,24 @@ public class ValidatingEntityClassDescription extends EOEntityClassDescription i
 	
 	
 	
+	// Private instance variables
+	
+	/**
+	 * The validation model the cached plans were resolved with.
+	 */
+	private transient RuleModel				plannedModel;
+	
+	
+	private transient boolean				isPlannable;
+	
+	
+	/**
+	 * Validation plans keyed by task and property key.
+	 */
+	private transient NSMutableDictionary	validationPlans;
+	
+	
+	
 	
 	// Constructor
 	
@@ -150,11 +175,57 @@ public class ValidatingEntityClassDescription extends EOEntityClassDescription i
 	}
 	
 	
+	public NSArray crossFieldKeys(ValidatingRecord record)
+	{
+		ValidatingEditingContext editingContext = record.validatingEditingContext();
+		RuleContext validationContext = editingContext.validationContext();
+		NSArray crossFieldKeys = (NSArray) validationContext
+				.valueForKey(ValidatingEntityClassDescription.CROSS_FIELD_KEYS_KEY);
+		
+		return (crossFieldKeys != null) ? crossFieldKeys : NSArray.EmptyArray;
+	}
+	
+	
 	public Object validateValueForKey(ValidatingRecord record, Object value, String key)
 			throws ValidationException
 	{
+		ValidationContext localContext = createLocalContext(record, value, key);
+		ValidationPlan plan = validationPlan(localContext, key);
+		
+		if (plan != null) {
+			return validateValueWithPlan(record, key, value, plan, localContext);
+		}
+		
 		Object validatedValue = value;
+		NSArray ruleNames = localContext
+				.allPossibleValuesUniquedByPriorityForKey(ValidatingEntityClassDescription.RULE_NAME_KEY);
+		int rCount = ruleNames.count();
 		
+		for (int r = rCount - 1; r >= 0; r--) {
+			String ruleName = (String) ruleNames.objectAtIndex(r);
+			Object newValue = validateValueForRule(record, key, validatedValue, ruleName,
+					localContext);
+			
+			if (newValue != validatedValue) {
+				validatedValue = newValue;
+				
+				localContext.takeValueForKey(validatedValue,
+						ValidatingEntityClassDescription.VALUE_KEY);
+			}
+		}
+		
+		return validatedValue;
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	/**
+	 * Creates the context the validation rules for a value are evaluated in.
+	 */
+	protected ValidationContext createLocalContext(ValidatingRecord record, Object value, String key)
+	{
 		ValidatingEditingContext editingContext = record.validatingEditingContext();
 		RuleContext validationContext = editingContext.validationContext();
 		ValidationContext localContext = new ValidationContext(validationContext);
@@ -187,14 +258,70 @@ public class ValidatingEntityClassDescription extends EOEntityClassDescription i
 			}
 		}
 		
-		NSArray ruleNames = localContext
-				.allPossibleValuesUniquedByPriorityForKey(ValidatingEntityClassDescription.RULE_NAME_KEY);
-		int rCount = ruleNames.count();
+		return localContext;
+	}
+	
+	
+	/**
+	 * Looks up the validation plan for a key in the current task, resolving it
+	 * on first use.
+	 * 
+	 * @param localContext
+	 *            a context as returned by createLocalContext()
+	 * @return the plan, null if the validation model does not allow for plans
+	 */
+	protected ValidationPlan validationPlan(RuleContext localContext, String key)
+	{
+		RuleModel model = localContext.model();
+		Object task = localContext.valueForKey(ValidatingRecord.TASK_KEY);
+		NSArray planKey = new NSArray(new Object[] {
+				(task != null) ? task : NSKeyValueCoding.NullValue, key });
+		ValidationPlan plan;
 		
-		for (int r = rCount - 1; r >= 0; r--) {
-			String ruleName = (String) ruleNames.objectAtIndex(r);
-			Object newValue = validateValueForRule(record, key, validatedValue, ruleName,
-					localContext);
+		synchronized (this) {
+			if (model != this.plannedModel) {
+				this.plannedModel = model;
+				this.isPlannable = ValidationPlan.isPlannable(model);
+				this.validationPlans = new NSMutableDictionary();
+			}
+			
+			if (!this.isPlannable) {
+				return null;
+			}
+			
+			plan = (ValidationPlan) this.validationPlans.objectForKey(planKey);
+		}
+		
+		if (plan == null) {
+			plan = new ValidationPlan(localContext);
+			
+			synchronized (this) {
+				if (model == this.plannedModel) {
+					this.validationPlans.setObjectForKey(plan, planKey);
+				}
+			}
+		}
+		
+		return plan;
+	}
+	
+	
+	protected Object validateValueWithPlan(ValidatingRecord record, String key, Object value,
+			ValidationPlan plan, ValidationContext localContext)
+			throws NSValidation.ValidationException
+	{
+		Object validatedValue = value;
+		NSArray steps = plan.steps();
+		int sCount = steps.count();
+		
+		for (int s = 0; s < sCount; s++) {
+			ValidationPlan.Step step = (ValidationPlan.Step) steps.objectAtIndex(s);
+			
+			localContext.takeValueForKey(step.ruleName(),
+					ValidatingEntityClassDescription.RULE_NAME_KEY);
+			
+			Object newValue = invokeValidator(record, key, validatedValue, step.ruleName(), step
+					.method(), localContext);
 			
 			if (newValue != validatedValue) {
 				validatedValue = newValue;
@@ -208,9 +335,6 @@ public class ValidatingEntityClassDescription extends EOEntityClassDescription i
 	}
 	
 	
-	
-	// Protected instance methods
-	
 	protected Object validateValueForRule(ValidatingRecord record, String key, Object value,
 			String ruleName, RuleContext validationContext) throws NSValidation.ValidationException
 	{
@@ -222,20 +346,47 @@ public class ValidatingEntityClassDescription extends EOEntityClassDescription i
 		String methodDescription = (String) validationContext
 				.valueForKey(ValidatingEntityClassDescription.METHOD_KEY);
 		
+		return invokeValidator(record, key, value, ruleName, methodDescription, validationContext);
+	}
+	
+	
+	/**
+	 * Runs a validator method.
+	 * 
+	 * @param methodDescription
+	 *            the method as "className#methodName"
+	 */
+	protected Object invokeValidator(ValidatingRecord record, String key, Object value,
+			String ruleName, String methodDescription, RuleContext validationContext)
+			throws NSValidation.ValidationException
+	{
+		Method method = null;
+		
 		if (methodDescription != null) {
-			int hashIndex = methodDescription.lastIndexOf("#");
-			String className = methodDescription.substring(0, hashIndex);
-			String methodName = methodDescription.substring(hashIndex + 1);
-			
 			try {
-				Class ruleClass = Class.forName(className);
-				Method method = ruleClass.getMethod(methodName,
-						new Class[] { ValidatingRecord.class, String.class, Object.class,
-								ValidationContext.class });
-				
-				return method.invoke(ruleClass, new Object[] { record, key, value,
-						validationContext });
-				
+				method = ValidatorMethods.methodForDescription(methodDescription);
+			} catch (IllegalArgumentException iae) {
+				throw new ForwardException(iae);
+			}
+		}
+		
+		return invokeValidator(record, key, value, ruleName, method, validationContext);
+	}
+	
+	
+	/**
+	 * Runs a resolved validator method.
+	 * 
+	 * @param method
+	 *            the static validator method, null if none is declared
+	 */
+	protected Object invokeValidator(ValidatingRecord record, String key, Object value,
+			String ruleName, Method method, RuleContext validationContext)
+			throws NSValidation.ValidationException
+	{
+		if (method != null) {
+			try {
+				return method.invoke(null, new Object[] { record, key, value, validationContext });
 			} catch (InvocationTargetException ite) {
 				Throwable targetException = ite.getTargetException();
 				
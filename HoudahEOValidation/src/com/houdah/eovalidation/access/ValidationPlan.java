@@ -0,0 +1,233 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.eovalidation.access;
+
+import java.lang.reflect.Method;
+import java.util.BitSet;
+
+import com.houdah.eovalidation.control.ValidatingRecord;
+import com.houdah.eovalidation.control.ValidatorMethods;
+import com.houdah.foundation.ForwardException;
+import com.houdah.ruleengine.DependencyGraph;
+import com.houdah.ruleengine.KeyTable;
+import com.houdah.ruleengine.RuleContext;
+import com.houdah.ruleengine.RuleModel;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Ordered validator invocations for one property of an entity.<br/>
+ * 
+ * Resolves the rule names and validator methods once for a given entity,
+ * key and task. Validating a value then runs the validators directly,
+ * without inferring ruleName and method for each field.<br/>
+ * 
+ * This is only correct if ruleName and method depend on no other keys than
+ * the PLAN_KEYS. isPlannable() checks this against the dependency graph of a
+ * validation model. Validation falls back to inference when it fails.
+ */
+public class ValidationPlan
+{
+	// Public class constants
+	
+	/**
+	 * The context keys a validation plan may depend on. All but task and
+	 * ruleName derive from the entity and the validated key.
+	 */
+	public static final NSSet	PLAN_KEYS	= new NSSet(new Object[] {
+			ValidatingEntityClassDescription.ENTITY_NAME_KEY,
+			ValidatingEntityClassDescription.ENTITY_KEY,
+			ValidatingEntityClassDescription.KEY_KEY,
+			ValidatingEntityClassDescription.ATTRIBUTE_KEY,
+			ValidatingEntityClassDescription.RELATIONSHIP_KEY,
+			ValidatingEntityClassDescription.PROPERTY_TYPE_KEY,
+			ValidatingEntityClassDescription.RULE_NAME_KEY, ValidatingRecord.TASK_KEY });
+	
+	
+	
+	// Private instance variables
+	
+	private NSArray				steps;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param localContext
+	 *            a validation context fed with the entity and key to plan for
+	 */
+	public ValidationPlan(RuleContext localContext)
+	{
+		NSArray ruleNames = localContext
+				.allPossibleValuesUniquedByPriorityForKey(ValidatingEntityClassDescription.RULE_NAME_KEY);
+		int rCount = ruleNames.count();
+		NSMutableArray steps = new NSMutableArray(rCount);
+		
+		for (int r = rCount - 1; r >= 0; r--) {
+			String ruleName = (String) ruleNames.objectAtIndex(r);
+			
+			localContext.takeValueForKey(ruleName, ValidatingEntityClassDescription.RULE_NAME_KEY);
+			
+			String methodDescription = (String) localContext
+					.valueForKey(ValidatingEntityClassDescription.METHOD_KEY);
+			
+			steps.addObject(new Step(ruleName, methodDescription));
+		}
+		
+		localContext.takeValueForKey(null, ValidatingEntityClassDescription.RULE_NAME_KEY);
+		
+		this.steps = steps.immutableClone();
+	}
+	
+	
+	
+	// Public accessors
+	
+	/**
+	 * The validators to run, in order.
+	 * 
+	 * @return an array of Step objects
+	 */
+	public NSArray steps()
+	{
+		return this.steps;
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Determines whether validation plans may be cached for a validation
+	 * model. The inferred values of ruleName and method must not depend on
+	 * any stored value other than the PLAN_KEYS, e.g. on the validated value
+	 * or object.
+	 */
+	public static boolean isPlannable(RuleModel model)
+	{
+		KeyTable keyTable = model.keyTable();
+		DependencyGraph dependencyGraph = model.dependencyGraph();
+		int ruleNameId = keyTable.idForKey(ValidatingEntityClassDescription.RULE_NAME_KEY);
+		int methodId = keyTable.idForKey(ValidatingEntityClassDescription.METHOD_KEY);
+		
+		if (((ruleNameId >= 0) && dependencyGraph.isVolatile(ruleNameId))
+				|| ((methodId >= 0) && dependencyGraph.isVolatile(methodId))) {
+			return false;
+		}
+		
+		int kCount = keyTable.count();
+		
+		for (int k = 0; k < kCount; k++) {
+			String key = keyTable.keyForId(k);
+			
+			if (PLAN_KEYS.containsObject(key) || (model.candidateRulesForKey(key) != null)) {
+				// Inferred keys are checked through the keys they depend on
+				continue;
+			}
+			
+			BitSet dependantKeys = dependencyGraph.dependantKeys(k);
+			
+			if (dependantKeys != null) {
+				if (((ruleNameId >= 0) && dependantKeys.get(ruleNameId))
+						|| ((methodId >= 0) && dependantKeys.get(methodId))) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	
+	
+	// Public inner classes
+	
+	public static class Step
+	{
+		private String	ruleName;
+		
+		
+		private String	methodDescription;
+		
+		
+		private Method	method;
+		
+		
+		
+		
+		protected Step(String ruleName, String methodDescription)
+		{
+			this.ruleName = ruleName;
+			this.methodDescription = methodDescription;
+			
+			if (methodDescription != null) {
+				try {
+					this.method = ValidatorMethods.methodForDescription(methodDescription);
+				} catch (IllegalArgumentException iae) {
+					throw new ForwardException(iae);
+				}
+			}
+		}
+		
+		
+		public String ruleName()
+		{
+			return this.ruleName;
+		}
+		
+		
+		/**
+		 * The validator method as "className#methodName".
+		 * 
+		 * @return the description, null if none is declared
+		 */
+		public String methodDescription()
+		{
+			return this.methodDescription;
+		}
+		
+		
+		/**
+		 * The resolved validator method.
+		 * 
+		 * @return the method, null if none is declared
+		 */
+		public Method method()
+		{
+			return this.method;
+		}
+	}
+}
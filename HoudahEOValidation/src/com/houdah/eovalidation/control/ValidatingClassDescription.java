@@ -29,6 +29,7 @@
 package com.houdah.eovalidation.control;
 
 
+import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSValidation.ValidationException;
 
 public interface ValidatingClassDescription
@@ -39,4 +40,11 @@ public interface ValidatingClassDescription
 	public Object validateValueForKey(ValidatingRecord record, Object value, String key)
 			throws ValidationException;
 	
+	
+	/**
+	 * Keys whose validation depends on other properties of the record. These
+	 * are validated even when unchanged.
+	 */
+	public NSArray crossFieldKeys(ValidatingRecord record);
+	
 }
\ No newline at end of file
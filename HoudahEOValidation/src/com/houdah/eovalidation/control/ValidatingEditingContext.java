@@ -28,25 +28,102 @@
 
 package com.houdah.eovalidation.control;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import com.houdah.eocontrol.EditingContext;
+import com.houdah.foundation.ForwardException;
 import com.houdah.ruleengine.RuleContext;
 import com.houdah.ruleengine.RuleModel;
-import com.houdah.ruleengine.RuleModelUtilities;
+import com.houdah.ruleengine.RuleModelLoader;
 
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOFaultHandler;
 import com.webobjects.eocontrol.EOObjectStore;
+import com.webobjects.eocontrol.EOValidation;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSSet;
+import com.webobjects.foundation.NSValidation;
 
+/**
+ * Editing context validating its objects through the rules of the validation
+ * model.<br/>
+ * 
+ * With parallel validation enabled, validator methods are called on threads
+ * that do not hold the lock on this editing context. They must then neither
+ * modify objects nor fire faults. Changes are validated on the calling thread
+ * whenever an object about to be validated has a relationship that is still
+ * a fault, and whenever incremental validation is enabled, as determining
+ * the changed properties reads the snapshots of the editing context.
+ */
 public class ValidatingEditingContext extends EditingContext
 {
+	// Public class constants
+	
+	/**
+	 * System property enabling parallel validation for all editing contexts.
+	 */
+	public static final String	PARALLEL_VALIDATION_PROPERTY	= "HoudahEOValidation.parallelValidation";
+	
+	
+	/**
+	 * System property setting the number of validation threads. Defaults to
+	 * the number of available processors.
+	 */
+	public static final String	VALIDATION_THREADS_PROPERTY		= "HoudahEOValidation.validationThreads";
+	
+	
+	/**
+	 * System property enabling incremental validation for all editing
+	 * contexts.
+	 */
+	public static final String	INCREMENTAL_VALIDATION_PROPERTY	= "HoudahEOValidation.incrementalValidation";
+	
+	
+	
+	// Protected class constants
+	
+	/**
+	 * Change sets with fewer inserted and updated objects are validated on the
+	 * calling thread.
+	 */
+	protected static final int	MINIMUM_PARALLEL_COUNT			= 64;
+	
+	
+	/**
+	 * Number of tasks each validation thread gets on average. Smaller tasks
+	 * even out the load when validation costs differ between objects.
+	 */
+	protected static final int	TASKS_PER_THREAD				= 4;
+	
+	
+	
 	// Private class constants
 	
-	private static final long	serialVersionUID	= -5904849962942051953L;
+	private static final long	serialVersionUID				= -5904849962942051953L;
 	
 	
 	
 	// Protected class variables
 	
-	protected static RuleModel	validationModel;
+	protected static RuleModelLoader	validationModelLoader;
+	
+	
+	/**
+	 * Threads shared by all editing contexts validating in parallel.
+	 */
+	protected static ExecutorService	validationExecutor;
+	
+	
+	/**
+	 * The last validation model whose validator methods were resolved.
+	 */
+	protected static RuleModel			checkedRuleModel;
 	
 	
 	
@@ -55,6 +132,19 @@ public class ValidatingEditingContext extends EditingContext
 	protected RuleContext		validationContext;
 	
 	
+	protected boolean			parallelValidationEnabled;
+	
+	
+	protected boolean			incrementalValidationEnabled;
+	
+	
+	/**
+	 * Per-thread child of the validation context used while validating in
+	 * parallel.
+	 */
+	protected transient ThreadLocal	workerValidationContext;
+	
+	
 	
 	
 	// Constructors
@@ -74,6 +164,56 @@ public class ValidatingEditingContext extends EditingContext
 	
 	
 	
+	// Public accessors
+	
+	public boolean isParallelValidationEnabled()
+	{
+		return this.parallelValidationEnabled;
+	}
+	
+	
+	/**
+	 * Enables validating inserted and updated objects on several threads when
+	 * saving.<br/>
+	 * 
+	 * Only enable this when the validation of an object does not modify any
+	 * object and does not fire faults, e.g. when relationships were
+	 * prefetched. The objects are read by the validation threads while the
+	 * saving thread holds the lock on this editing context.<br/>
+	 * 
+	 * Changes are validated on the calling thread nonetheless when an object
+	 * has a relationship that is still a fault, when incremental validation
+	 * is enabled, or when a validation thread comes across a value that
+	 * validation would replace.
+	 */
+	public void setParallelValidationEnabled(boolean parallelValidationEnabled)
+	{
+		this.parallelValidationEnabled = parallelValidationEnabled;
+	}
+	
+	
+	public boolean isIncrementalValidationEnabled()
+	{
+		return this.incrementalValidationEnabled;
+	}
+	
+	
+	/**
+	 * Enables validating only the changed properties of updated objects.<br/>
+	 * 
+	 * Properties listed by the crossFieldKeys rule and the additional keys
+	 * are validated nonetheless. Only enable this when the validation rules
+	 * of any other property do not depend on the values of further
+	 * properties. Changes are then validated on the calling thread, even with
+	 * parallel validation enabled.
+	 */
+	public void setIncrementalValidationEnabled(boolean incrementalValidationEnabled)
+	{
+		this.incrementalValidationEnabled = incrementalValidationEnabled;
+	}
+	
+	
+	
 	// Public instance methods
 	
 	/**
@@ -84,36 +224,404 @@ public class ValidatingEditingContext extends EditingContext
 	 */
 	public RuleContext validationContext()
 	{
+		if (this.workerValidationContext != null) {
+			RuleContext workerContext = (RuleContext) this.workerValidationContext.get();
+			
+			if (workerContext != null) {
+				return workerContext;
+			}
+		}
+		
 		return this.validationContext;
 	}
 	
 	
+	/**
+	 * Validates the pending changes.<br/>
+	 * 
+	 * With parallel validation enabled, large sets of inserted and updated
+	 * objects are spread over the validation threads. Each thread validates
+	 * in its own child of the validation context. Deleted objects are
+	 * validated on the calling thread. So is everything when validation
+	 * threads could change the objects. Validation exceptions are reported in
+	 * the order of deletedObjects(), insertedObjects() and updatedObjects(),
+	 * no matter which thread raised them.
+	 * 
+	 * @see com.webobjects.eocontrol.EOEditingContext#validateChangesForSave()
+	 */
+	public void validateChangesForSave()
+	{
+		NSArray insertedObjects = insertedObjects();
+		NSArray updatedObjects = updatedObjects();
+		
+		if (!isParallelValidationEnabled() || isIncrementalValidationEnabled()
+				|| (insertedObjects.count() + updatedObjects.count() < MINIMUM_PARALLEL_COUNT)
+				|| !canValidateInParallel(insertedObjects) || !canValidateInParallel(updatedObjects)) {
+			super.validateChangesForSave();
+			
+			return;
+		}
+		
+		NSArray parallelExceptions = validateInParallel(insertedObjects, updatedObjects);
+		
+		if (parallelExceptions == null) {
+			super.validateChangesForSave();
+			
+			return;
+		}
+		
+		NSMutableArray validationExceptions = new NSMutableArray();
+		NSArray deletedObjects = deletedObjects();
+		int dCount = deletedObjects.count();
+		
+		for (int d = 0; d < dCount; d++) {
+			try {
+				((EOValidation) deletedObjects.objectAtIndex(d)).validateForDelete();
+			} catch (NSValidation.ValidationException ve) {
+				validationExceptions.addObject(ve);
+			}
+		}
+		
+		validationExceptions.addObjectsFromArray(parallelExceptions);
+		
+		int vCount = validationExceptions.count();
+		
+		if (vCount == 1) {
+			throw (NSValidation.ValidationException) validationExceptions.objectAtIndex(0);
+		} else if (vCount > 1) {
+			throw NSValidation.ValidationException
+					.aggregateExceptionWithExceptions(validationExceptions);
+		}
+	}
+	
+	
 	
 	// Protected instance methods
 	
 	protected void initValidatingEditingContext()
 	{
 		this.validationContext = new RuleContext(ruleModel());
+		this.parallelValidationEnabled = Boolean.getBoolean(PARALLEL_VALIDATION_PROPERTY);
+		this.incrementalValidationEnabled = Boolean.getBoolean(INCREMENTAL_VALIDATION_PROPERTY);
+	}
+	
+	
+	/**
+	 * Determines whether objects may be validated off the calling thread.
+	 * Validating a relationship that is still a fault, or reading the
+	 * properties of its destination, would fire it into this editing context
+	 * without holding its lock.
+	 */
+	protected boolean canValidateInParallel(NSArray objects)
+	{
+		int oCount = objects.count();
+		
+		for (int o = 0; o < oCount; o++) {
+			Object object = objects.objectAtIndex(o);
+			
+			if (!(object instanceof EOEnterpriseObject)) {
+				return false;
+			}
+			
+			EOEnterpriseObject eo = (EOEnterpriseObject) object;
+			
+			if (hasFault(eo, eo.toOneRelationshipKeys())
+					|| hasFault(eo, eo.toManyRelationshipKeys())) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Tells whether any of the relationships of an object is still a fault.
+	 */
+	protected boolean hasFault(EOEnterpriseObject eo, NSArray relationshipKeys)
+	{
+		int kCount = relationshipKeys.count();
+		
+		for (int k = 0; k < kCount; k++) {
+			if (EOFaultHandler.isFault(eo.storedValueForKey((String) relationshipKeys
+					.objectAtIndex(k)))) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	/**
+	 * Tells whether the current thread is a validation thread working for
+	 * this editing context.
+	 */
+	protected boolean isValidationThread()
+	{
+		return ((this.workerValidationContext != null) && (this.workerValidationContext.get() != null));
+	}
+	
+	
+	/**
+	 * Validates objects for insertion and objects for update on the shared
+	 * validation threads.
+	 * 
+	 * @return the validation exceptions raised, in the order of the objects,
+	 *         null if a validation thread came across a value to replace. The
+	 *         changes then need to be validated on the calling thread.
+	 */
+	protected NSArray validateInParallel(NSArray insertedObjects, NSArray updatedObjects)
+	{
+		int iCount = insertedObjects.count();
+		int oCount = iCount + updatedObjects.count();
+		Object[] objects = new Object[oCount];
+		NSValidation.ValidationException[] exceptions = new NSValidation.ValidationException[oCount];
+		ExecutorService executor = ValidatingEditingContext.validationExecutor();
+		int tCount = Math.min(oCount, ValidatingEditingContext.validationThreadCount()
+				* TASKS_PER_THREAD);
+		Future[] futures = new Future[tCount];
+		
+		for (int o = 0; o < oCount; o++) {
+			objects[o] = (o < iCount) ? insertedObjects.objectAtIndex(o) : updatedObjects
+					.objectAtIndex(o - iCount);
+		}
+		
+		synchronized (this) {
+			if (this.workerValidationContext == null) {
+				this.workerValidationContext = new ThreadLocal();
+			}
+		}
+		
+		for (int t = 0; t < tCount; t++) {
+			int start = (int) ((long) oCount * t / tCount);
+			int end = (int) ((long) oCount * (t + 1) / tCount);
+			
+			futures[t] = executor.submit(new ValidationTask(this, objects, iCount, start, end,
+					exceptions));
+		}
+		
+		// Wait for all tasks, so that no thread reads the objects once we return
+		Throwable failure = null;
+		boolean interrupted = false;
+		boolean coerced = false;
+		
+		for (int t = 0; t < tCount; t++) {
+			try {
+				futures[t].get();
+			} catch (InterruptedException ie) {
+				t--;
+				interrupted = true;
+				
+				if (failure == null) {
+					failure = ie;
+				}
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof CoercionException) {
+					coerced = true;
+				} else if (failure == null) {
+					failure = ee.getCause();
+				}
+			}
+		}
+		
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new ForwardException(failure);
+		} else if (coerced) {
+			return null;
+		}
+		
+		NSMutableArray validationExceptions = new NSMutableArray();
+		
+		for (int o = 0; o < oCount; o++) {
+			if (exceptions[o] != null) {
+				validationExceptions.addObject(exceptions[o]);
+			}
+		}
+		
+		return validationExceptions;
 	}
 	
 	
 	
 	// Protected class methods
 	
+	/**
+	 * The current validation model. Editing contexts created after a reload
+	 * of the model files use the reloaded model.<br/>
+	 * 
+	 * The validator methods of a newly loaded model are resolved right away,
+	 * so that a missing method fails here rather than when saving.
+	 */
 	protected static RuleModel ruleModel()
 	{
-		if (ValidatingEditingContext.validationModel == null) {
+		RuleModel model = ValidatingEditingContext.validationModelLoader().model();
+		
+		if (model != ValidatingEditingContext.checkedRuleModel) {
+			ValidatorMethods.checkModel(model);
+			
+			ValidatingEditingContext.checkedRuleModel = model;
+		}
+		
+		return model;
+	}
+	
+	
+	protected static RuleModelLoader validationModelLoader()
+	{
+		if (ValidatingEditingContext.validationModelLoader == null) {
 			synchronized (ValidatingEditingContext.class) {
-				if (ValidatingEditingContext.validationModel == null) {
+				if (ValidatingEditingContext.validationModelLoader == null) {
 					NSSet includeFiles = new NSSet(new Object[] { "labels.dictionary" });
-					RuleModel newRuleModel = RuleModelUtilities.loadFromBundles("valid", null,
-							null, includeFiles);
 					
-					ValidatingEditingContext.validationModel = newRuleModel;
+					ValidatingEditingContext.validationModelLoader = new RuleModelLoader("valid",
+							null, null, includeFiles);
+				}
+			}
+		}
+		
+		return ValidatingEditingContext.validationModelLoader;
+	}
+	
+	
+	protected static int validationThreadCount()
+	{
+		return Math.max(1, Integer.getInteger(VALIDATION_THREADS_PROPERTY,
+				Runtime.getRuntime().availableProcessors()).intValue());
+	}
+	
+	
+	protected static ExecutorService validationExecutor()
+	{
+		if (ValidatingEditingContext.validationExecutor == null) {
+			synchronized (ValidatingEditingContext.class) {
+				if (ValidatingEditingContext.validationExecutor == null) {
+					ValidatingEditingContext.validationExecutor = Executors.newFixedThreadPool(
+							ValidatingEditingContext.validationThreadCount(), new ThreadFactory() {
+								public Thread newThread(Runnable runnable)
+								{
+									Thread thread = new Thread(runnable, "HoudahEOValidation");
+									
+									thread.setDaemon(true);
+									
+									return thread;
+								}
+							});
+				}
+			}
+		}
+		
+		return ValidatingEditingContext.validationExecutor;
+	}
+	
+	
+	
+	
+	// Protected inner classes
+	
+	/**
+	 * Validates a range of objects on a validation thread.
+	 */
+	protected static class ValidationTask implements Callable
+	{
+		private ValidatingEditingContext			editingContext;
+		
+		
+		private Object[]							objects;
+		
+		
+		private int									insertedCount;
+		
+		
+		private int									start;
+		
+		
+		private int									end;
+		
+		
+		private NSValidation.ValidationException[]	exceptions;
+		
+		
+		
+		
+		/**
+		 * Designated constructor.
+		 * 
+		 * @param objects
+		 *            the objects to validate, inserted objects first
+		 * @param insertedCount
+		 *            the number of inserted objects
+		 * @param start
+		 *            index of the first object to validate
+		 * @param end
+		 *            index past the last object to validate
+		 * @param exceptions
+		 *            array receiving the exception raised for each object
+		 */
+		protected ValidationTask(ValidatingEditingContext editingContext, Object[] objects,
+				int insertedCount, int start, int end, NSValidation.ValidationException[] exceptions)
+		{
+			this.editingContext = editingContext;
+			this.objects = objects;
+			this.insertedCount = insertedCount;
+			this.start = start;
+			this.end = end;
+			this.exceptions = exceptions;
+		}
+		
+		
+		public Object call()
+		{
+			ThreadLocal workerContext = this.editingContext.workerValidationContext;
+			
+			workerContext.set(new RuleContext(this.editingContext.validationContext));
+			
+			try {
+				for (int o = this.start; o < this.end; o++) {
+					EOValidation object = (EOValidation) this.objects[o];
+					
+					try {
+						if (o < this.insertedCount) {
+							object.validateForInsert();
+						} else {
+							object.validateForUpdate();
+						}
+					} catch (NSValidation.ValidationException ve) {
+						this.exceptions[o] = ve;
+					}
 				}
+			} finally {
+				workerContext.set(null);
 			}
+			
+			return null;
 		}
+	}
+	
+	
+	
+	/**
+	 * Raised on a validation thread instead of replacing a property value by
+	 * its validated value. Aborts the task.
+	 */
+	protected static class CoercionException extends RuntimeException
+	{
+		private static final long	serialVersionUID	= -2763307215574418762L;
+		
 		
-		return ValidatingEditingContext.validationModel;
+		
+		
+		protected CoercionException(String key)
+		{
+			super("Validation replaces the value of " + key);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -32,7 +32,10 @@ import com.houdah.eocontrol.GenericRecord;
 import com.houdah.ruleengine.RuleContext;
 
 import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableSet;
 import com.webobjects.foundation.NSValidation;
 
 public class ValidatingRecord extends GenericRecord
@@ -157,7 +160,11 @@ public class ValidatingRecord extends GenericRecord
 		validationContext.takeValueForKey(entityName(), ValidatingRecord.ENTITY_NAME_KEY);
 		
 		try {
-			super.validateForSave();
+			if (validatesChangedKeysOnly()) {
+				validateChangedKeys();
+			} else {
+				super.validateForSave();
+			}
 		} catch (NSValidation.ValidationException ve) {
 			validationExceptions.addObject(ve);
 		}
@@ -231,6 +238,86 @@ public class ValidatingRecord extends GenericRecord
 		
 		validatedValue = super.validateValueForKey(validatedValue, key);
 		
+		if ((validatedValue != value) && validatingEditingContext().isValidationThread()) {
+			// Only the thread holding the editing context lock may change objects
+			throw new ValidatingEditingContext.CoercionException(key);
+		}
+		
 		return validatedValue;
 	}
+	
+	
+	
+	// Protected instance methods
+	
+	/**
+	 * Determines whether validateForSave() may skip unchanged properties.
+	 * This is the case for objects already saved to the database, when the
+	 * editing context has incremental validation enabled.
+	 */
+	protected boolean validatesChangedKeysOnly()
+	{
+		return (validatingEditingContext().isIncrementalValidationEnabled() && !isNew());
+	}
+	
+	
+	/**
+	 * Counterpart to EOCustomObject.validateForSave() limited to the
+	 * properties changed since the last saved snapshot and to the cross-field
+	 * keys of the class description.
+	 */
+	protected void validateChangedKeys() throws ValidationException
+	{
+		NSMutableArray validationExceptions = new NSMutableArray();
+		EOClassDescription classDescription = classDescription();
+		NSDictionary changes = changes();
+		NSMutableSet validatedKeys = new NSMutableSet();
+		
+		if (changes != null) {
+			validatedKeys.addObjectsFromArray(changes.allKeys());
+		}
+		
+		if (classDescription instanceof ValidatingClassDescription) {
+			ValidatingClassDescription vClassDescription = (ValidatingClassDescription) classDescription;
+			
+			validatedKeys.addObjectsFromArray(vClassDescription.crossFieldKeys(this));
+		}
+		
+		try {
+			classDescription.validateObjectForSave(this);
+		} catch (NSValidation.ValidationException ve) {
+			validationExceptions.addObject(ve);
+		}
+		
+		// Follow the order of the properties for reproducible messages
+		NSArray propertyKeys = allPropertyKeys();
+		int pCount = propertyKeys.count();
+		
+		for (int p = 0; p < pCount; p++) {
+			String key = (String) propertyKeys.objectAtIndex(p);
+			
+			if (validatedKeys.containsObject(key)) {
+				Object value = valueForKey(key);
+				
+				try {
+					Object validatedValue = validateValueForKey(value, key);
+					
+					if (validatedValue != value) {
+						takeStoredValueForKey(validatedValue, key);
+					}
+				} catch (NSValidation.ValidationException ve) {
+					validationExceptions.addObject(ve);
+				}
+			}
+		}
+		
+		int vCount = validationExceptions.count();
+		
+		if (vCount == 1) {
+			throw (NSValidation.ValidationException) validationExceptions.objectAtIndex(0);
+		} else if (vCount > 1) {
+			throw NSValidation.ValidationException
+					.aggregateExceptionWithExceptions(validationExceptions);
+		}
+	}
 }
\ No newline at end of file
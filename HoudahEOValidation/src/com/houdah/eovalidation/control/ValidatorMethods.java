@@ -0,0 +1,189 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.eovalidation.control;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import com.houdah.ruleengine.Rule;
+import com.houdah.ruleengine.RuleModel;
+import com.houdah.ruleengine.SimpleAssignment;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Cache of the validator methods named by validation rules.<br/>
+ * 
+ * A method description has the form "className#methodName". It names a
+ * public static method taking a ValidatingRecord, the key, the value and a
+ * ValidationContext. Each description is resolved once.
+ */
+public class ValidatorMethods
+{
+	// Public class constants
+	
+	/**
+	 * The right-hand side key of the rules naming validator methods.
+	 */
+	public static final String			METHOD_KEY			= "method";
+	
+	
+	/**
+	 * Parameter types of validator methods.
+	 */
+	public static final Class[]			SIGNATURE			= new Class[] { ValidatingRecord.class,
+			String.class, Object.class, ValidationContext.class };
+	
+	
+	
+	// Private class variables
+	
+	private static NSMutableDictionary	methodsByDescription	= new NSMutableDictionary();
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor
+	 */
+	private ValidatorMethods()
+	{
+		throw new IllegalStateException("Do not instantiate this utility class");
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Resolves a method description.
+	 * 
+	 * @param methodDescription
+	 *            the method as "className#methodName"
+	 * @return the method
+	 * @throws IllegalArgumentException
+	 *             if the description does not name a validator method
+	 */
+	public static Method methodForDescription(String methodDescription)
+	{
+		Method method;
+		
+		synchronized (ValidatorMethods.methodsByDescription) {
+			method = (Method) ValidatorMethods.methodsByDescription.objectForKey(methodDescription);
+		}
+		
+		if (method == null) {
+			method = ValidatorMethods.resolveMethod(methodDescription);
+			
+			synchronized (ValidatorMethods.methodsByDescription) {
+				ValidatorMethods.methodsByDescription.setObjectForKey(method, methodDescription);
+			}
+		}
+		
+		return method;
+	}
+	
+	
+	/**
+	 * Resolves the validator methods named by the rules of a validation model.
+	 * Methods assigned from the context rather than as constants can only be
+	 * resolved when used.
+	 * 
+	 * @throws IllegalStateException
+	 *             listing all descriptions that could not be resolved
+	 */
+	public static void checkModel(RuleModel model)
+	{
+		NSArray rules = model.candidateRulesForKey(METHOD_KEY);
+		NSMutableArray failures = new NSMutableArray();
+		
+		if (rules != null) {
+			int rCount = rules.count();
+			
+			for (int r = 0; r < rCount; r++) {
+				Rule rule = (Rule) rules.objectAtIndex(r);
+				
+				if (rule.rhs() instanceof SimpleAssignment) {
+					Object value = ((SimpleAssignment) rule.rhs()).value();
+					
+					if (value instanceof String) {
+						try {
+							ValidatorMethods.methodForDescription((String) value);
+						} catch (IllegalArgumentException iae) {
+							failures.addObject(iae.getMessage());
+						}
+					}
+				}
+			}
+		}
+		
+		if (failures.count() > 0) {
+			throw new IllegalStateException("Invalid validator methods in validation model: "
+					+ failures.componentsJoinedByString("; "));
+		}
+	}
+	
+	
+	
+	// Protected class methods
+	
+	protected static Method resolveMethod(String methodDescription)
+	{
+		int hashIndex = methodDescription.lastIndexOf("#");
+		
+		if (hashIndex < 0) {
+			throw new IllegalArgumentException("Malformed validator method '"
+					+ methodDescription + "'");
+		}
+		
+		String className = methodDescription.substring(0, hashIndex);
+		String methodName = methodDescription.substring(hashIndex + 1);
+		
+		try {
+			Class validatorClass = Class.forName(className);
+			Method method = validatorClass.getMethod(methodName, SIGNATURE);
+			
+			if (!Modifier.isStatic(method.getModifiers())) {
+				throw new IllegalArgumentException("Validator method '" + methodDescription
+						+ "' is not static");
+			}
+			
+			return method;
+		} catch (ClassNotFoundException cnfe) {
+			throw new IllegalArgumentException("No class for validator method '"
+					+ methodDescription + "'");
+		} catch (NoSuchMethodException nsme) {
+			throw new IllegalArgumentException("No validator method '" + methodDescription + "'");
+		}
+	}
+}
@@ -34,7 +34,7 @@ import com.houdah.foundation.ForwardException;
 import com.houdah.foundation.utilities.StringUtilities;
 import com.houdah.ruleengine.RuleContext;
 import com.houdah.ruleengine.RuleModel;
-import com.houdah.ruleengine.RuleModelUtilities;
+import com.houdah.ruleengine.RuleModelLoader;
 
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
@@ -58,7 +58,7 @@ public class MessageFactory
 	private static MessageFactory	sharedInstance		= null;
 	
 	
-	private static RuleModel		messageModel;
+	private static RuleModelLoader	messageModelLoader;
 	
 	
 	
@@ -109,7 +109,7 @@ public class MessageFactory
 	 */
 	public String message(String messageKey, NSDictionary arguments)
 	{
-		RuleContext localContext = new RuleContext(this.messageContext);
+		RuleContext localContext = new RuleContext(messageModel(), this.messageContext);
 		
 		if (arguments != null) {
 			Enumeration keyEnumeration = arguments.keyEnumerator();
@@ -215,20 +215,23 @@ public class MessageFactory
 	
 	// Private class methods
 	
+	/**
+	 * The current message model. Messages are built using the latest model,
+	 * even if the model files were reloaded after this factory was created.
+	 */
 	private RuleModel messageModel()
 	{
-		if (MessageFactory.messageModel == null) {
+		if (MessageFactory.messageModelLoader == null) {
 			synchronized (MessageFactory.class) {
-				if (MessageFactory.messageModel == null) {
+				if (MessageFactory.messageModelLoader == null) {
 					NSSet includeFiles = new NSSet(new Object[] { "labels.dictionary" });
-					RuleModel newRuleModel = RuleModelUtilities.loadFromBundles("message", null,
-							null, includeFiles);
-										
-					MessageFactory.messageModel = newRuleModel;
+					
+					MessageFactory.messageModelLoader = new RuleModelLoader("message", null, null,
+							includeFiles);
 				}
 			}
 		}
 		
-		return MessageFactory.messageModel;
+		return MessageFactory.messageModelLoader.model();
 	}
 }
\ No newline at end of file
@@ -28,8 +28,7 @@
 
 package com.houdah.queryBlessing;
 
-import com.houdah.ruleengine.RuleModel;
-import com.houdah.ruleengine.RuleModelUtilities;
+import com.houdah.ruleengine.RuleModelLoader;
 import com.houdah.ruleengine.TracingRuleContext;
 
 public class BlessingContext extends TracingRuleContext
@@ -45,13 +44,13 @@ public class BlessingContext extends TracingRuleContext
 	
 	// Private class variables
 	
-	private static RuleModel	blessingRuleModel;
+	private static RuleModelLoader	blessingRuleModelLoader;
 	
 	
 	// Static initializer
 	
 	static {
-		blessingRuleModel = RuleModelUtilities.loadFromBundles("bless", null, null, null);
+		blessingRuleModelLoader = new RuleModelLoader("bless", null, null, null);
 	}
 	
 	
@@ -61,7 +60,7 @@ public class BlessingContext extends TracingRuleContext
 	
 	public BlessingContext(BlessingStatus status)
 	{
-		super(BlessingContext.blessingRuleModel);
+		super(BlessingContext.blessingRuleModelLoader.model());
 		
 		setStatus(status);
 	}
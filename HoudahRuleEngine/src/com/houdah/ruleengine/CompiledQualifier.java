@@ -0,0 +1,372 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyComparisonQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EONotQualifier;
+import com.webobjects.eocontrol.EOOrQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.eocontrol.EOQualifierVariable;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSSelector;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Rule left-hand side compiled for evaluation against a RuleContext.<br/>
+ * 
+ * The standard EOControl qualifiers are turned into a tree of evaluators
+ * holding their operands in arrays, their keys pre-split and their qualifier
+ * keys pre-computed. Equality tests against string constants skip the generic
+ * comparison support. Any other qualifier, such as BestMatchQualifier, is
+ * wrapped and evaluated through EOQualifier.evaluateWithObject().
+ */
+public abstract class CompiledQualifier
+{
+	// Private instance variables
+	
+	private NSSet	qualifierKeys;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 */
+	protected CompiledQualifier(EOQualifier qualifier)
+	{
+		this.qualifierKeys = qualifier.allQualifierKeys().immutableClone();
+	}
+	
+	
+	
+	// Public accessors
+	
+	/**
+	 * Pre-computed equivalent of EOQualifier.allQualifierKeys().
+	 */
+	public NSSet qualifierKeys()
+	{
+		return this.qualifierKeys;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	public abstract boolean evaluateWithContext(RuleContext context);
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Compiles a qualifier.
+	 * 
+	 * @param qualifier
+	 *            the qualifier to compile, may be null
+	 * @return the compiled qualifier, null if qualifier was null
+	 */
+	public static CompiledQualifier compile(EOQualifier qualifier)
+	{
+		if (qualifier == null) {
+			return null;
+		}
+		
+		Class qualifierClass = qualifier.getClass();
+		
+		if (qualifierClass == EOKeyValueQualifier.class) {
+			EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) qualifier;
+			
+			if (!(keyValueQualifier.value() instanceof EOQualifierVariable)) {
+				return new KeyValue(keyValueQualifier);
+			}
+		} else if (qualifierClass == EOKeyComparisonQualifier.class) {
+			return new KeyComparison((EOKeyComparisonQualifier) qualifier);
+		} else if (qualifierClass == EOAndQualifier.class) {
+			return new And((EOAndQualifier) qualifier);
+		} else if (qualifierClass == EOOrQualifier.class) {
+			return new Or((EOOrQualifier) qualifier);
+		} else if (qualifierClass == EONotQualifier.class) {
+			return new Not((EONotQualifier) qualifier);
+		}
+		
+		return new Interpreted(qualifier);
+	}
+	
+	
+	
+	// Protected class methods
+	
+	protected static CompiledQualifier[] compileAll(NSArray qualifiers)
+	{
+		int qCount = qualifiers.count();
+		CompiledQualifier[] compiledQualifiers = new CompiledQualifier[qCount];
+		
+		for (int q = 0; q < qCount; q++) {
+			compiledQualifiers[q] = CompiledQualifier.compile((EOQualifier) qualifiers
+					.objectAtIndex(q));
+		}
+		
+		return compiledQualifiers;
+	}
+	
+	
+	
+	
+	// Protected inner classes
+	
+	/**
+	 * Reads a key path from a context. Simple keys bypass key path parsing.
+	 */
+	protected static class KeySlot
+	{
+		private String	keyPath;
+		
+		
+		private boolean	isSimpleKey;
+		
+		
+		
+		
+		protected KeySlot(String keyPath)
+		{
+			this.keyPath = keyPath;
+			this.isSimpleKey = (keyPath.indexOf('.') < 0);
+		}
+		
+		
+		protected Object valueInContext(RuleContext context)
+		{
+			Object value = (this.isSimpleKey) ? context.valueForKey(this.keyPath) : context
+					.valueForKeyPath(this.keyPath);
+			
+			return (value != null) ? value : NSKeyValueCoding.NullValue;
+		}
+	}
+	
+	
+	
+	protected static class KeyValue extends CompiledQualifier
+	{
+		private KeySlot		keySlot;
+		
+		
+		private NSSelector	selector;
+		
+		
+		private Object		value;
+		
+		
+		private String		equalString;
+		
+		
+		
+		
+		protected KeyValue(EOKeyValueQualifier qualifier)
+		{
+			super(qualifier);
+			
+			this.keySlot = new KeySlot(qualifier.key());
+			this.selector = qualifier.selector();
+			this.value = qualifier.value();
+			
+			if (this.value == null) {
+				this.value = NSKeyValueCoding.NullValue;
+			}
+			
+			if ((this.value instanceof String)
+					&& EOQualifier.QualifierOperatorEqual.equals(this.selector)) {
+				this.equalString = (String) this.value;
+			}
+		}
+		
+		
+		public boolean evaluateWithContext(RuleContext context)
+		{
+			Object objectValue = this.keySlot.valueInContext(context);
+			
+			if ((this.equalString != null) && (objectValue instanceof String)) {
+				return this.equalString.equals(objectValue);
+			}
+			
+			return EOQualifier.ComparisonSupport.compareValues(objectValue, this.value,
+					this.selector);
+		}
+	}
+	
+	
+	
+	protected static class KeyComparison extends CompiledQualifier
+	{
+		private KeySlot		leftKeySlot;
+		
+		
+		private NSSelector	selector;
+		
+		
+		private KeySlot		rightKeySlot;
+		
+		
+		
+		
+		protected KeyComparison(EOKeyComparisonQualifier qualifier)
+		{
+			super(qualifier);
+			
+			this.leftKeySlot = new KeySlot(qualifier.leftKey());
+			this.selector = qualifier.selector();
+			this.rightKeySlot = new KeySlot(qualifier.rightKey());
+		}
+		
+		
+		public boolean evaluateWithContext(RuleContext context)
+		{
+			return EOQualifier.ComparisonSupport.compareValues(this.leftKeySlot
+					.valueInContext(context), this.rightKeySlot.valueInContext(context),
+					this.selector);
+		}
+	}
+	
+	
+	
+	protected static class And extends CompiledQualifier
+	{
+		private CompiledQualifier[]	qualifiers;
+		
+		
+		
+		
+		protected And(EOAndQualifier qualifier)
+		{
+			super(qualifier);
+			
+			this.qualifiers = CompiledQualifier.compileAll(qualifier.qualifiers());
+		}
+		
+		
+		public boolean evaluateWithContext(RuleContext context)
+		{
+			int qCount = this.qualifiers.length;
+			
+			for (int q = 0; q < qCount; q++) {
+				if (!this.qualifiers[q].evaluateWithContext(context)) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+	}
+	
+	
+	
+	protected static class Or extends CompiledQualifier
+	{
+		private CompiledQualifier[]	qualifiers;
+		
+		
+		
+		
+		protected Or(EOOrQualifier qualifier)
+		{
+			super(qualifier);
+			
+			this.qualifiers = CompiledQualifier.compileAll(qualifier.qualifiers());
+		}
+		
+		
+		public boolean evaluateWithContext(RuleContext context)
+		{
+			int qCount = this.qualifiers.length;
+			
+			for (int q = 0; q < qCount; q++) {
+				if (this.qualifiers[q].evaluateWithContext(context)) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	
+	
+	protected static class Not extends CompiledQualifier
+	{
+		private CompiledQualifier	qualifier;
+		
+		
+		
+		
+		protected Not(EONotQualifier qualifier)
+		{
+			super(qualifier);
+			
+			this.qualifier = CompiledQualifier.compile(qualifier.qualifier());
+		}
+		
+		
+		public boolean evaluateWithContext(RuleContext context)
+		{
+			return !this.qualifier.evaluateWithContext(context);
+		}
+	}
+	
+	
+	
+	/**
+	 * Fallback for qualifiers without a compiled form.
+	 */
+	protected static class Interpreted extends CompiledQualifier
+	{
+		private EOQualifier	qualifier;
+		
+		
+		
+		
+		protected Interpreted(EOQualifier qualifier)
+		{
+			super(qualifier);
+			
+			this.qualifier = qualifier;
+		}
+		
+		
+		public boolean evaluateWithContext(RuleContext context)
+		{
+			return this.qualifier.evaluateWithObject(context);
+		}
+	}
+}
\ No newline at end of file
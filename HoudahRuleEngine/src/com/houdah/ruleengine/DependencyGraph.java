@@ -0,0 +1,364 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.BitSet;
+import java.util.Enumeration;
+
+import com.houdah.foundation.KVCUtility;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Static dependencies between the keys of a rule model.<br/>
+ * 
+ * A key inferred by the rules depends on the first path component of every
+ * key tested by the left-hand sides of its candidate rules, and of every key
+ * read from the context by their right-hand sides. Dependencies are followed
+ * transitively through other inferred keys. The graph is computed once per
+ * model, allowing contexts to invalidate their cached values with a
+ * precomputed bit set.<br/>
+ * 
+ * Keys with a right-hand side whose reads cannot be determined, e.g. a
+ * SelfAssignment or an unknown Assignment class, are volatile. So are keys
+ * with a rule testing or reading a key path, e.g. object.isNew: the object
+ * may change without the context key being set again. Keys depending on
+ * volatile keys are volatile too. Volatile keys are inferred anew on every
+ * access.
+ */
+public class DependencyGraph
+{
+	// Private instance variables
+	
+	private BitSet[]	dependantKeysByKeyId;
+	
+	
+	private BitSet		volatileKeys;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param candidateRulesByKey
+	 *            the candidate rules of each right-hand side key
+	 * @param keyTable
+	 *            table holding all keys tested or read by these rules
+	 */
+	public DependencyGraph(NSDictionary candidateRulesByKey, KeyTable keyTable)
+	{
+		int kCount = keyTable.count();
+		BitSet[] dependencies = new BitSet[kCount];
+		BitSet volatileKeys = new BitSet(kCount);
+		Enumeration allKeys = candidateRulesByKey.keyEnumerator();
+		
+		while (allKeys.hasMoreElements()) {
+			String key = (String) allKeys.nextElement();
+			NSArray candidates = (NSArray) candidateRulesByKey.objectForKey(key);
+			int keyId = keyTable.idForKey(key);
+			BitSet keyDependencies = new BitSet(kCount);
+			int cCount = candidates.count();
+			
+			for (int c = 0; c < cCount; c++) {
+				Rule rule = (Rule) candidates.objectAtIndex(c);
+				NSArray contextKeys = DependencyGraph.contextKeysReadByRule(rule);
+				
+				if ((contextKeys == null) || DependencyGraph.readsKeyPath(rule)) {
+					volatileKeys.set(keyId);
+				}
+				
+				if (contextKeys != null) {
+					int ckCount = contextKeys.count();
+					
+					for (int ck = 0; ck < ckCount; ck++) {
+						keyDependencies.set(keyTable.idForKey((String) contextKeys
+								.objectAtIndex(ck)));
+					}
+				}
+			}
+			
+			dependencies[keyId] = keyDependencies;
+		}
+		
+		DependencyGraph.close(dependencies, volatileKeys);
+		
+		this.dependantKeysByKeyId = new BitSet[kCount];
+		this.volatileKeys = volatileKeys;
+		
+		for (int k = 0; k < kCount; k++) {
+			BitSet keyDependencies = dependencies[k];
+			
+			if (keyDependencies != null) {
+				for (int d = keyDependencies.nextSetBit(0); d >= 0; d = keyDependencies
+						.nextSetBit(d + 1)) {
+					if (this.dependantKeysByKeyId[d] == null) {
+						this.dependantKeysByKeyId[d] = new BitSet(kCount);
+					}
+					
+					this.dependantKeysByKeyId[d].set(k);
+				}
+			}
+		}
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * Lists the inferred keys whose values may change when the value of a key
+	 * changes. The returned set must not be modified.
+	 * 
+	 * @param keyId
+	 *            the id of the key in the model's key table
+	 * @return the ids of the dependant keys, null if there are none
+	 */
+	public BitSet dependantKeys(int keyId)
+	{
+		return this.dependantKeysByKeyId[keyId];
+	}
+	
+	
+	/**
+	 * Determines whether the inferred value of a key may change without any
+	 * value of the context changing.
+	 */
+	public boolean isVolatile(int keyId)
+	{
+		return this.volatileKeys.get(keyId);
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Lists the context keys a rule depends on. Key paths are reduced to their
+	 * first component.
+	 * 
+	 * @return the keys, null if they cannot be determined
+	 */
+	public static NSArray contextKeysReadByRule(Rule rule)
+	{
+		NSArray readKeys = DependencyGraph.contextKeysReadByAssignment(rule.rhs());
+		CompiledQualifier lhs = rule.compiledLhs();
+		
+		if ((readKeys == null) || (lhs == null)) {
+			return readKeys;
+		}
+		
+		NSMutableArray contextKeys = new NSMutableArray(readKeys);
+		KVCUtility kvcUtility = KVCUtility.sharedInstance();
+		Enumeration qualifierKeys = lhs.qualifierKeys().objectEnumerator();
+		
+		while (qualifierKeys.hasMoreElements()) {
+			String key = kvcUtility.firstPathComponent((String) qualifierKeys.nextElement());
+			
+			if (!contextKeys.containsObject(key)) {
+				contextKeys.addObject(key);
+			}
+		}
+		
+		return contextKeys;
+	}
+	
+	
+	/**
+	 * Lists the context keys read when firing an assignment. Key paths are
+	 * reduced to their first component.
+	 * 
+	 * @return the keys, null if they cannot be determined
+	 */
+	public static NSArray contextKeysReadByAssignment(Assignment assignment)
+	{
+		if ((assignment instanceof SimpleAssignment) || (assignment instanceof BooleanAssignment)) {
+			return NSArray.EmptyArray;
+		} else if (assignment instanceof KeyValueAssignment) {
+			Object value = ((KeyValueAssignment) assignment).value();
+			
+			if (value instanceof String) {
+				return new NSArray(KVCUtility.sharedInstance().firstPathComponent((String) value));
+			}
+			
+			return NSArray.EmptyArray;
+		} else if (assignment instanceof ObjectValueAssignment) {
+			Object value = ((ObjectValueAssignment) assignment).value();
+			
+			if (value instanceof String) {
+				return DependencyGraph.contextKeysReadByObjectValue((String) value);
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Determines whether a rule tests or reads a key path with more than one
+	 * component.
+	 */
+	protected static boolean readsKeyPath(Rule rule)
+	{
+		CompiledQualifier lhs = rule.compiledLhs();
+		
+		if (lhs != null) {
+			Enumeration qualifierKeys = lhs.qualifierKeys().objectEnumerator();
+			
+			while (qualifierKeys.hasMoreElements()) {
+				if (DependencyGraph.isKeyPath((String) qualifierKeys.nextElement())) {
+					return true;
+				}
+			}
+		}
+		
+		Assignment assignment = rule.rhs();
+		
+		if (assignment instanceof KeyValueAssignment) {
+			Object value = ((KeyValueAssignment) assignment).value();
+			
+			return ((value instanceof String) && DependencyGraph.isKeyPath((String) value));
+		} else if (assignment instanceof ObjectValueAssignment) {
+			Object value = ((ObjectValueAssignment) assignment).value();
+			
+			if (value instanceof String) {
+				NSArray segments = NSArray.componentsSeparatedByString((String) value, "/");
+				int sCount = segments.count();
+				
+				for (int s = 0; s < sCount; s++) {
+					String segment = (String) segments.objectAtIndex(s);
+					
+					if ((segment.length() > 0) && (segment.charAt(0) == '@')) {
+						segment = segment.substring(1);
+					} else if ((s > 0) || ((segment.length() > 0) && (segment.charAt(0) == '#'))) {
+						continue;
+					}
+					
+					if (DependencyGraph.isKeyPath(segment)) {
+						return true;
+					}
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	protected static boolean isKeyPath(String key)
+	{
+		return (key.indexOf('.') >= 0);
+	}
+	
+	
+	/**
+	 * Parses the value of an ObjectValueAssignment.
+	 * 
+	 * @see ObjectValueAssignment
+	 */
+	protected static NSArray contextKeysReadByObjectValue(String value)
+	{
+		NSArray segments = NSArray.componentsSeparatedByString(value, "/");
+		NSMutableArray contextKeys = new NSMutableArray();
+		KVCUtility kvcUtility = KVCUtility.sharedInstance();
+		int sCount = segments.count();
+		
+		for (int s = 0; s < sCount; s++) {
+			String segment = (String) segments.objectAtIndex(s);
+			
+			if (segment.length() == 0) {
+				return null;
+			}
+			
+			char firstChar = segment.charAt(0);
+			
+			if (firstChar == '@') {
+				if (s == 0) {
+					// The path read from the context is itself unknown
+					return null;
+				}
+				
+				contextKeys.addObject(kvcUtility.firstPathComponent(segment.substring(1)));
+			} else if ((firstChar != '#') && (s == 0)) {
+				contextKeys.addObject(kvcUtility.firstPathComponent(segment));
+			}
+		}
+		
+		return contextKeys;
+	}
+	
+	
+	/**
+	 * Extends the direct dependencies of each key to its transitive
+	 * dependencies. Volatility spreads along the way.
+	 */
+	protected static void close(BitSet[] dependencies, BitSet volatileKeys)
+	{
+		boolean changed = true;
+		
+		while (changed) {
+			changed = false;
+			
+			for (int k = 0; k < dependencies.length; k++) {
+				BitSet keyDependencies = dependencies[k];
+				
+				if (keyDependencies == null) {
+					continue;
+				}
+				
+				int previousCount = keyDependencies.cardinality();
+				boolean wasVolatile = volatileKeys.get(k);
+				BitSet directDependencies = (BitSet) keyDependencies.clone();
+				
+				for (int d = directDependencies.nextSetBit(0); d >= 0; d = directDependencies
+						.nextSetBit(d + 1)) {
+					if (dependencies[d] != null) {
+						keyDependencies.or(dependencies[d]);
+					}
+					
+					if (volatileKeys.get(d)) {
+						volatileKeys.set(k);
+					}
+				}
+				
+				if ((keyDependencies.cardinality() != previousCount)
+						|| (volatileKeys.get(k) != wasVolatile)) {
+					changed = true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.Enumeration;
+
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSMutableSet;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Node of a discrimination tree built over the candidate rules for one key.<br/>
+ * 
+ * Each inner node splits its rules on the value of a single context key. A
+ * rule whose left-hand side requires that key to equal some string constant
+ * is only kept in the branch for that constant. Rules that do not test the
+ * key are kept in every branch. Branches preserve the priority order of the
+ * candidate list, so the first matching rule of a branch is the first
+ * matching rule of the full list.<br/>
+ * 
+ * Only values already stored in the context are used to pick a branch. When
+ * the value is unknown the node falls back to its complete rule list.
+ * Determining it would mean running inference out of the order the linear
+ * scan uses.
+ */
+public class DiscriminationNode
+{
+	// Protected class constants
+	
+	/**
+	 * Rule lists shorter than this are scanned linearly.
+	 */
+	protected static final int	MINIMUM_RULE_COUNT	= 8;
+	
+	
+	/**
+	 * Maximum number of keys tested on the way to a leaf.
+	 */
+	protected static final int	MAXIMUM_DEPTH		= 4;
+	
+	
+	
+	// Private instance variables
+	
+	private NSArray				rules;
+	
+	
+	private String				discriminatingKey;
+	
+	
+	private NSDictionary		childrenByValue;
+	
+	
+	private DiscriminationNode	wildcardChild;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param rules
+	 *            the candidate rules, sorted by priority
+	 */
+	public DiscriminationNode(NSArray rules)
+	{
+		this(rules, NSSet.EmptySet, 0);
+	}
+	
+	
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 */
+	protected DiscriminationNode(NSArray rules, NSSet usedKeys, int depth)
+	{
+		this.rules = rules;
+		
+		if ((rules.count() >= MINIMUM_RULE_COUNT) && (depth < MAXIMUM_DEPTH)) {
+			String key = DiscriminationNode.bestDiscriminatingKey(rules, usedKeys);
+			
+			if (key != null) {
+				split(key, usedKeys.setByAddingObject(key), depth + 1);
+			}
+		}
+	}
+	
+	
+	
+	// Public accessors
+	
+	public NSArray rules()
+	{
+		return this.rules;
+	}
+	
+	
+	public String discriminatingKey()
+	{
+		return this.discriminatingKey;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * Determines the rules to evaluate in a given context.
+	 * 
+	 * @param context
+	 *            the context the rules are to be evaluated in
+	 * @param discriminatingKeys
+	 *            set to which the keys used to narrow down the list are added,
+	 *            may be null
+	 * @return the sub-list of rules that may match, sorted by priority
+	 */
+	public NSArray candidateRules(RuleContext context, NSMutableSet discriminatingKeys)
+	{
+		DiscriminationNode node = this;
+		
+		while (node.discriminatingKey != null) {
+			Object value = context.storedValueForKey(node.discriminatingKey);
+			
+			if (!(value instanceof String)) {
+				break;
+			}
+			
+			if (discriminatingKeys != null) {
+				discriminatingKeys.addObject(node.discriminatingKey);
+			}
+			
+			DiscriminationNode child = (DiscriminationNode) node.childrenByValue
+					.objectForKey(value);
+			
+			node = (child != null) ? child : node.wildcardChild;
+		}
+		
+		return node.rules;
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected void split(String key, NSSet usedKeys, int depth)
+	{
+		NSMutableDictionary rulesByValue = new NSMutableDictionary();
+		NSMutableArray wildcardRules = new NSMutableArray();
+		int rCount = this.rules.count();
+		
+		for (int r = 0; r < rCount; r++) {
+			Rule rule = (Rule) this.rules.objectAtIndex(r);
+			String value = DiscriminationNode.equalityValue(rule.lhs(), key);
+			
+			if (value != null) {
+				if (rulesByValue.objectForKey(value) == null) {
+					rulesByValue.setObjectForKey(new NSMutableArray(), value);
+				}
+			}
+		}
+		
+		for (int r = 0; r < rCount; r++) {
+			Rule rule = (Rule) this.rules.objectAtIndex(r);
+			String value = DiscriminationNode.equalityValue(rule.lhs(), key);
+			
+			if (value != null) {
+				((NSMutableArray) rulesByValue.objectForKey(value)).addObject(rule);
+			} else {
+				Enumeration branches = rulesByValue.objectEnumerator();
+				
+				while (branches.hasMoreElements()) {
+					((NSMutableArray) branches.nextElement()).addObject(rule);
+				}
+				
+				wildcardRules.addObject(rule);
+			}
+		}
+		
+		NSMutableDictionary children = new NSMutableDictionary(rulesByValue.count());
+		Enumeration values = rulesByValue.keyEnumerator();
+		
+		while (values.hasMoreElements()) {
+			String value = (String) values.nextElement();
+			NSArray branchRules = ((NSArray) rulesByValue.objectForKey(value)).immutableClone();
+			
+			children.setObjectForKey(new DiscriminationNode(branchRules, usedKeys, depth), value);
+		}
+		
+		this.discriminatingKey = key;
+		this.childrenByValue = children.immutableClone();
+		this.wildcardChild = new DiscriminationNode(wildcardRules.immutableClone(), usedKeys,
+				depth);
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Picks the key that is tested for equality by most rules. Keys tested by
+	 * fewer than two rules are not worth a split.
+	 */
+	protected static String bestDiscriminatingKey(NSArray rules, NSSet usedKeys)
+	{
+		NSMutableDictionary countsByKey = new NSMutableDictionary();
+		String bestKey = null;
+		int bestCount = 1;
+		int rCount = rules.count();
+		
+		for (int r = 0; r < rCount; r++) {
+			Rule rule = (Rule) rules.objectAtIndex(r);
+			NSArray keys = DiscriminationNode.equalityKeys(rule.lhs());
+			int kCount = keys.count();
+			
+			for (int k = 0; k < kCount; k++) {
+				String key = (String) keys.objectAtIndex(k);
+				
+				if (usedKeys.containsObject(key)) {
+					continue;
+				}
+				
+				Integer count = (Integer) countsByKey.objectForKey(key);
+				int newCount = (count != null) ? count.intValue() + 1 : 1;
+				
+				countsByKey.setObjectForKey(new Integer(newCount), key);
+				
+				if ((newCount > bestCount)
+						|| ((newCount == bestCount) && (bestKey != null) && (key
+								.compareTo(bestKey) < 0))) {
+					bestKey = key;
+					bestCount = newCount;
+				}
+			}
+		}
+		
+		return bestKey;
+	}
+	
+	
+	/**
+	 * Lists the simple keys a qualifier requires to equal a string constant.
+	 * Only the qualifier itself or the direct children of a top-level AND
+	 * qualifier are considered.
+	 */
+	protected static NSArray equalityKeys(EOQualifier qualifier)
+	{
+		NSMutableArray keys = new NSMutableArray();
+		
+		if (qualifier instanceof EOAndQualifier) {
+			NSArray conjuncts = ((EOAndQualifier) qualifier).qualifiers();
+			int cCount = conjuncts.count();
+			
+			for (int c = 0; c < cCount; c++) {
+				EOQualifier conjunct = (EOQualifier) conjuncts.objectAtIndex(c);
+				
+				if (DiscriminationNode.isEqualityTest(conjunct)) {
+					String key = ((EOKeyValueQualifier) conjunct).key();
+					
+					if (!keys.containsObject(key)) {
+						keys.addObject(key);
+					}
+				}
+			}
+		} else if (DiscriminationNode.isEqualityTest(qualifier)) {
+			keys.addObject(((EOKeyValueQualifier) qualifier).key());
+		}
+		
+		return keys;
+	}
+	
+	
+	/**
+	 * Determines the string constant a qualifier requires a key to equal.
+	 * 
+	 * @return the constant, null if the qualifier does not constrain the key
+	 */
+	protected static String equalityValue(EOQualifier qualifier, String key)
+	{
+		if (qualifier instanceof EOAndQualifier) {
+			NSArray conjuncts = ((EOAndQualifier) qualifier).qualifiers();
+			int cCount = conjuncts.count();
+			
+			for (int c = 0; c < cCount; c++) {
+				EOQualifier conjunct = (EOQualifier) conjuncts.objectAtIndex(c);
+				
+				if (DiscriminationNode.isEqualityTest(conjunct)
+						&& key.equals(((EOKeyValueQualifier) conjunct).key())) {
+					return (String) ((EOKeyValueQualifier) conjunct).value();
+				}
+			}
+		} else if (DiscriminationNode.isEqualityTest(qualifier)
+				&& key.equals(((EOKeyValueQualifier) qualifier).key())) {
+			return (String) ((EOKeyValueQualifier) qualifier).value();
+		}
+		
+		return null;
+	}
+	
+	
+	protected static boolean isEqualityTest(EOQualifier qualifier)
+	{
+		if (qualifier instanceof EOKeyValueQualifier) {
+			EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) qualifier;
+			String key = keyValueQualifier.key();
+			
+			return ((key != null) && (key.indexOf('.') < 0)
+					&& (keyValueQualifier.value() instanceof String) && EOQualifier.QualifierOperatorEqual
+					.equals(keyValueQualifier.selector()));
+		}
+		
+		return false;
+	}
+}
\ No newline at end of file
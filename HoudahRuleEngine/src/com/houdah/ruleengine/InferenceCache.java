@@ -0,0 +1,434 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Bounded, thread-safe cache of inferred values shared by all contexts of a
+ * RuleModel.<br/>
+ * 
+ * Entries are keyed by the inferred key and by the values of the context keys
+ * the inference depended on. Those are the keys tested by the left-hand sides
+ * of all rules tried up to the winning one. A context may reuse an entry when
+ * it holds the same values for these keys.<br/>
+ * 
+ * To keep entries valid across contexts, a value is only recorded when:
+ * <ul>
+ * <li>every dependency is stored in the context, or is a key without stored
+ * value nor rules, and thus known to be null
+ * <li>every dependency value is a string, number or boolean
+ * <li>the winning right-hand side does not read the context
+ * </ul>
+ * Least recently used entries are evicted once the capacity is reached.
+ */
+public class InferenceCache
+{
+	// Protected class constants
+	
+	/**
+	 * Maximum number of distinct dependency key sets remembered per key.
+	 */
+	protected static final int	MAXIMUM_SIGNATURE_COUNT	= 16;
+	
+	
+	
+	// Private instance variables
+	
+	private int					capacity;
+	
+	
+	private LinkedHashMap		entries;
+	
+	
+	private NSMutableDictionary	signaturesByKey;
+	
+	
+	private long				hitCount;
+	
+	
+	private long				missCount;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param capacity
+	 *            maximum number of cached values
+	 */
+	public InferenceCache(int capacity)
+	{
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest)
+			{
+				return size() > InferenceCache.this.capacity;
+			}
+		};
+		this.signaturesByKey = new NSMutableDictionary();
+	}
+	
+	
+	
+	// Public accessors
+	
+	public int capacity()
+	{
+		return this.capacity;
+	}
+	
+	
+	public synchronized int count()
+	{
+		return this.entries.size();
+	}
+	
+	
+	public synchronized long hitCount()
+	{
+		return this.hitCount;
+	}
+	
+	
+	public synchronized long missCount()
+	{
+		return this.missCount;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * Looks up a value inferred for the given key by some context holding the
+	 * same dependency values as the given context.
+	 * 
+	 * @return the cached value, NSKeyValueCoding.NullValue for a cached null,
+	 *         null if nothing is cached
+	 */
+	public Object valueForKeyInContext(String key, RuleContext context)
+	{
+		NSArray signatures;
+		
+		synchronized (this) {
+			signatures = (NSArray) this.signaturesByKey.objectForKey(key);
+		}
+		
+		if (signatures != null) {
+			int sCount = signatures.count();
+			
+			for (int s = 0; s < sCount; s++) {
+				NSArray dependencyKeys = (NSArray) signatures.objectAtIndex(s);
+				Object[] dependencyValues = InferenceCache.knownValuesForKeys(dependencyKeys,
+						context);
+				
+				if (dependencyValues != null) {
+					Object value;
+					
+					synchronized (this) {
+						value = this.entries.get(new Entry(key, dependencyKeys, dependencyValues));
+					}
+					
+					if (value != null) {
+						synchronized (this) {
+							this.hitCount++;
+						}
+						
+						return value;
+					}
+				}
+			}
+		}
+		
+		synchronized (this) {
+			this.missCount++;
+		}
+		
+		return null;
+	}
+	
+	
+	/**
+	 * Records the outcome of an inference.
+	 * 
+	 * @param value
+	 *            the inferred value, may be null
+	 * @param key
+	 *            the inferred key
+	 * @param dependencies
+	 *            the first path components of the keys tested while inferring
+	 * @param rule
+	 *            the rule that fired, null if none matched
+	 * @param context
+	 *            the context the inference took place in
+	 */
+	public void takeValueForKeyInContext(Object value, String key, NSSet dependencies,
+			Rule rule, RuleContext context)
+	{
+		if ((rule != null) && !InferenceCache.isContextIndependent(rule.rhs())) {
+			return;
+		}
+		
+		NSArray dependencyKeys = dependencies.allObjects();
+		
+		if (dependencyKeys.count() > 1) {
+			Object[] sortedKeys = dependencyKeys.objects();
+			
+			Arrays.sort(sortedKeys);
+			
+			dependencyKeys = new NSArray(sortedKeys);
+		}
+		
+		Object[] dependencyValues = InferenceCache.knownValuesForKeys(dependencyKeys, context);
+		
+		if (dependencyValues != null) {
+			synchronized (this) {
+				NSArray signatures = (NSArray) this.signaturesByKey.objectForKey(key);
+				
+				if (signatures == null) {
+					signatures = NSArray.EmptyArray;
+				}
+				
+				if (!signatures.containsObject(dependencyKeys)) {
+					if (signatures.count() >= MAXIMUM_SIGNATURE_COUNT) {
+						return;
+					}
+					
+					this.signaturesByKey.setObjectForKey(signatures
+							.arrayByAddingObject(dependencyKeys), key);
+				}
+				
+				this.entries.put(new Entry(key, dependencyKeys, dependencyValues),
+						(value != null) ? value : NSKeyValueCoding.NullValue);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Creates a cache for a model derived from the model owning this cache.
+	 * Values inferred for the given keys, or depending on their values, are
+	 * left out.
+	 * 
+	 * @param keys
+	 *            the keys whose rules changed
+	 * @return a new cache holding the remaining entries
+	 */
+	public synchronized InferenceCache cacheInvalidatingKeys(NSSet keys)
+	{
+		InferenceCache cache = new InferenceCache(this.capacity);
+		Iterator entryIterator = this.entries.entrySet().iterator();
+		
+		while (entryIterator.hasNext()) {
+			Map.Entry mapEntry = (Map.Entry) entryIterator.next();
+			Entry entry = (Entry) mapEntry.getKey();
+			
+			if (!entry.dependsOnKeys(keys)) {
+				cache.entries.put(entry, mapEntry.getValue());
+			}
+		}
+		
+		Enumeration keyEnumeration = this.signaturesByKey.keyEnumerator();
+		
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			
+			if (!keys.containsObject(key)) {
+				NSArray signatures = (NSArray) this.signaturesByKey.objectForKey(key);
+				NSMutableArray validSignatures = new NSMutableArray(signatures.count());
+				int sCount = signatures.count();
+				
+				for (int s = 0; s < sCount; s++) {
+					NSArray dependencyKeys = (NSArray) signatures.objectAtIndex(s);
+					
+					if (!keys.intersectsSet(new NSSet(dependencyKeys))) {
+						validSignatures.addObject(dependencyKeys);
+					}
+				}
+				
+				if (validSignatures.count() > 0) {
+					cache.signaturesByKey.setObjectForKey(validSignatures.immutableClone(), key);
+				}
+			}
+		}
+		
+		return cache;
+	}
+	
+	
+	public synchronized void clear()
+	{
+		this.entries.clear();
+		this.signaturesByKey.removeAllObjects();
+		this.hitCount = 0;
+		this.missCount = 0;
+	}
+	
+	
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer();
+		
+		buffer.append("InferenceCache {count = ");
+		buffer.append(count());
+		buffer.append("; capacity = ");
+		buffer.append(capacity());
+		buffer.append("; hits = ");
+		buffer.append(hitCount());
+		buffer.append("; misses = ");
+		buffer.append(missCount());
+		buffer.append("}");
+		
+		return buffer.toString();
+	}
+	
+	
+	
+	// Protected class methods
+	
+	protected static boolean isContextIndependent(Assignment assignment)
+	{
+		return ((assignment instanceof SimpleAssignment) || (assignment instanceof BooleanAssignment));
+	}
+	
+	
+	/**
+	 * Determines the values of keys without running inference.
+	 * 
+	 * @return the values, null if any of them is not known or is not a
+	 *         shareable value
+	 */
+	protected static Object[] knownValuesForKeys(NSArray keys, RuleContext context)
+	{
+		int kCount = keys.count();
+		Object[] values = new Object[kCount];
+		
+		for (int k = 0; k < kCount; k++) {
+			String key = (String) keys.objectAtIndex(k);
+			Object value = context.storedValueForKey(key);
+			
+			if (value == null) {
+				if (context.model().candidateRulesForKey(key) != null) {
+					return null;
+				}
+				
+				value = NSKeyValueCoding.NullValue;
+			} else if (!((value instanceof String) || (value instanceof Number)
+					|| (value instanceof Boolean) || (value == NSKeyValueCoding.NullValue))) {
+				return null;
+			}
+			
+			values[k] = value;
+		}
+		
+		return values;
+	}
+	
+	
+	
+	
+	// Private inner classes
+	
+	private static class Entry
+	{
+		private String		key;
+		
+		
+		private NSArray		dependencyKeys;
+		
+		
+		private Object[]	dependencyValues;
+		
+		
+		private int			hashCode;
+		
+		
+		
+		
+		private Entry(String key, NSArray dependencyKeys, Object[] dependencyValues)
+		{
+			this.key = key;
+			this.dependencyKeys = dependencyKeys;
+			this.dependencyValues = dependencyValues;
+			this.hashCode = key.hashCode() ^ Arrays.hashCode(dependencyValues);
+		}
+		
+		
+		public boolean equals(Object object)
+		{
+			if (object instanceof Entry) {
+				Entry other = (Entry) object;
+				
+				return ((this.hashCode == other.hashCode) && this.key.equals(other.key)
+						&& this.dependencyKeys.equals(other.dependencyKeys) && Arrays.equals(
+						this.dependencyValues, other.dependencyValues));
+			}
+			
+			return false;
+		}
+		
+		
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+		
+		
+		private boolean dependsOnKeys(NSSet keys)
+		{
+			if (keys.containsObject(this.key)) {
+				return true;
+			}
+			
+			int dCount = this.dependencyKeys.count();
+			
+			for (int d = 0; d < dCount; d++) {
+				if (keys.containsObject(this.dependencyKeys.objectAtIndex(d))) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+}
\ No newline at end of file
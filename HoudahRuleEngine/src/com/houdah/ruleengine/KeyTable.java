@@ -0,0 +1,129 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Symbol table assigning dense integer ids to the keys of a rule model.<br/>
+ * 
+ * The table holds the right-hand side keys of all rules as well as the first
+ * path components of all keys tested by their left-hand sides. Rule contexts
+ * use the ids to index flat arrays and bit sets.<br/>
+ * 
+ * A table is filled while its model is initialized. It is not modified
+ * afterwards and may then be read by any number of threads.
+ */
+public class KeyTable
+{
+	// Private instance variables
+	
+	private NSMutableDictionary	idsByKey;
+	
+	
+	private NSMutableArray		keys;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 */
+	public KeyTable()
+	{
+		this.idsByKey = new NSMutableDictionary();
+		this.keys = new NSMutableArray();
+	}
+	
+	
+	
+	// Public accessors
+	
+	/**
+	 * @return the number of keys, which is also the lowest unused id
+	 */
+	public int count()
+	{
+		return this.keys.count();
+	}
+	
+	
+	public NSArray keys()
+	{
+		return this.keys;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * @return the id of the key, -1 if the key is not part of this table
+	 */
+	public int idForKey(String key)
+	{
+		Integer id = (Integer) this.idsByKey.objectForKey(key);
+		
+		return (id != null) ? id.intValue() : -1;
+	}
+	
+	
+	public String keyForId(int id)
+	{
+		return (String) this.keys.objectAtIndex(id);
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	/**
+	 * Adds a key to the table, unless already present.
+	 * 
+	 * @return the id of the key
+	 */
+	protected int intern(String key)
+	{
+		int id = idForKey(key);
+		
+		if (id < 0) {
+			id = this.keys.count();
+			
+			this.keys.addObject(key);
+			this.idsByKey.setObjectForKey(new Integer(id), key);
+		}
+		
+		return id;
+	}
+}
@@ -28,13 +28,31 @@
 
 package com.houdah.ruleengine;
 
+import java.util.Enumeration;
+
 import com.webobjects.eocontrol.EOKeyValueUnarchiver;
+import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSCoder;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSPropertyListSerialization;
 
+/**
+ * Assignment of a property list given in its string form.<br/>
+ * 
+ * The string is parsed once, when the assignment is created. All firings
+ * share the resulting structure, which is made immutable throughout. Callers
+ * needing to modify it use mutablePropertyList().
+ */
 public class PropertyListAssignment extends SimpleAssignment implements
 		Assignment
 {
+	// Private instance variables
+	
+	private Object	propertyList;
+	
+	
 	
 	
 	// Constructors
@@ -46,6 +64,25 @@ public class PropertyListAssignment extends SimpleAssignment implements
 	public PropertyListAssignment(String keyPath, Object value)
 	{
 		super(keyPath, value);
+		
+		Object propertyList = (value instanceof String) ? NSPropertyListSerialization
+				.propertyListFromString((String) value) : value;
+		
+		this.propertyList = PropertyListAssignment.copyPropertyList(propertyList, false);
+	}
+	
+	
+	
+	// Public accessors
+	
+	/**
+	 * The parsed value.
+	 * 
+	 * @return an immutable property list
+	 */
+	public Object propertyList()
+	{
+		return this.propertyList;
 	}
 	
 	
@@ -54,10 +91,18 @@ public class PropertyListAssignment extends SimpleAssignment implements
 	
 	public Object fireInContext(RuleContext context)
 	{
-		Object value = super.fireInContext(context);
-		
-		return NSPropertyListSerialization
-				.propertyListFromString((String) value);
+		return this.propertyList;
+	}
+	
+	
+	/**
+	 * Copies the parsed value for a caller wishing to modify it.
+	 * 
+	 * @return a property list made of mutable arrays and dictionaries
+	 */
+	public Object mutablePropertyList()
+	{
+		return PropertyListAssignment.copyPropertyList(this.propertyList, true);
 	}
 	
 	
@@ -92,7 +137,7 @@ public class PropertyListAssignment extends SimpleAssignment implements
 	public static Object decodeWithKeyValueUnarchiver(
 			EOKeyValueUnarchiver keyValueUnarchiver)
 	{
-		return new SimpleAssignment((String) keyValueUnarchiver
+		return new PropertyListAssignment((String) keyValueUnarchiver
 				.decodeObjectForKey(KEYPATH_KEY), keyValueUnarchiver
 				.decodeObjectForKey(VALUE_KEY));
 	}
@@ -107,4 +152,48 @@ public class PropertyListAssignment extends SimpleAssignment implements
 				.stringFromPropertyList(value));
 	}
 	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Deep copies the arrays and dictionaries of a property list. Strings and
+	 * other leaves are immutable and shared.
+	 * 
+	 * @param propertyList
+	 *            the property list to copy
+	 * @param mutable
+	 *            whether the copied containers are to be mutable
+	 * @return the copy
+	 */
+	protected static Object copyPropertyList(Object propertyList, boolean mutable)
+	{
+		if (propertyList instanceof NSArray) {
+			NSArray array = (NSArray) propertyList;
+			int aCount = array.count();
+			Object[] objects = new Object[aCount];
+			
+			for (int a = 0; a < aCount; a++) {
+				objects[a] = PropertyListAssignment.copyPropertyList(array.objectAtIndex(a),
+						mutable);
+			}
+			
+			return (mutable) ? new NSMutableArray(objects) : new NSArray(objects);
+		} else if (propertyList instanceof NSDictionary) {
+			NSDictionary dictionary = (NSDictionary) propertyList;
+			NSMutableDictionary copy = new NSMutableDictionary(dictionary.count());
+			Enumeration keyEnumeration = dictionary.keyEnumerator();
+			
+			while (keyEnumeration.hasMoreElements()) {
+				Object key = keyEnumeration.nextElement();
+				
+				copy.setObjectForKey(PropertyListAssignment.copyPropertyList(dictionary
+						.objectForKey(key), mutable), key);
+			}
+			
+			return (mutable) ? copy : copy.immutableClone();
+		}
+		
+		return propertyList;
+	}
 }
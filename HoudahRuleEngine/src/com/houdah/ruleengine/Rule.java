@@ -60,6 +60,9 @@ public class Rule implements Cloneable, NSCoding, EOKeyValueArchiving
 	private int						priority;
 	
 	
+	private CompiledQualifier		compiledLhs;
+	
+	
 	
 	
 	// Constructors
@@ -101,6 +104,21 @@ public class Rule implements Cloneable, NSCoding, EOKeyValueArchiving
 	}
 	
 	
+	/**
+	 * The left-hand side compiled for fast evaluation. Compiled on first use.
+	 * 
+	 * @return the compiled qualifier, null if the rule has no left-hand side
+	 */
+	public CompiledQualifier compiledLhs()
+	{
+		if ((this.compiledLhs == null) && (this.lhs != null)) {
+			this.compiledLhs = CompiledQualifier.compile(this.lhs);
+		}
+		
+		return this.compiledLhs;
+	}
+	
+	
 	
 	// Public instance methods
 	
@@ -131,7 +149,9 @@ public class Rule implements Cloneable, NSCoding, EOKeyValueArchiving
 		if ((object != null) && (getClass() == object.getClass())) {
 			Rule other = (Rule) object;
 			
-			return ((this.lhs.equals(other.lhs)) && (this.rhs.equals(other.rhs)) && (this.priority == other.priority));
+			boolean sameLhs = (this.lhs != null) ? this.lhs.equals(other.lhs) : (other.lhs == null);
+			
+			return (sameLhs && (this.rhs.equals(other.rhs)) && (this.priority == other.priority));
 		}
 		
 		return false;
@@ -140,7 +160,7 @@ public class Rule implements Cloneable, NSCoding, EOKeyValueArchiving
 	
 	public int hashCode()
 	{
-		return this.lhs.hashCode();
+		return (this.lhs != null) ? this.lhs.hashCode() : this.rhs.hashCode();
 	}
 	
 	
@@ -0,0 +1,472 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.Enumeration;
+
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOOrQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSSelector;
+
+/**
+ * Finds the rules of a model that can never be picked by inference.<br/>
+ * 
+ * A rule is shadowed when a rule ahead of it in the candidate list matches
+ * whenever it matches, i.e. when its left-hand side implies the left-hand
+ * side of the earlier rule. Inference always fires the earlier rule first.
+ * A rule is unreachable when its left-hand side contradicts itself.<br/>
+ * 
+ * Implication is checked conservatively on conjunctions of qualifiers:
+ * identical key-value tests, equality implying inequality to another
+ * constant and disjunctions with an implied branch are recognized. Anything
+ * else is assumed not to imply. Shadowed rules still match, so they are
+ * still seen by allPossibleValuesForKey().
+ */
+public class RuleAnalyzer
+{
+	// Public class constants
+	
+	public static final String	KEY_KEY				= "key";
+	
+	
+	public static final String	RULE_KEY			= "rule";
+	
+	
+	public static final String	SHADOWING_RULE_KEY	= "shadowingRule";
+	
+	
+	
+	// Private instance variables
+	
+	private NSMutableDictionary	inferenceRulesByKey;
+	
+	
+	private NSMutableArray		shadowedRules;
+	
+	
+	private NSMutableArray		unreachableRules;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Constructor.
+	 * 
+	 */
+	public RuleAnalyzer(RuleModel model)
+	{
+		this(RuleAnalyzer.candidateRulesByKey(model));
+	}
+	
+	
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param candidateRulesByKey
+	 *            the rules of each right-hand side key, sorted by priority
+	 */
+	public RuleAnalyzer(NSDictionary candidateRulesByKey)
+	{
+		this.inferenceRulesByKey = new NSMutableDictionary(candidateRulesByKey.count());
+		this.shadowedRules = new NSMutableArray();
+		this.unreachableRules = new NSMutableArray();
+		
+		Enumeration allKeys = candidateRulesByKey.keyEnumerator();
+		
+		while (allKeys.hasMoreElements()) {
+			String key = (String) allKeys.nextElement();
+			
+			analyzeCandidateRules((NSArray) candidateRulesByKey.objectForKey(key), key);
+		}
+	}
+	
+	
+	
+	// Public accessors
+	
+	/**
+	 * Lists the shadowed rules.
+	 * 
+	 * @return dictionaries holding the key, the rule and the first rule
+	 *         shadowing it
+	 */
+	public NSArray shadowedRules()
+	{
+		return this.shadowedRules;
+	}
+	
+	
+	/**
+	 * Lists the rules with a contradictory left-hand side.
+	 * 
+	 * @return dictionaries holding the key and the rule
+	 */
+	public NSArray unreachableRules()
+	{
+		return this.unreachableRules;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * The candidate rules for a key, less the shadowed and unreachable ones.
+	 * 
+	 * @return the remaining rules in priority order, null if the key has no
+	 *         rules
+	 */
+	public NSArray inferenceRulesForKey(String key)
+	{
+		return (NSArray) this.inferenceRulesByKey.objectForKey(key);
+	}
+	
+	
+	public String report()
+	{
+		StringBuffer buffer = new StringBuffer();
+		int sCount = this.shadowedRules.count();
+		int uCount = this.unreachableRules.count();
+		
+		buffer.append(sCount);
+		buffer.append(" shadowed rules, ");
+		buffer.append(uCount);
+		buffer.append(" unreachable rules\n");
+		
+		for (int s = 0; s < sCount; s++) {
+			NSDictionary entry = (NSDictionary) this.shadowedRules.objectAtIndex(s);
+			
+			buffer.append(entry.objectForKey(KEY_KEY));
+			buffer.append(": ");
+			buffer.append(entry.objectForKey(RULE_KEY));
+			buffer.append("\n\tshadowed by: ");
+			buffer.append(entry.objectForKey(SHADOWING_RULE_KEY));
+			buffer.append("\n");
+		}
+		
+		for (int u = 0; u < uCount; u++) {
+			NSDictionary entry = (NSDictionary) this.unreachableRules.objectAtIndex(u);
+			
+			buffer.append(entry.objectForKey(KEY_KEY));
+			buffer.append(": ");
+			buffer.append(entry.objectForKey(RULE_KEY));
+			buffer.append("\n\tunreachable\n");
+		}
+		
+		return buffer.toString();
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected void analyzeCandidateRules(NSArray candidateRules, String key)
+	{
+		int cCount = candidateRules.count();
+		NSMutableArray inferenceRules = new NSMutableArray(cCount);
+		
+		for (int c = 0; c < cCount; c++) {
+			Rule rule = (Rule) candidateRules.objectAtIndex(c);
+			
+			if (RuleAnalyzer.isContradictory(rule.lhs())) {
+				NSMutableDictionary entry = new NSMutableDictionary();
+				
+				entry.setObjectForKey(key, KEY_KEY);
+				entry.setObjectForKey(rule, RULE_KEY);
+				
+				this.unreachableRules.addObject(entry);
+				
+				continue;
+			}
+			
+			Rule shadowingRule = null;
+			int iCount = inferenceRules.count();
+			
+			for (int i = 0; i < iCount; i++) {
+				Rule inferenceRule = (Rule) inferenceRules.objectAtIndex(i);
+				
+				if (RuleAnalyzer.implies(rule.lhs(), inferenceRule.lhs())) {
+					shadowingRule = inferenceRule;
+					
+					break;
+				}
+			}
+			
+			if (shadowingRule != null) {
+				NSMutableDictionary entry = new NSMutableDictionary();
+				
+				entry.setObjectForKey(key, KEY_KEY);
+				entry.setObjectForKey(rule, RULE_KEY);
+				entry.setObjectForKey(shadowingRule, SHADOWING_RULE_KEY);
+				
+				this.shadowedRules.addObject(entry);
+			} else {
+				inferenceRules.addObject(rule);
+			}
+		}
+		
+		this.inferenceRulesByKey.setObjectForKey(inferenceRules.immutableClone(), key);
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Determines if a qualifier is known to imply another.
+	 * 
+	 * @param qualifier
+	 *            the qualifier assumed true, null for an always true
+	 *            qualifier
+	 * @param other
+	 *            the qualifier to prove, null for an always true qualifier
+	 * @return true if whenever qualifier evaluates to true, so does other.
+	 *         False if that cannot be proved.
+	 */
+	public static boolean implies(EOQualifier qualifier, EOQualifier other)
+	{
+		NSArray conjuncts = RuleAnalyzer.conjuncts(qualifier);
+		NSArray otherConjuncts = RuleAnalyzer.conjuncts(other);
+		int ocCount = otherConjuncts.count();
+		
+		for (int oc = 0; oc < ocCount; oc++) {
+			if (!RuleAnalyzer.conjunctsImply(conjuncts, (EOQualifier) otherConjuncts
+					.objectAtIndex(oc))) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Determines if a qualifier is known never to evaluate to true. Detects
+	 * conjunctions requiring a key to equal two distinct constants, or to both
+	 * equal and differ from a constant.
+	 */
+	public static boolean isContradictory(EOQualifier qualifier)
+	{
+		NSArray conjuncts = RuleAnalyzer.conjuncts(qualifier);
+		int cCount = conjuncts.count();
+		
+		for (int c = 0; c < cCount; c++) {
+			EOQualifier conjunct = (EOQualifier) conjuncts.objectAtIndex(c);
+			String value = RuleAnalyzer.constantTestedFor(conjunct,
+					EOQualifier.QualifierOperatorEqual);
+			
+			if (value != null) {
+				String key = ((EOKeyValueQualifier) conjunct).key();
+				
+				for (int o = 0; o < cCount; o++) {
+					EOQualifier otherConjunct = (EOQualifier) conjuncts.objectAtIndex(o);
+					
+					if ((o != c) && RuleAnalyzer.testsKey(otherConjunct, key)) {
+						String otherValue = RuleAnalyzer.constantTestedFor(otherConjunct,
+								EOQualifier.QualifierOperatorEqual);
+						
+						if ((otherValue != null) && !otherValue.equals(value)) {
+							return true;
+						}
+						
+						otherValue = RuleAnalyzer.constantTestedFor(otherConjunct,
+								EOQualifier.QualifierOperatorNotEqual);
+						
+						if ((otherValue != null) && otherValue.equals(value)) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	
+	// Protected class methods
+	
+	protected static NSDictionary candidateRulesByKey(RuleModel model)
+	{
+		NSArray keys = model.candidateKeys();
+		int kCount = keys.count();
+		NSMutableDictionary candidateRulesByKey = new NSMutableDictionary(kCount);
+		
+		for (int k = 0; k < kCount; k++) {
+			String key = (String) keys.objectAtIndex(k);
+			
+			candidateRulesByKey.setObjectForKey(model.candidateRulesForKey(key), key);
+		}
+		
+		return candidateRulesByKey;
+	}
+	
+	
+	/**
+	 * Flattens nested AND qualifiers.
+	 * 
+	 * @return the conjuncts of the qualifier, empty if the qualifier is null
+	 */
+	protected static NSArray conjuncts(EOQualifier qualifier)
+	{
+		if (qualifier == null) {
+			return NSArray.EmptyArray;
+		}
+		
+		if (qualifier instanceof EOAndQualifier) {
+			NSArray qualifiers = ((EOAndQualifier) qualifier).qualifiers();
+			NSMutableArray conjuncts = new NSMutableArray();
+			int qCount = qualifiers.count();
+			
+			for (int q = 0; q < qCount; q++) {
+				conjuncts.addObjectsFromArray(RuleAnalyzer.conjuncts((EOQualifier) qualifiers
+						.objectAtIndex(q)));
+			}
+			
+			return conjuncts;
+		}
+		
+		return new NSArray(qualifier);
+	}
+	
+	
+	protected static boolean conjunctsImply(NSArray conjuncts, EOQualifier qualifier)
+	{
+		if (qualifier instanceof EOAndQualifier) {
+			NSArray qualifiers = ((EOAndQualifier) qualifier).qualifiers();
+			int qCount = qualifiers.count();
+			
+			for (int q = 0; q < qCount; q++) {
+				if (!RuleAnalyzer.conjunctsImply(conjuncts, (EOQualifier) qualifiers
+						.objectAtIndex(q))) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		if (qualifier instanceof EOOrQualifier) {
+			NSArray qualifiers = ((EOOrQualifier) qualifier).qualifiers();
+			int qCount = qualifiers.count();
+			
+			for (int q = 0; q < qCount; q++) {
+				if (RuleAnalyzer.conjunctsImply(conjuncts, (EOQualifier) qualifiers
+						.objectAtIndex(q))) {
+					return true;
+				}
+			}
+		}
+		
+		int cCount = conjuncts.count();
+		
+		for (int c = 0; c < cCount; c++) {
+			if (RuleAnalyzer.conjunctImplies((EOQualifier) conjuncts.objectAtIndex(c), qualifier)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	protected static boolean conjunctImplies(EOQualifier conjunct, EOQualifier qualifier)
+	{
+		if (conjunct == qualifier) {
+			return true;
+		}
+		
+		if ((conjunct.getClass() == EOKeyValueQualifier.class)
+				&& (qualifier.getClass() == EOKeyValueQualifier.class)) {
+			EOKeyValueQualifier keyValueConjunct = (EOKeyValueQualifier) conjunct;
+			EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) qualifier;
+			
+			if (!keyValueConjunct.key().equals(keyValueQualifier.key())) {
+				return false;
+			}
+			
+			Object value = keyValueConjunct.value();
+			Object otherValue = keyValueQualifier.value();
+			
+			if (keyValueConjunct.selector().equals(keyValueQualifier.selector())
+					&& (value != null) && value.equals(otherValue)) {
+				return true;
+			}
+			
+			String equalValue = RuleAnalyzer.constantTestedFor(conjunct,
+					EOQualifier.QualifierOperatorEqual);
+			String notEqualValue = RuleAnalyzer.constantTestedFor(qualifier,
+					EOQualifier.QualifierOperatorNotEqual);
+			
+			return ((equalValue != null) && (notEqualValue != null) && !equalValue
+					.equals(notEqualValue));
+		}
+		
+		return false;
+	}
+	
+	
+	protected static boolean testsKey(EOQualifier qualifier, String key)
+	{
+		return ((qualifier instanceof EOKeyValueQualifier) && key
+				.equals(((EOKeyValueQualifier) qualifier).key()));
+	}
+	
+	
+	/**
+	 * Determines the string constant a key-value qualifier compares to with
+	 * the given operator.
+	 * 
+	 * @return the constant, null if the qualifier is of a different kind
+	 */
+	protected static String constantTestedFor(EOQualifier qualifier,
+			NSSelector selector)
+	{
+		if (qualifier.getClass() == EOKeyValueQualifier.class) {
+			EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) qualifier;
+			
+			if ((keyValueQualifier.value() instanceof String)
+					&& selector.equals(keyValueQualifier.selector())) {
+				return (String) keyValueQualifier.value();
+			}
+		}
+		
+		return null;
+	}
+}
@@ -28,18 +28,20 @@
 
 package com.houdah.ruleengine;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Enumeration;
 
 import com.houdah.foundation.KVCObject;
 import com.houdah.foundation.KVCUtility;
 
-import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSMutableSet;
+import com.webobjects.foundation.NSSet;
 
 public class RuleContext extends KVCObject
 {
@@ -51,16 +53,53 @@ public class RuleContext extends KVCObject
 	private RuleContext			parentContext;
 	
 	
-	private NSMutableDictionary	storedValues;
+	private KeyTable			keyTable;
 	
 	
-	private NSMutableDictionary	cachedValues;
+	private DependencyGraph		dependencyGraph;
 	
 	
-	private NSMutableDictionary	keysByDependancies;
+	/**
+	 * Stored values indexed by key id. Allocated on first use.
+	 */
+	private Object[]			storedValues;
+	
+	
+	/**
+	 * Stored values for keys not known to the model's key table.
+	 */
+	private NSMutableDictionary	otherStoredValues;
+	
+	
+	/**
+	 * Inferred values indexed by key id. NullValue marks an inferred null.
+	 */
+	private Object[]			cachedValues;
 	
 	
-	private NSMutableSet		keysWithGlobalDependancy;
+	/**
+	 * Results of allPossibleValuesForKey() indexed by key id.
+	 */
+	private Object[]			cachedPossibleValues;
+	
+	
+	/**
+	 * Results of allPossibleValuesUniquedByPriorityForKey() indexed by key id.
+	 */
+	private Object[]			cachedUniquedPossibleValues;
+	
+	
+	/**
+	 * Number of changes made to the stored values of this context.
+	 */
+	private int					version;
+	
+	
+	/**
+	 * Sum of the versions of the parent contexts when the cached values were
+	 * last validated.
+	 */
+	private int					ancestorsVersion;
 	
 	
 	
@@ -92,17 +131,24 @@ public class RuleContext extends KVCObject
 	
 	
 	/**
-	 * Designated constructor.
+	 * Designated constructor.<br/>
 	 * 
+	 * A context may have both a model and a parent context. It then inherits
+	 * the values stored in the parent, but infers values using its own model.
+	 * This allows for switching to a reloaded model while keeping values set
+	 * on a long-lived context.
+	 * 
+	 * @param model
+	 *            the model to use, if null the model of the parent context
+	 * @param parentContext
+	 *            the context to inherit stored values from, may be null
 	 */
-	private RuleContext(RuleModel model, RuleContext parentContext)
+	public RuleContext(RuleModel model, RuleContext parentContext)
 	{
 		this.model = model;
 		this.parentContext = parentContext;
-		this.storedValues = new NSMutableDictionary();
-		this.cachedValues = new NSMutableDictionary();
-		this.keysByDependancies = new NSMutableDictionary();
-		this.keysWithGlobalDependancy = new NSMutableSet();
+		this.keyTable = model().keyTable();
+		this.dependencyGraph = model().dependencyGraph();
 	}
 	
 	
@@ -136,17 +182,16 @@ public class RuleContext extends KVCObject
 	
 	public void takeValueForKey(Object value, String key)
 	{
-		clearGlobalDependancies();
-		clearDirectDependancies(key);
+		clearDependantValues(this.keyTable.idForKey(key));
 		
 		takeStoredValueForKey(value, key);
+		
+		this.version++;
 	}
 	
 	
 	public void takeValuesFromDictionary(NSDictionary dictionary)
 	{
-		clearGlobalDependancies();
-		
 		if (dictionary != null) {
 			Enumeration keyEnumeration = dictionary.keyEnumerator();
 			
@@ -154,10 +199,12 @@ public class RuleContext extends KVCObject
 				String key = (String) keyEnumeration.nextElement();
 				Object value = dictionary.objectForKey(key);
 				
-				clearDirectDependancies(key);
+				clearDependantValues(this.keyTable.idForKey(key));
 				
 				takeStoredValueForKey(value, key);
 			}
+			
+			this.version++;
 		}
 	}
 	
@@ -190,6 +237,65 @@ public class RuleContext extends KVCObject
 	}
 	
 	
+	/**
+	 * Infers a key once for each of a series of bindings, e.g. once per row of
+	 * a list page.<br/>
+	 * 
+	 * The candidate rules are split once: rules whose left-hand side does not
+	 * depend on the bound keys are evaluated a single time in this context, the
+	 * others once per binding. Bindings are applied in turn to one nested
+	 * context, so inferred values not depending on the bound keys are kept
+	 * from one binding to the next. This context is left unchanged.
+	 * 
+	 * @param key
+	 *            the key to infer
+	 * @param bindings
+	 *            array of dictionaries of values to set, NullValue standing
+	 *            in for null. Keys missing from a dictionary or bound to
+	 *            NullValue are not set in the nested context: they take the
+	 *            value they have in this context, if any.
+	 * @return the inferred values, NullValue standing in for null
+	 */
+	public NSArray valuesForKeyWithSuccessiveBindings(String key, NSArray bindings)
+	{
+		int bCount = bindings.count();
+		NSMutableArray results = new NSMutableArray(bCount);
+		NSArray boundKeys = RuleContext.boundKeys(bindings);
+		InferencePlan plan = inferencePlanForKey(key, boundKeys);
+		RuleContext bindingContext = new RuleContext(this);
+		int bkCount = boundKeys.count();
+		
+		for (int b = 0; b < bCount; b++) {
+			NSDictionary binding = (NSDictionary) bindings.objectAtIndex(b);
+			
+			for (int bk = 0; bk < bkCount; bk++) {
+				String boundKey = (String) boundKeys.objectAtIndex(bk);
+				Object value = binding.objectForKey(boundKey);
+				
+				if (value == NSKeyValueCoding.NullValue) {
+					value = null;
+				}
+				
+				bindingContext.takeValueForKey(value, boundKey);
+			}
+			
+			Object result = bindingContext.storedValueForKey(key);
+			
+			if (result == null) {
+				result = plan.valueInContext(bindingContext);
+			}
+			
+			if (result == null) {
+				result = NSKeyValueCoding.NullValue;
+			}
+			
+			results.addObject(result);
+		}
+		
+		return results;
+	}
+	
+	
 	public NSArray allPossibleValuesForKey(String key)
 	{
 		return allPossibleValuesForKey(key, false);
@@ -213,7 +319,16 @@ public class RuleContext extends KVCObject
 	
 	protected Object storedValueForKey(String key)
 	{
-		Object value = this.storedValues.objectForKey(key);
+		int keyId = this.keyTable.idForKey(key);
+		Object value = null;
+		
+		if (keyId >= 0) {
+			if (this.storedValues != null) {
+				value = this.storedValues[keyId];
+			}
+		} else if (this.otherStoredValues != null) {
+			value = this.otherStoredValues.objectForKey(key);
+		}
 		
 		if ((value == null) && (this.parentContext != null)) {
 			return this.parentContext.storedValueForKey(key);
@@ -225,149 +340,480 @@ public class RuleContext extends KVCObject
 	
 	protected void takeStoredValueForKey(Object value, String key)
 	{
-		if (value != null) {
-			this.storedValues.setObjectForKey(value, key);
-		} else {
-			this.storedValues.removeObjectForKey(key);
+		int keyId = this.keyTable.idForKey(key);
+		
+		if (keyId >= 0) {
+			if (this.storedValues == null) {
+				if (value == null) {
+					return;
+				}
+				
+				this.storedValues = new Object[this.keyTable.count()];
+			}
+			
+			this.storedValues[keyId] = value;
+		} else if (value != null) {
+			if (this.otherStoredValues == null) {
+				this.otherStoredValues = new NSMutableDictionary();
+			}
+			
+			this.otherStoredValues.setObjectForKey(value, key);
+		} else if (this.otherStoredValues != null) {
+			this.otherStoredValues.removeObjectForKey(key);
+		}
+	}
+	
+	
+	/**
+	 * Determines the rules worth evaluating to infer a key in this context.
+	 * Rules the model's discrimination index proves not to match are left out,
+	 * as are shadowed rules if the model prunes them.
+	 * 
+	 * @param key
+	 *            the key to infer
+	 * @param significantKeys
+	 *            set to which the keys the selection depends on are added, may
+	 *            be null
+	 * @return the candidate rules sorted by priority, null if there are none
+	 */
+	protected NSArray candidateRulesForKey(String key, NSMutableSet significantKeys)
+	{
+		DiscriminationNode inferenceIndex = model().inferenceIndexForKey(key);
+		
+		if (inferenceIndex != null) {
+			return inferenceIndex.candidateRules(this, significantKeys);
 		}
+		
+		return null;
 	}
 	
 	
+	/**
+	 * Infers the value of a key.<br/>
+	 * 
+	 * The result is cached unless the key is volatile. Cached values are
+	 * cleared using the model's dependency graph when a value they depend on
+	 * is set, or when a value is set on a parent context.
+	 */
 	protected Object inferredValueForKey(String key)
 	{
-		Object value = this.cachedValues.objectForKey(key);
+		int keyId = this.keyTable.idForKey(key);
+		
+		if (keyId < 0) {
+			// Not a right-hand side key, nor any key the rules depend on
+			return null;
+		}
+		
+		validateCachedValues();
+		
+		Object value = (this.cachedValues != null) ? this.cachedValues[keyId] : null;
+		
+		cachedValueWasLookedUp(key, value != null);
 		
 		if (value != null) {
 			return (value != NSKeyValueCoding.NullValue) ? value : null;
-		} else {
-			NSArray candidates = model().candidateRulesForKey(key);
+		}
+		
+		InferenceCache inferenceCache = model().inferenceCache();
+		
+		if (inferenceCache != null) {
+			value = inferenceCache.valueForKeyInContext(key, this);
 			
-			if (candidates != null) {
-				Enumeration candidatesEnumerator = candidates.objectEnumerator();
-				NSMutableSet significantKeys = new NSMutableSet();
-				KVCUtility kvcUtility = KVCUtility.sharedInstance();
+			if (value != null) {
+				return (value != NSKeyValueCoding.NullValue) ? value : null;
+			}
+		}
+		
+		
+		// Keys tested are only collected for the benefit of the shared cache
+		NSMutableSet significantKeys = (inferenceCache != null) ? new NSMutableSet() : null;
+		NSArray candidates = candidateRulesForKey(key, significantKeys);
+		Rule firedRule = null;
+		
+		if (candidates != null) {
+			int cCount = candidates.count();
+			
+			
+			// Iterate through all of the candidate rules, evaluating their
+			// left-hand side in this context. If one returns YES, fire
+			// it and return the value of firing it. If none returns YES,
+			// we just wind up returning null.
+			for (int c = 0; c < cCount; c++) {
+				Rule candidateRule = (Rule) candidates.objectAtIndex(c);
+				CompiledQualifier lhs = candidateRule.compiledLhs();
 				
+				if ((significantKeys != null) && (lhs != null)) {
+					significantKeys.unionSet(lhs.qualifierKeys());
+				}
 				
-				// Iterate through all of the candidate rules, evaluating their
-				// left-hand side in this context. If one returns YES, fire
-				// it and return the value of firing it. If none returns YES,
-				// we just wind up returning null.
-				while (candidatesEnumerator.hasMoreElements()) {
-					Rule candidateRule = (Rule) candidatesEnumerator.nextElement();
-					EOQualifier lhs = candidateRule.lhs();
-					
-					if (lhs != null) {
-						significantKeys.unionSet(lhs.allQualifierKeys());
-					}
+				if (ruleMatches(candidateRule)) {
+					value = fireRule(candidateRule);
+					firedRule = candidateRule;
 					
-					if ((lhs == null) || lhs.evaluateWithObject(this)) {
-						value = candidateRule.fireInContext(this);
-						
-						if (significantKeys.count() > 0) {
-							Enumeration significantKeyEnumeration = significantKeys
-									.objectEnumerator();
-							
-							while (significantKeyEnumeration.hasMoreElements()) {
-								String significantKey = kvcUtility
-										.firstPathComponent((String) significantKeyEnumeration
-												.nextElement());
-								NSMutableArray dependantKeys = (NSMutableArray) this.keysByDependancies
-										.objectForKey(significantKey);
-								
-								if (dependantKeys == null) {
-									this.keysByDependancies.setObjectForKey(
-											dependantKeys = new NSMutableArray(), significantKey);
-								}
-								
-								dependantKeys.addObject(key);
-							}
-						} else {
-							this.keysWithGlobalDependancy.addObject(key);
-						}
-						
-						this.cachedValues.setObjectForKey((value != null) ? value
-								: NSKeyValueCoding.NullValue, key);
-						
-						clearGlobalDependancies();
-						clearDirectDependancies(key);
-						
-						return value;
-					}
+					break;
 				}
 			}
+		}
+		
+		if (!this.dependencyGraph.isVolatile(keyId)) {
+			if (this.cachedValues == null) {
+				this.cachedValues = new Object[this.keyTable.count()];
+			}
 			
-			return null;
+			this.cachedValues[keyId] = (value != null) ? value : NSKeyValueCoding.NullValue;
+		}
+		
+		if ((inferenceCache != null) && (candidates != null)) {
+			NSMutableSet dependancies = new NSMutableSet();
+			KVCUtility kvcUtility = KVCUtility.sharedInstance();
+			Enumeration significantKeyEnumeration = significantKeys.objectEnumerator();
+			
+			while (significantKeyEnumeration.hasMoreElements()) {
+				dependancies.addObject(kvcUtility
+						.firstPathComponent((String) significantKeyEnumeration.nextElement()));
+			}
+			
+			inferenceCache.takeValueForKeyInContext(value, key, dependancies, firedRule, this);
 		}
+		
+		return value;
 	}
 	
 	
+	/**
+	 * Determines the values of all matching rules for a key.<br/>
+	 * 
+	 * Results are cached and invalidated like inferred values. The returned
+	 * array is shared and must not be modified.
+	 * 
+	 * @param uniqued
+	 *            if true, only the first matching rule of each priority
+	 *            contributes a value
+	 */
 	protected NSArray allPossibleValuesForKey(String key, boolean uniqued)
 	{
-		NSArray candidates = model().candidateRulesForKey(key);
+		int keyId = this.keyTable.idForKey(key);
 		
-		if (candidates != null) {
-			NSMutableArray values = new NSMutableArray();
+		if (keyId < 0) {
+			return NSArray.EmptyArray;
+		}
+		
+		validateCachedValues();
+		
+		Object[] cache = (uniqued) ? this.cachedUniquedPossibleValues : this.cachedPossibleValues;
+		
+		if ((cache != null) && (cache[keyId] != null)) {
+			return (NSArray) cache[keyId];
+		}
+		
+		// Shadowed rules still match, so the complete candidate list is used
+		DiscriminationNode candidateIndex = model().candidateIndexForKey(key);
+		NSArray values = NSArray.EmptyArray;
+		
+		if (candidateIndex != null) {
+			NSArray candidates = candidateIndex.candidateRules(this, null);
+			NSMutableArray matchingValues = new NSMutableArray();
 			Enumeration candidatesEnumerator = candidates.objectEnumerator();
 			int lastMatchedPriority = Integer.MAX_VALUE;
 			
 			while (candidatesEnumerator.hasMoreElements()) {
 				Rule candidateRule = (Rule) candidatesEnumerator.nextElement();
-				EOQualifier lhs = candidateRule.lhs();
 				int priority = candidateRule.priority();
 				
 				if (uniqued && (priority == lastMatchedPriority)) {
 					continue;
 				}
 				
-				if ((lhs == null) || lhs.evaluateWithObject(this)) {
-					Object value = candidateRule.fireInContext(this);
+				if (ruleMatches(candidateRule)) {
+					Object value = fireRule(candidateRule);
 					
-					values.addObject(value);
+					matchingValues.addObject(value);
 					
 					lastMatchedPriority = priority;
 				}
 			}
 			
-			return values;
+			values = matchingValues.immutableClone();
 		}
 		
-		return NSArray.EmptyArray;
+		if (!this.dependencyGraph.isVolatile(keyId)) {
+			if (cache == null) {
+				cache = new Object[this.keyTable.count()];
+				
+				if (uniqued) {
+					this.cachedUniquedPossibleValues = cache;
+				} else {
+					this.cachedPossibleValues = cache;
+				}
+			}
+			
+			cache[keyId] = values;
+		}
+		
+		return values;
 	}
 	
 	
+	/**
+	 * Splits the candidate rules for a key into rules depending on the bound
+	 * keys and rules that do not. The latter are evaluated here, once.
+	 */
+	protected InferencePlan inferencePlanForKey(String key, NSArray boundKeys)
+	{
+		DiscriminationNode inferenceIndex = model().inferenceIndexForKey(key);
+		
+		if (inferenceIndex == null) {
+			return new InferencePlan(NSArray.EmptyArray, null);
+		}
+		
+		BitSet affectedKeys = new BitSet(this.keyTable.count());
+		int bkCount = boundKeys.count();
+		
+		for (int bk = 0; bk < bkCount; bk++) {
+			int keyId = this.keyTable.idForKey((String) boundKeys.objectAtIndex(bk));
+			
+			if (keyId >= 0) {
+				BitSet dependantKeys = this.dependencyGraph.dependantKeys(keyId);
+				
+				affectedKeys.set(keyId);
+				
+				if (dependantKeys != null) {
+					affectedKeys.or(dependantKeys);
+				}
+			}
+		}
+		
+		NSMutableSet discriminatingKeys = new NSMutableSet();
+		NSArray candidates = inferenceIndex.candidateRules(this, discriminatingKeys);
+		
+		if (discriminatingKeys.intersectsSet(new NSSet(boundKeys))) {
+			candidates = inferenceIndex.rules();
+		}
+		
+		NSMutableArray dependentRules = new NSMutableArray();
+		Rule fallbackRule = null;
+		int cCount = candidates.count();
+		
+		for (int c = 0; c < cCount; c++) {
+			Rule candidateRule = (Rule) candidates.objectAtIndex(c);
+			
+			if (lhsDependsOnKeys(candidateRule, affectedKeys)) {
+				dependentRules.addObject(candidateRule);
+			} else if (ruleMatches(candidateRule)) {
+				// Matches for every binding: no later rule can fire
+				fallbackRule = candidateRule;
+				
+				break;
+			}
+		}
+		
+		return new InferencePlan(dependentRules, fallbackRule);
+	}
 	
-	// Private instance methods
 	
-	private void clearGlobalDependancies()
+	/**
+	 * Determines whether the left-hand side of a rule tests any of the given
+	 * keys, a volatile key or a key path. The value at the end of a key path
+	 * may change without any context key being set.
+	 * 
+	 * @param keyIds
+	 *            set of key table ids
+	 */
+	protected boolean lhsDependsOnKeys(Rule rule, BitSet keyIds)
 	{
-		Enumeration globalKeys = this.keysWithGlobalDependancy.objectEnumerator();
+		CompiledQualifier lhs = rule.compiledLhs();
 		
-		while (globalKeys.hasMoreElements()) {
-			String dependantKey = (String) globalKeys.nextElement();
+		if (lhs != null) {
+			KVCUtility kvcUtility = KVCUtility.sharedInstance();
+			Enumeration qualifierKeys = lhs.qualifierKeys().objectEnumerator();
 			
-			this.cachedValues.removeObjectForKey(dependantKey);
+			while (qualifierKeys.hasMoreElements()) {
+				String qualifierKey = (String) qualifierKeys.nextElement();
+				int keyId = this.keyTable.idForKey(kvcUtility.firstPathComponent(qualifierKey));
+				
+				if ((keyId < 0) || keyIds.get(keyId) || this.dependencyGraph.isVolatile(keyId)
+						|| DependencyGraph.isKeyPath(qualifierKey)) {
+					return true;
+				}
+			}
 		}
 		
-		this.keysWithGlobalDependancy.removeAllObjects();
+		return false;
+	}
+	
+	
+	/**
+	 * Evaluates the left-hand side of a rule in this context. Hook for
+	 * instrumentation.
+	 */
+	protected boolean ruleMatches(Rule rule)
+	{
+		CompiledQualifier lhs = rule.compiledLhs();
+		
+		return ((lhs == null) || lhs.evaluateWithContext(this));
+	}
+	
+	
+	/**
+	 * Fires a matching rule in this context. Hook for instrumentation.
+	 */
+	protected Object fireRule(Rule rule)
+	{
+		return rule.fireInContext(this);
 	}
 	
 	
-	private void clearDirectDependancies(String key)
+	/**
+	 * Called whenever the cached values of this context are searched for an
+	 * inferred value. Hook for instrumentation.
+	 * 
+	 * @param key
+	 *            the key being inferred
+	 * @param found
+	 *            true if the value was cached
+	 */
+	protected void cachedValueWasLookedUp(String key, boolean found)
 	{
-		NSArray dependantKeys = (NSArray) this.keysByDependancies.objectForKey(key);
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Lists the keys used by any of the bindings.
+	 */
+	protected static NSArray boundKeys(NSArray bindings)
+	{
+		NSMutableSet boundKeys = new NSMutableSet();
+		int bCount = bindings.count();
 		
-		if (dependantKeys != null) {
-			Enumeration dependantKeyEnumeration = dependantKeys.objectEnumerator();
+		for (int b = 0; b < bCount; b++) {
+			boundKeys.addObjectsFromArray(((NSDictionary) bindings.objectAtIndex(b)).allKeys());
+		}
+		
+		return boundKeys.allObjects();
+	}
+	
+	
+	
+	// Private instance methods
+	
+	/**
+	 * Clears the cached values depending on a key, as well as the cached value
+	 * of the key itself.
+	 */
+	private void clearDependantValues(int keyId)
+	{
+		if (keyId >= 0) {
+			BitSet dependantKeys = this.dependencyGraph.dependantKeys(keyId);
+			
+			RuleContext.clearValues(this.cachedValues, keyId, dependantKeys);
+			RuleContext.clearValues(this.cachedPossibleValues, keyId, dependantKeys);
+			RuleContext.clearValues(this.cachedUniquedPossibleValues, keyId, dependantKeys);
+		}
+	}
+	
+	
+	/**
+	 * Clears all cached values if a value was set on any parent context since
+	 * the last check.
+	 */
+	private void validateCachedValues()
+	{
+		if (this.parentContext != null) {
+			RuleContext ancestor = this.parentContext;
+			int currentAncestorsVersion = 0;
+			
+			while (ancestor != null) {
+				currentAncestorsVersion += ancestor.version;
+				ancestor = ancestor.parentContext;
+			}
 			
-			while (dependantKeyEnumeration.hasMoreElements()) {
-				String dependantKey = (String) dependantKeyEnumeration.nextElement();
+			if (currentAncestorsVersion != this.ancestorsVersion) {
+				if (this.cachedValues != null) {
+					Arrays.fill(this.cachedValues, null);
+				}
+				
+				if (this.cachedPossibleValues != null) {
+					Arrays.fill(this.cachedPossibleValues, null);
+				}
 				
-				this.cachedValues.removeObjectForKey(dependantKey);
+				if (this.cachedUniquedPossibleValues != null) {
+					Arrays.fill(this.cachedUniquedPossibleValues, null);
+				}
+				
+				this.ancestorsVersion = currentAncestorsVersion;
+			}
+		}
+	}
+	
+	
+	
+	// Private class methods
+	
+	private static void clearValues(Object[] values, int keyId, BitSet dependantKeys)
+	{
+		if (values != null) {
+			if (dependantKeys != null) {
+				for (int k = dependantKeys.nextSetBit(0); k >= 0; k = dependantKeys
+						.nextSetBit(k + 1)) {
+					values[k] = null;
+				}
 			}
 			
-			this.keysByDependancies.removeObjectForKey(key);
+			values[keyId] = null;
+		}
+	}
+	
+	
+	
+	
+	// Protected inner classes
+	
+	/**
+	 * Candidate rules left to evaluate once the bindings are known.
+	 */
+	protected static class InferencePlan
+	{
+		private NSArray	dependentRules;
+		
+		
+		private Rule	fallbackRule;
+		
+		
+		
+		
+		/**
+		 * @param dependentRules
+		 *            rules to evaluate for each binding, sorted by priority
+		 * @param fallbackRule
+		 *            rule to fire when none of these matches, may be null
+		 */
+		protected InferencePlan(NSArray dependentRules, Rule fallbackRule)
+		{
+			this.dependentRules = dependentRules;
+			this.fallbackRule = fallbackRule;
 		}
 		
-		this.cachedValues.removeObjectForKey(key);
+		
+		protected Object valueInContext(RuleContext context)
+		{
+			int rCount = this.dependentRules.count();
+			
+			for (int r = 0; r < rCount; r++) {
+				Rule rule = (Rule) this.dependentRules.objectAtIndex(r);
+				
+				if (context.ruleMatches(rule)) {
+					return context.fireRule(rule);
+				}
+			}
+			
+			if (this.fallbackRule != null) {
+				return context.fireRule(this.fallbackRule);
+			}
+			
+			return null;
+		}
 	}
 }
\ No newline at end of file
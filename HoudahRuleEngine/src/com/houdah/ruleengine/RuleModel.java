@@ -29,7 +29,9 @@
 package com.houdah.ruleengine;
 
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
 
+import com.houdah.foundation.KVCUtility;
 import com.houdah.foundation.utilities.DictionaryUtilities;
 
 import com.webobjects.eocontrol.EOKeyValueArchiver;
@@ -40,7 +42,10 @@ import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSCoder;
 import com.webobjects.foundation.NSCoding;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSLog;
+import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSMutableSet;
 
 public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 {
@@ -52,6 +57,22 @@ public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 	protected static final String	KEYPATH_BINDING	= "keyPath";
 	
 	
+	/**
+	 * System property holding the capacity of the inference cache shared by
+	 * all contexts of a model. The cache is disabled when not set.
+	 */
+	protected static final String	INFERENCE_CACHE_SIZE_PROPERTY	= "HoudahRuleEngine.inferenceCacheSize";
+	
+	
+	/**
+	 * System property telling whether rules shadowed by earlier candidate rules
+	 * are left out of inference. Defaults to false.
+	 * 
+	 * @see RuleAnalyzer
+	 */
+	protected static final String	PRUNE_SHADOWED_RULES_PROPERTY	= "HoudahRuleEngine.pruneShadowedRules";
+	
+	
 	
 	// Private instance variables
 	
@@ -61,6 +82,21 @@ public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 	private NSMutableDictionary		candidateRulesByKey;
 	
 	
+	private NSMutableDictionary		candidateIndexByKey;
+	
+	
+	private NSMutableDictionary		inferenceIndexByKey;
+	
+	
+	private KeyTable				keyTable;
+	
+	
+	private DependencyGraph			dependencyGraph;
+	
+	
+	private InferenceCache			inferenceCache;
+	
+	
 	
 	
 	// Constructors
@@ -70,12 +106,50 @@ public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 	 * 
 	 */
 	public RuleModel(NSArray rules)
+	{
+		this(rules, null);
+	}
+	
+	
+	
+	/**
+	 * Constructor for models whose candidate rules are already sorted, e.g.
+	 * when restored from a snapshot.
+	 * 
+	 * @param rules
+	 *            all rules of the model
+	 * @param candidateRulesByKey
+	 *            the rules of each right-hand side key, sorted by priority. If
+	 *            null, the rules are sorted here.
+	 */
+	public RuleModel(NSArray rules, NSDictionary candidateRulesByKey)
+	{
+		this(rules, candidateRulesByKey, null);
+	}
+	
+	
+	
+	/**
+	 * Constructor for models reusing the discrimination indexes of another
+	 * model.
+	 * 
+	 * @param rules
+	 *            all rules of the model
+	 * @param candidateRulesByKey
+	 *            the rules of each right-hand side key, sorted by priority. If
+	 *            null, the rules are sorted here.
+	 * @param candidateIndexByKey
+	 *            the discrimination indexes to reuse. Keys missing from this
+	 *            dictionary are indexed here. May be null.
+	 */
+	protected RuleModel(NSArray rules, NSDictionary candidateRulesByKey,
+			NSDictionary candidateIndexByKey)
 	{
 		// Set the rules in this model
 		
 		this.rules = rules.immutableClone();
 		
-		finishInitialization();
+		finishInitialization(candidateRulesByKey, candidateIndexByKey);
 	}
 	
 	
@@ -88,9 +162,54 @@ public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 	}
 	
 	
+	/**
+	 * Cache of inferred values shared by all contexts of this model.
+	 * 
+	 * @return the cache, null if disabled
+	 */
+	public InferenceCache inferenceCache()
+	{
+		return this.inferenceCache;
+	}
+	
+	
+	public void setInferenceCache(InferenceCache inferenceCache)
+	{
+		this.inferenceCache = inferenceCache;
+	}
+	
+	
+	/**
+	 * Symbol table of the keys used by the rules of this model.
+	 */
+	public KeyTable keyTable()
+	{
+		return this.keyTable;
+	}
+	
+	
+	/**
+	 * Dependencies between the keys of this model, indexed by the ids of its
+	 * key table.
+	 */
+	public DependencyGraph dependencyGraph()
+	{
+		return this.dependencyGraph;
+	}
+	
+	
 	
 	// Public instance methods
 	
+	/**
+	 * Lists the right-hand side keys rules are defined for.
+	 */
+	public NSArray candidateKeys()
+	{
+		return this.candidateRulesByKey.allKeys();
+	}
+	
+	
 	public NSArray candidateRulesForKey(String key)
 	{
 		NSArray candidateRules = (NSArray) this.candidateRulesByKey.objectForKey(key);
@@ -99,40 +218,237 @@ public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 	}
 	
 	
-	private void finishInitialization()
+	/**
+	 * Discrimination tree over the candidate rules for a key.
+	 * 
+	 * @see DiscriminationNode
+	 */
+	public DiscriminationNode candidateIndexForKey(String key)
 	{
-		// Candidate rules are sorted according to priority, from highest to
-		// lowest. Within that, they are sorted by the number of qualifier keys
-		// in the left-hand side. This guarantees that the rule at the front of
-		// the returned array (index 0) will be the most specific rule possible.
+		return (DiscriminationNode) this.candidateIndexByKey.objectForKey(key);
+	}
+	
+	
+	/**
+	 * Discrimination tree over the rules for a key that inference may fire.
+	 * Same as candidateIndexForKey() unless shadowed rules are pruned.
+	 * 
+	 * @see RuleAnalyzer
+	 */
+	public DiscriminationNode inferenceIndexForKey(String key)
+	{
+		return (DiscriminationNode) this.inferenceIndexByKey.objectForKey(key);
+	}
+	
+	
+	/**
+	 * Creates a model for an updated set of rules, e.g. after a model file
+	 * was edited.<br/>
+	 * 
+	 * Keys whose rules did not change keep their sorted candidate list and
+	 * their discrimination index. The rules of these keys are replaced by the
+	 * equal instances of this model, so that rules() and the candidate lists
+	 * share the same Rule instances. Only the other keys are sorted and indexed
+	 * anew. The inference cache is carried over, less the entries for or
+	 * depending on changed keys.<br/>
+	 * 
+	 * This model is left untouched. Contexts using it are not affected.
+	 * 
+	 * @param newRules
+	 *            all rules of the updated model
+	 * @return the updated model
+	 */
+	public RuleModel modelWithRules(NSArray newRules)
+	{
+		NSDictionary previousRulesByKey = DictionaryUtilities.dictionaryFromArrayWithKeyPath(
+				rules(), "rhs.keyPath", true);
+		NSDictionary newRulesByKey = DictionaryUtilities.dictionaryFromArrayWithKeyPath(newRules,
+				"rhs.keyPath", true);
+		NSMutableDictionary candidateRules = new NSMutableDictionary();
+		NSMutableDictionary candidateIndex = new NSMutableDictionary();
+		NSMutableSet changedKeys = new NSMutableSet(previousRulesByKey.allKeys());
+		IdentityHashMap reusedRules = new IdentityHashMap();
+		Enumeration allKeys = newRulesByKey.keyEnumerator();
 		
-		EOSortOrdering priorityOrdering = new EOSortOrdering("priority",
-				EOSortOrdering.CompareDescending);
-		EOSortOrdering qualifierKeysCountOrdering = new EOSortOrdering(
-				"lhs.allQualifierKeys.count", EOSortOrdering.CompareDescending);
-		EOSortOrdering qualifierKeyAlphabeticOrdering = new EOSortOrdering(
-				"lhs.toString", EOSortOrdering.CompareDescending);
+		while (allKeys.hasMoreElements()) {
+			String currentKey = (String) allKeys.nextElement();
+			NSArray matchingRules = (NSArray) newRulesByKey.objectForKey(currentKey);
+			NSArray previousRules = (NSArray) previousRulesByKey.objectForKey(currentKey);
+			
+			if (matchingRules.equals(previousRules)) {
+				int mCount = matchingRules.count();
+				
+				for (int m = 0; m < mCount; m++) {
+					reusedRules.put(matchingRules.objectAtIndex(m), previousRules.objectAtIndex(m));
+				}
+				
+				candidateRules.setObjectForKey(candidateRulesForKey(currentKey), currentKey);
+				candidateIndex.setObjectForKey(candidateIndexForKey(currentKey), currentKey);
+				changedKeys.removeObject(currentKey);
+			} else {
+				candidateRules.setObjectForKey(RuleModel.sortedRules(matchingRules), currentKey);
+				changedKeys.addObject(currentKey);
+			}
+		}
 		
-		NSArray candidateSort = new NSArray(new EOSortOrdering[] { priorityOrdering,
-				qualifierKeysCountOrdering, qualifierKeyAlphabeticOrdering });
+		int nCount = newRules.count();
+		NSMutableArray modelRules = new NSMutableArray(nCount);
+		
+		for (int n = 0; n < nCount; n++) {
+			Object rule = newRules.objectAtIndex(n);
+			Object reusedRule = reusedRules.get(rule);
+			
+			modelRules.addObject((reusedRule != null) ? reusedRule : rule);
+		}
+		
+		RuleModel model = new RuleModel(modelRules, candidateRules, candidateIndex);
+		
+		if (this.inferenceCache != null) {
+			model.setInferenceCache(this.inferenceCache.cacheInvalidatingKeys(changedKeys));
+		}
+		
+		return model;
+	}
+	
+	
+	private void finishInitialization(NSDictionary sortedCandidateRules,
+			NSDictionary reusableCandidateIndex)
+	{
+		if (sortedCandidateRules == null) {
+			sortedCandidateRules = sortCandidateRules();
+		}
 		
-		NSArray allRules = rules();
-		NSDictionary rulesByKey = DictionaryUtilities.dictionaryFromArrayWithKeyPath(allRules,
-				"rhs.keyPath", true);
 		NSMutableDictionary candidateRules = new NSMutableDictionary();
-		Enumeration allKeys = rulesByKey.keyEnumerator();
+		NSMutableDictionary candidateIndex = new NSMutableDictionary();
+		Enumeration allKeys = sortedCandidateRules.keyEnumerator();
 		
 		while (allKeys.hasMoreElements()) {
 			String currentKey = (String) allKeys.nextElement();
-			NSArray matchingRules = (NSArray) rulesByKey.objectForKey(currentKey);
+			NSArray matchingRules = (NSArray) sortedCandidateRules.objectForKey(currentKey);
+			DiscriminationNode index = null;
+			
+			if (reusableCandidateIndex != null) {
+				index = (DiscriminationNode) reusableCandidateIndex.objectForKey(currentKey);
+			}
 			
-			matchingRules = EOSortOrdering.sortedArrayUsingKeyOrderArray(matchingRules,
-					candidateSort);
+			if (index == null) {
+				int rCount = matchingRules.count();
+				
+				for (int r = 0; r < rCount; r++) {
+					((Rule) matchingRules.objectAtIndex(r)).compiledLhs();
+				}
+				
+				index = new DiscriminationNode(matchingRules);
+			}
 			
 			candidateRules.setObjectForKey(matchingRules, currentKey);
+			candidateIndex.setObjectForKey(index, currentKey);
 		}
 		
 		this.candidateRulesByKey = candidateRules;
+		this.candidateIndexByKey = candidateIndex;
+		this.inferenceIndexByKey = candidateIndex;
+		
+		if (Boolean.getBoolean(PRUNE_SHADOWED_RULES_PROPERTY)) {
+			pruneShadowedRules();
+		}
+		
+		this.keyTable = buildKeyTable();
+		this.dependencyGraph = new DependencyGraph(candidateRules, this.keyTable);
+		
+		int inferenceCacheSize = Integer.getInteger(INFERENCE_CACHE_SIZE_PROPERTY, 0).intValue();
+		
+		if (inferenceCacheSize > 0) {
+			this.inferenceCache = new InferenceCache(inferenceCacheSize);
+		}
+	}
+	
+	
+	private void pruneShadowedRules()
+	{
+		RuleAnalyzer analyzer = new RuleAnalyzer(this.candidateRulesByKey);
+		NSMutableDictionary inferenceIndex = new NSMutableDictionary();
+		Enumeration allKeys = this.candidateRulesByKey.keyEnumerator();
+		
+		while (allKeys.hasMoreElements()) {
+			String currentKey = (String) allKeys.nextElement();
+			NSArray candidateRules = candidateRulesForKey(currentKey);
+			NSArray inferenceRules = analyzer.inferenceRulesForKey(currentKey);
+			
+			if (inferenceRules.count() < candidateRules.count()) {
+				inferenceIndex.setObjectForKey(new DiscriminationNode(inferenceRules), currentKey);
+			} else {
+				inferenceIndex.setObjectForKey(candidateIndexForKey(currentKey), currentKey);
+			}
+		}
+		
+		this.inferenceIndexByKey = inferenceIndex;
+		
+		if (NSLog.debugLoggingAllowedForLevel(NSLog.DebugLevelInformational)) {
+			NSLog.debug.appendln(analyzer.report());
+		}
+	}
+	
+	
+	private KeyTable buildKeyTable()
+	{
+		KeyTable table = new KeyTable();
+		KVCUtility kvcUtility = KVCUtility.sharedInstance();
+		Enumeration allKeys = this.candidateRulesByKey.keyEnumerator();
+		
+		while (allKeys.hasMoreElements()) {
+			table.intern((String) allKeys.nextElement());
+		}
+		
+		Enumeration allCandidates = this.candidateRulesByKey.objectEnumerator();
+		
+		while (allCandidates.hasMoreElements()) {
+			NSArray candidates = (NSArray) allCandidates.nextElement();
+			int cCount = candidates.count();
+			
+			for (int c = 0; c < cCount; c++) {
+				Rule rule = (Rule) candidates.objectAtIndex(c);
+				CompiledQualifier lhs = rule.compiledLhs();
+				NSArray readKeys = DependencyGraph.contextKeysReadByAssignment(rule.rhs());
+				
+				if (readKeys != null) {
+					int rkCount = readKeys.count();
+					
+					for (int rk = 0; rk < rkCount; rk++) {
+						table.intern((String) readKeys.objectAtIndex(rk));
+					}
+				}
+				
+				if (lhs != null) {
+					Enumeration qualifierKeys = lhs.qualifierKeys().objectEnumerator();
+					
+					while (qualifierKeys.hasMoreElements()) {
+						table.intern(kvcUtility.firstPathComponent((String) qualifierKeys
+								.nextElement()));
+					}
+				}
+			}
+		}
+		
+		return table;
+	}
+	
+	
+	private NSDictionary sortCandidateRules()
+	{
+		NSDictionary rulesByKey = DictionaryUtilities.dictionaryFromArrayWithKeyPath(rules(),
+				"rhs.keyPath", true);
+		NSMutableDictionary candidateRules = new NSMutableDictionary();
+		Enumeration allKeys = rulesByKey.keyEnumerator();
+		
+		while (allKeys.hasMoreElements()) {
+			String currentKey = (String) allKeys.nextElement();
+			NSArray matchingRules = (NSArray) rulesByKey.objectForKey(currentKey);
+			
+			candidateRules.setObjectForKey(RuleModel.sortedRules(matchingRules), currentKey);
+		}
+		
+		return candidateRules;
 	}
 	
 	
@@ -169,6 +485,30 @@ public class RuleModel implements Cloneable, NSCoding, EOKeyValueArchiving
 	
 	
 	
+	// Private class methods
+	
+	private static NSArray sortedRules(NSArray rules)
+	{
+		// Candidate rules are sorted according to priority, from highest to
+		// lowest. Within that, they are sorted by the number of qualifier keys
+		// in the left-hand side. This guarantees that the rule at the front of
+		// the returned array (index 0) will be the most specific rule possible.
+		
+		EOSortOrdering priorityOrdering = new EOSortOrdering("priority",
+				EOSortOrdering.CompareDescending);
+		EOSortOrdering qualifierKeysCountOrdering = new EOSortOrdering(
+				"lhs.allQualifierKeys.count", EOSortOrdering.CompareDescending);
+		EOSortOrdering qualifierKeyAlphabeticOrdering = new EOSortOrdering(
+				"lhs.toString", EOSortOrdering.CompareDescending);
+		
+		NSArray candidateSort = new NSArray(new EOSortOrdering[] { priorityOrdering,
+				qualifierKeysCountOrdering, qualifierKeyAlphabeticOrdering });
+		
+		return EOSortOrdering.sortedArrayUsingKeyOrderArray(rules, candidateSort);
+	}
+	
+	
+	
 	// Conformance with NSCoding
 	
 	public Class classForCoder()
@@ -0,0 +1,231 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.io.File;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSLog;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Holder for a rule model loaded from bundles, which may be reloaded while
+ * the application is running.<br/>
+ * 
+ * Clients should ask the loader for its model whenever they create a new
+ * RuleContext rather than keep a reference to the model. A reload builds an
+ * updated model and swaps it in atomically. Contexts created before the swap
+ * keep working with the model they were created with.<br/>
+ * 
+ * When the RELOAD_INTERVAL_PROPERTY system property is set, the model files
+ * are checked for changes at the given interval by a background timer.
+ * 
+ * @see RuleModel#modelWithRules(NSArray)
+ */
+public class RuleModelLoader
+{
+	// Public class constants
+	
+	/**
+	 * System property holding the interval, in seconds, at which model files
+	 * are checked for changes. Models are not reloaded when not set.
+	 */
+	public static final String	RELOAD_INTERVAL_PROPERTY	= "HoudahRuleEngine.reloadInterval";
+	
+	
+	
+	// Private instance variables
+	
+	private String				extension;
+	
+	
+	private NSSet				includeNames;
+	
+	
+	private NSSet				excludeNames;
+	
+	
+	private NSSet				includesFiles;
+	
+	
+	private volatile RuleModel	model;
+	
+	
+	private String				checksum;
+	
+	
+	private Timer				timer;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.<br/>
+	 * 
+	 * Loads the model right away. The arguments are those of
+	 * RuleModelUtilities.loadFromBundles().
+	 * 
+	 * @see RuleModelUtilities#loadFromBundles(String, NSSet, NSSet, NSSet)
+	 */
+	public RuleModelLoader(String extension, NSSet includeNames, NSSet excludeNames,
+			NSSet includesFiles)
+	{
+		this.extension = extension;
+		this.includeNames = includeNames;
+		this.excludeNames = excludeNames;
+		this.includesFiles = includesFiles;
+		
+		NSArray ruleFiles = ruleFiles();
+		
+		this.checksum = RuleModelSnapshot.checksum(ruleFiles);
+		this.model = RuleModelUtilities.loadFromRuleFiles(ruleFiles, snapshotFile(),
+				this.checksum);
+		
+		int reloadInterval = Integer.getInteger(RELOAD_INTERVAL_PROPERTY, 0).intValue();
+		
+		if (reloadInterval > 0) {
+			startWatching(reloadInterval * 1000L);
+		}
+	}
+	
+	
+	
+	// Public accessors
+	
+	/**
+	 * The current model. To be used when creating new rule contexts.
+	 */
+	public RuleModel model()
+	{
+		return this.model;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	/**
+	 * Checks the model files for changes. If any, an updated model is built
+	 * and replaces the current one.
+	 * 
+	 * @return true if the model was replaced
+	 */
+	public synchronized boolean reload()
+	{
+		NSArray ruleFiles = ruleFiles();
+		String newChecksum = RuleModelSnapshot.checksum(ruleFiles);
+		
+		if (newChecksum.equals(this.checksum)) {
+			return false;
+		}
+		
+		long start = System.currentTimeMillis();
+		RuleModel newModel = this.model.modelWithRules(RuleModelUtilities.decodeAll(ruleFiles));
+		File snapshotFile = snapshotFile();
+		
+		if (snapshotFile != null) {
+			RuleModelSnapshot.write(newModel, snapshotFile, newChecksum);
+		}
+		
+		this.checksum = newChecksum;
+		this.model = newModel;
+		
+		NSLog.out.appendln("Reloaded " + this.extension + " rule model in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Starts checking the model files for changes in the background.
+	 * 
+	 * @param interval
+	 *            time between checks, in milliseconds
+	 */
+	public synchronized void startWatching(long interval)
+	{
+		stopWatching();
+		
+		this.timer = new Timer("RuleModelLoader-" + this.extension, true);
+		this.timer.schedule(new ReloadTask(), interval, interval);
+	}
+	
+	
+	public synchronized void stopWatching()
+	{
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
+		}
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected NSArray ruleFiles()
+	{
+		return RuleModelUtilities.ruleFilesFromBundles(this.extension, this.includeNames,
+				this.excludeNames, this.includesFiles);
+	}
+	
+	
+	protected File snapshotFile()
+	{
+		return RuleModelSnapshot.snapshotFile(this.extension, this.includeNames,
+				this.excludeNames, this.includesFiles);
+	}
+	
+	
+	
+	
+	// Protected inner classes
+	
+	/**
+	 * Periodic check for changes. A model file that fails to decode leaves
+	 * the current model in place.
+	 */
+	protected class ReloadTask extends TimerTask
+	{
+		public void run()
+		{
+			try {
+				reload();
+			} catch (RuntimeException e) {
+				NSLog.err.appendln("Failed to reload " + RuleModelLoader.this.extension
+						+ " rule model: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,604 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import com.houdah.foundation.ForwardException;
+
+import com.webobjects.eocontrol.EOKeyValueArchiver;
+import com.webobjects.eocontrol.EOKeyValueUnarchiver;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSLog;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSSet;
+
+/**
+ * Compact binary snapshot of a RuleModel.<br/>
+ * 
+ * A snapshot holds the key-value archive of the rules, with fully expanded
+ * class names, and the priority order of the candidate rules for every key.
+ * Loading a snapshot therefore skips property list parsing, class name
+ * translation and candidate sorting.<br/>
+ * 
+ * Each snapshot records a checksum of the model files it was built from. It
+ * is only used while that checksum matches the current files.<br/>
+ * 
+ * Snapshots are written and read from the directory named by the
+ * HoudahRuleEngine.snapshotDirectory system property. When the property is
+ * not set, snapshots are disabled.
+ */
+public class RuleModelSnapshot
+{
+	// Public class constants
+	
+	/**
+	 * System property naming the directory snapshots are kept in.
+	 */
+	public static final String	SNAPSHOT_DIRECTORY_PROPERTY	= "HoudahRuleEngine.snapshotDirectory";
+	
+	
+	/**
+	 * Extension of the snapshot files.
+	 */
+	public static final String	SNAPSHOT_EXT				= ".d2wsnapshot";
+	
+	
+	
+	// Protected class constants
+	
+	protected static final int	MAGIC						= 0x48524D53;
+	
+	
+	protected static final int	VERSION						= 1;
+	
+	
+	protected static final String	CANDIDATES_KEY				= "candidates";
+	
+	
+	protected static final byte	STRING_TAG					= 0;
+	
+	
+	protected static final byte	ARRAY_TAG					= 1;
+	
+	
+	protected static final byte	DICTIONARY_TAG				= 2;
+	
+	
+	protected static final byte	DATA_TAG					= 3;
+	
+	
+	protected static final byte	INTEGER_TAG					= 4;
+	
+	
+	protected static final byte	LONG_TAG					= 5;
+	
+	
+	protected static final byte	DOUBLE_TAG					= 6;
+	
+	
+	protected static final byte	BOOLEAN_TAG					= 7;
+	
+	
+	protected static final byte	DECIMAL_TAG					= 8;
+	
+	
+	protected static final byte	NULL_TAG					= 9;
+	
+	
+	
+	// Private instance variables
+	
+	private NSMutableArray		strings;
+	
+	
+	private NSMutableDictionary	stringIndexes;
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor
+	 */
+	protected RuleModelSnapshot()
+	{
+		this.strings = new NSMutableArray();
+		this.stringIndexes = new NSMutableDictionary();
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * Determines the snapshot file for a given set of loading parameters.
+	 * 
+	 * @return the file, null if snapshots are disabled
+	 */
+	public static File snapshotFile(String extension, NSSet includeNames, NSSet excludeNames,
+			NSSet includesFiles)
+	{
+		String directory = System.getProperty(SNAPSHOT_DIRECTORY_PROPERTY);
+		
+		if (directory == null) {
+			return null;
+		}
+		
+		String parameters = RuleModelSnapshot.sortedDescription(includeNames) + "|"
+				+ RuleModelSnapshot.sortedDescription(excludeNames) + "|"
+				+ RuleModelSnapshot.sortedDescription(includesFiles);
+		String fileName = extension + "-" + RuleModelSnapshot.digest(parameters).substring(0, 8)
+				+ SNAPSHOT_EXT;
+		
+		return new File(directory, fileName);
+	}
+	
+	
+	/**
+	 * Computes the checksum of a list of model files.
+	 * 
+	 * @param ruleFiles
+	 *            array of two-element arrays: resource path and contents
+	 */
+	public static String checksum(NSArray ruleFiles)
+	{
+		StringBuffer buffer = new StringBuffer();
+		Enumeration ruleFileEnumeration = ruleFiles.objectEnumerator();
+		
+		buffer.append(VERSION);
+		
+		while (ruleFileEnumeration.hasMoreElements()) {
+			NSArray ruleFile = (NSArray) ruleFileEnumeration.nextElement();
+			
+			buffer.append('\u0000');
+			buffer.append(ruleFile.objectAtIndex(0));
+			buffer.append('\u0000');
+			buffer.append(ruleFile.objectAtIndex(1));
+		}
+		
+		return RuleModelSnapshot.digest(buffer.toString());
+	}
+	
+	
+	/**
+	 * Reads a snapshot.
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @param checksum
+	 *            the checksum of the current model files
+	 * @return the model, null if there is no snapshot for this checksum
+	 */
+	public static RuleModel read(File file, String checksum)
+	{
+		if ((file == null) || !file.isFile()) {
+			return null;
+		}
+		
+		try {
+			FileInputStream stream = new FileInputStream(file);
+			
+			try {
+				FileChannel channel = stream.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+						.size());
+				
+				if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+					return null;
+				}
+				
+				if (!checksum.equals(RuleModelSnapshot.readUTF(buffer))) {
+					return null;
+				}
+				
+				int sCount = buffer.getInt();
+				String[] strings = new String[sCount];
+				
+				for (int s = 0; s < sCount; s++) {
+					strings[s] = RuleModelSnapshot.readUTF(buffer);
+				}
+				
+				NSDictionary archive = (NSDictionary) RuleModelSnapshot.readObject(buffer,
+						strings);
+				
+				return RuleModelSnapshot.modelFromArchive(archive);
+			} finally {
+				stream.close();
+			}
+		} catch (Exception e) {
+			NSLog.err.appendln("Ignoring unreadable rule model snapshot " + file + ": " + e);
+			
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Writes a snapshot. Failures are logged, not thrown, as a missing
+	 * snapshot only costs startup time.
+	 * 
+	 * @param model
+	 *            the model to save
+	 * @param file
+	 *            the snapshot file
+	 * @param checksum
+	 *            the checksum of the model files the model was built from
+	 */
+	public static void write(RuleModel model, File file, String checksum)
+	{
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		
+		try {
+			NSDictionary archive = RuleModelSnapshot.archiveFromModel(model);
+			RuleModelSnapshot snapshot = new RuleModelSnapshot();
+			
+			snapshot.collectStrings(archive);
+			
+			File directory = file.getParentFile();
+			
+			if (directory != null) {
+				directory.mkdirs();
+			}
+			
+			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temporaryFile)));
+			
+			try {
+				stream.writeInt(MAGIC);
+				stream.writeInt(VERSION);
+				RuleModelSnapshot.writeUTF(stream, checksum);
+				
+				int sCount = snapshot.strings.count();
+				
+				stream.writeInt(sCount);
+				
+				for (int s = 0; s < sCount; s++) {
+					RuleModelSnapshot.writeUTF(stream, (String) snapshot.strings.objectAtIndex(s));
+				}
+				
+				snapshot.writeObject(stream, archive);
+			} finally {
+				stream.close();
+			}
+			
+			file.delete();
+			
+			if (!temporaryFile.renameTo(file)) {
+				throw new IOException("Unable to rename " + temporaryFile + " to " + file);
+			}
+		} catch (Exception e) {
+			temporaryFile.delete();
+			
+			NSLog.err.appendln("Unable to write rule model snapshot " + file + ": " + e);
+		}
+	}
+	
+	
+	
+	// Protected class methods
+	
+	protected static NSDictionary archiveFromModel(RuleModel model)
+	{
+		NSArray rules = model.rules();
+		EOKeyValueArchiver archiver = new EOKeyValueArchiver();
+		
+		archiver.encodeObject(rules, RuleModel.RULES_KEY);
+		
+		NSMutableDictionary candidateIndexes = new NSMutableDictionary();
+		Enumeration keyEnumeration = model.candidateKeys().objectEnumerator();
+		
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			NSArray candidateRules = model.candidateRulesForKey(key);
+			int cCount = candidateRules.count();
+			NSMutableArray indexes = new NSMutableArray(cCount);
+			
+			for (int c = 0; c < cCount; c++) {
+				int index = rules.indexOfIdenticalObject(candidateRules.objectAtIndex(c));
+				
+				indexes.addObject(new Integer(index));
+			}
+			
+			candidateIndexes.setObjectForKey(indexes, key);
+		}
+		
+		NSMutableDictionary archive = new NSMutableDictionary();
+		
+		archive.setObjectForKey(archiver.dictionary(), RuleModel.RULES_KEY);
+		archive.setObjectForKey(candidateIndexes, CANDIDATES_KEY);
+		
+		return archive;
+	}
+	
+	
+	protected static RuleModel modelFromArchive(NSDictionary archive)
+	{
+		EOKeyValueUnarchiver unarchiver = new EOKeyValueUnarchiver((NSDictionary) archive
+				.objectForKey(RuleModel.RULES_KEY));
+		NSArray rules = (NSArray) unarchiver.decodeObjectForKey(RuleModel.RULES_KEY);
+		
+		unarchiver.finishInitializationOfObjects();
+		
+		NSDictionary candidateIndexes = (NSDictionary) archive.objectForKey(CANDIDATES_KEY);
+		NSMutableDictionary candidateRules = new NSMutableDictionary(candidateIndexes.count());
+		Enumeration keyEnumeration = candidateIndexes.keyEnumerator();
+		
+		while (keyEnumeration.hasMoreElements()) {
+			String key = (String) keyEnumeration.nextElement();
+			NSArray indexes = (NSArray) candidateIndexes.objectForKey(key);
+			int iCount = indexes.count();
+			NSMutableArray keyRules = new NSMutableArray(iCount);
+			
+			for (int i = 0; i < iCount; i++) {
+				int index = ((Integer) indexes.objectAtIndex(i)).intValue();
+				
+				keyRules.addObject(rules.objectAtIndex(index));
+			}
+			
+			candidateRules.setObjectForKey(keyRules.immutableClone(), key);
+		}
+		
+		return new RuleModel(rules, candidateRules);
+	}
+	
+	
+	protected static String digest(String string)
+	{
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+			byte[] digest = messageDigest.digest(string.getBytes("UTF-8"));
+			StringBuffer buffer = new StringBuffer(digest.length * 2);
+			
+			for (int d = 0; d < digest.length; d++) {
+				int b = digest[d] & 0xff;
+				
+				if (b < 0x10) {
+					buffer.append('0');
+				}
+				
+				buffer.append(Integer.toHexString(b));
+			}
+			
+			return buffer.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new ForwardException(nsae);
+		} catch (UnsupportedEncodingException uee) {
+			throw new ForwardException(uee);
+		}
+	}
+	
+	
+	protected static String sortedDescription(NSSet set)
+	{
+		if (set == null) {
+			return "";
+		}
+		
+		Object[] objects = set.allObjects().objects();
+		
+		Arrays.sort(objects);
+		
+		return new NSArray(objects).toString();
+	}
+	
+	
+	protected static void writeUTF(DataOutputStream stream, String string) throws IOException
+	{
+		byte[] bytes = string.getBytes("UTF-8");
+		
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+	
+	
+	protected static String readUTF(ByteBuffer buffer) throws IOException
+	{
+		byte[] bytes = new byte[buffer.getInt()];
+		
+		buffer.get(bytes);
+		
+		return new String(bytes, "UTF-8");
+	}
+	
+	
+	protected static Object readObject(ByteBuffer buffer, String[] strings) throws IOException
+	{
+		byte tag = buffer.get();
+		
+		switch (tag) {
+			case STRING_TAG:
+				return strings[buffer.getInt()];
+			case ARRAY_TAG: {
+				int count = buffer.getInt();
+				Object[] objects = new Object[count];
+				
+				for (int i = 0; i < count; i++) {
+					objects[i] = RuleModelSnapshot.readObject(buffer, strings);
+				}
+				
+				return new NSArray(objects);
+			}
+			case DICTIONARY_TAG: {
+				int count = buffer.getInt();
+				Object[] keys = new Object[count];
+				Object[] values = new Object[count];
+				
+				for (int i = 0; i < count; i++) {
+					keys[i] = RuleModelSnapshot.readObject(buffer, strings);
+					values[i] = RuleModelSnapshot.readObject(buffer, strings);
+				}
+				
+				return new NSDictionary(values, keys);
+			}
+			case DATA_TAG: {
+				byte[] bytes = new byte[buffer.getInt()];
+				
+				buffer.get(bytes);
+				
+				return new NSData(bytes);
+			}
+			case INTEGER_TAG:
+				return new Integer(buffer.getInt());
+			case LONG_TAG:
+				return new Long(buffer.getLong());
+			case DOUBLE_TAG:
+				return new Double(buffer.getDouble());
+			case BOOLEAN_TAG:
+				return (buffer.get() != 0) ? Boolean.TRUE : Boolean.FALSE;
+			case DECIMAL_TAG:
+				return new BigDecimal(strings[buffer.getInt()]);
+			case NULL_TAG:
+				return NSKeyValueCoding.NullValue;
+			default:
+				throw new IOException("Unknown tag " + tag);
+		}
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected void collectStrings(Object object)
+	{
+		if (object instanceof String) {
+			internString((String) object);
+		} else if (object instanceof BigDecimal) {
+			internString(object.toString());
+		} else if (object instanceof NSDictionary) {
+			NSDictionary dictionary = (NSDictionary) object;
+			Enumeration keyEnumeration = dictionary.keyEnumerator();
+			
+			while (keyEnumeration.hasMoreElements()) {
+				Object key = keyEnumeration.nextElement();
+				
+				collectStrings(key);
+				collectStrings(dictionary.objectForKey(key));
+			}
+		} else if (object instanceof NSArray) {
+			Enumeration objectEnumeration = ((NSArray) object).objectEnumerator();
+			
+			while (objectEnumeration.hasMoreElements()) {
+				collectStrings(objectEnumeration.nextElement());
+			}
+		}
+	}
+	
+	
+	protected void internString(String string)
+	{
+		if (this.stringIndexes.objectForKey(string) == null) {
+			this.stringIndexes.setObjectForKey(new Integer(this.strings.count()), string);
+			this.strings.addObject(string);
+		}
+	}
+	
+	
+	protected int indexOfString(String string)
+	{
+		return ((Integer) this.stringIndexes.objectForKey(string)).intValue();
+	}
+	
+	
+	protected void writeObject(DataOutputStream stream, Object object) throws IOException
+	{
+		if (object instanceof String) {
+			stream.writeByte(STRING_TAG);
+			stream.writeInt(indexOfString((String) object));
+		} else if (object instanceof NSDictionary) {
+			NSDictionary dictionary = (NSDictionary) object;
+			Enumeration keyEnumeration = dictionary.keyEnumerator();
+			
+			stream.writeByte(DICTIONARY_TAG);
+			stream.writeInt(dictionary.count());
+			
+			while (keyEnumeration.hasMoreElements()) {
+				Object key = keyEnumeration.nextElement();
+				
+				writeObject(stream, key);
+				writeObject(stream, dictionary.objectForKey(key));
+			}
+		} else if (object instanceof NSArray) {
+			NSArray array = (NSArray) object;
+			int count = array.count();
+			
+			stream.writeByte(ARRAY_TAG);
+			stream.writeInt(count);
+			
+			for (int i = 0; i < count; i++) {
+				writeObject(stream, array.objectAtIndex(i));
+			}
+		} else if (object instanceof NSData) {
+			byte[] bytes = ((NSData) object).bytes();
+			
+			stream.writeByte(DATA_TAG);
+			stream.writeInt(bytes.length);
+			stream.write(bytes);
+		} else if (object instanceof Integer) {
+			stream.writeByte(INTEGER_TAG);
+			stream.writeInt(((Integer) object).intValue());
+		} else if (object instanceof Long) {
+			stream.writeByte(LONG_TAG);
+			stream.writeLong(((Long) object).longValue());
+		} else if (object instanceof Double) {
+			stream.writeByte(DOUBLE_TAG);
+			stream.writeDouble(((Double) object).doubleValue());
+		} else if (object instanceof Boolean) {
+			stream.writeByte(BOOLEAN_TAG);
+			stream.writeByte(((Boolean) object).booleanValue() ? 1 : 0);
+		} else if (object instanceof BigDecimal) {
+			stream.writeByte(DECIMAL_TAG);
+			stream.writeInt(indexOfString(object.toString()));
+		} else if (object == NSKeyValueCoding.NullValue) {
+			stream.writeByte(NULL_TAG);
+		} else {
+			throw new IOException("Unable to write objects of class "
+					+ ((object != null) ? object.getClass().getName() : "null"));
+		}
+	}
+}
\ No newline at end of file
@@ -32,11 +32,17 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.houdah.eocontrol.qualifiers.BestMatchQualifier;
 import com.houdah.eocontrol.qualifiers.BestRelationshipMatchesQualifier;
 import com.houdah.eocontrol.qualifiers.ExistsInRelationshipQualifier;
 import com.houdah.eocontrol.qualifiers.InSubqueryQualifier;
+import com.houdah.foundation.ForwardException;
 import com.houdah.foundation.utilities.StringUtilities;
 
 import com.webobjects.eocontrol.EOAndQualifier;
@@ -50,6 +56,7 @@ import com.webobjects.eocontrol.EOQualifierVariable;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSBundle;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSLog;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSPropertyListSerialization;
@@ -65,6 +72,13 @@ public class RuleModelUtilities
 	public static String		MODEL_EXT			= ".d2wmodel";
 	
 	
+	/**
+	 * System property holding the number of threads used to decode model
+	 * files. Defaults to the number of available processors.
+	 */
+	public static String		LOADER_THREADS_PROPERTY	= "HoudahRuleEngine.loaderThreads";
+	
+	
 	
 	// Private class variables
 	
@@ -116,7 +130,69 @@ public class RuleModelUtilities
 	public static RuleModel loadFromBundles(String extension, NSSet includeNames,
 			NSSet excludeNames, NSSet includesFiles)
 	{
-		NSMutableArray rules = new NSMutableArray();
+		NSArray ruleFiles = RuleModelUtilities.ruleFilesFromBundles(extension, includeNames,
+				excludeNames, includesFiles);
+		File snapshotFile = RuleModelSnapshot.snapshotFile(extension, includeNames,
+				excludeNames, includesFiles);
+		String checksum = (snapshotFile != null) ? RuleModelSnapshot.checksum(ruleFiles) : null;
+		
+		return RuleModelUtilities.loadFromRuleFiles(ruleFiles, snapshotFile, checksum);
+	}
+	
+	
+	public static RuleModel loadFromFile(File file)
+	{
+		String contents = StringUtilities.stringFromFile(file);
+		
+		return new RuleModel(RuleModelUtilities.decode(contents));
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Builds a model from model files, going through the snapshot if
+	 * possible.
+	 * 
+	 * @param ruleFiles
+	 *            as returned by ruleFilesFromBundles()
+	 * @param snapshotFile
+	 *            the snapshot to read or write, null to skip snapshots
+	 * @param checksum
+	 *            the checksum of ruleFiles, required if snapshotFile is set
+	 */
+	protected static RuleModel loadFromRuleFiles(NSArray ruleFiles, File snapshotFile,
+			String checksum)
+	{
+		if (snapshotFile != null) {
+			RuleModel snapshotModel = RuleModelSnapshot.read(snapshotFile, checksum);
+			
+			if (snapshotModel != null) {
+				return snapshotModel;
+			}
+		}
+		
+		RuleModel model = new RuleModel(RuleModelUtilities.decodeAll(ruleFiles));
+		
+		if (snapshotFile != null) {
+			RuleModelSnapshot.write(model, snapshotFile, checksum);
+		}
+		
+		return model;
+	}
+	
+	
+	/**
+	 * Reads the model files matching the arguments of loadFromBundles().
+	 * 
+	 * @return an array of two-element arrays: the location of the file and its
+	 *         contents
+	 */
+	protected static NSArray ruleFilesFromBundles(String extension, NSSet includeNames,
+			NSSet excludeNames, NSSet includesFiles)
+	{
+		NSMutableArray ruleFiles = new NSMutableArray();
 		NSArray frameworkBundles = NSBundle.frameworkBundles();
 		NSArray allBundles = frameworkBundles.arrayByAddingObject(NSBundle.mainBundle());
 		Enumeration bundleEnumeration = allBundles.objectEnumerator();
@@ -162,7 +238,10 @@ public class RuleModelUtilities
 				InputStream inputStream = bundle.inputStreamForResourcePath(resourcePath);
 				String string = StringUtilities.stringFromInputStream(inputStream);
 				
-				rules.addObjectsFromArray(RuleModelUtilities.decode(string));
+				if (string != null) {
+					ruleFiles.addObject(new NSArray(new Object[] {
+							bundle.name() + ":" + resourcePath, string }));
+				}
 			}
 			
 			if (includesFiles != null) {
@@ -180,28 +259,101 @@ public class RuleModelUtilities
 									.inputStreamForResourcePath(includeFilePath);
 							String string = StringUtilities.stringFromInputStream(inputStream);
 							
-							rules.addObjectsFromArray(RuleModelUtilities.decode(string));
+							if (string != null) {
+								ruleFiles.addObject(new NSArray(new Object[] {
+										bundle.name() + ":" + includeFilePath, string }));
+							}
 						}
 					}
 				}
 			}
 		}
 		
-		return new RuleModel(rules);
+		return ruleFiles;
 	}
 	
 	
-	public static RuleModel loadFromFile(File file)
+	/**
+	 * Decodes model files concurrently on a bounded thread pool.<br/>
+	 * 
+	 * Files are decoded independently. The resulting rules are concatenated
+	 * in file order, which keeps the rule order independent of thread
+	 * scheduling.
+	 * 
+	 * @param ruleFiles
+	 *            as returned by ruleFilesFromBundles()
+	 * @return the rules of all files
+	 */
+	protected static NSArray decodeAll(NSArray ruleFiles)
 	{
-		String contents = StringUtilities.stringFromFile(file);
+		int fCount = ruleFiles.count();
+		int threadCount = Math.min(fCount, Integer.getInteger(LOADER_THREADS_PROPERTY,
+				Runtime.getRuntime().availableProcessors()).intValue());
+		DecodeTask[] tasks = new DecodeTask[fCount];
+		NSArray[] decodedRules = new NSArray[fCount];
 		
-		return new RuleModel(RuleModelUtilities.decode(contents));
+		for (int f = 0; f < fCount; f++) {
+			tasks[f] = new DecodeTask((String) ((NSArray) ruleFiles.objectAtIndex(f))
+					.objectAtIndex(1));
+		}
+		
+		// Prime the shared lookup table before any worker uses it
+		RuleModelUtilities.expansionLookup();
+		
+		if (threadCount <= 1) {
+			for (int f = 0; f < fCount; f++) {
+				decodedRules[f] = (NSArray) tasks[f].call();
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			
+			try {
+				Future[] futures = new Future[fCount];
+				
+				for (int f = 0; f < fCount; f++) {
+					futures[f] = executor.submit(tasks[f]);
+				}
+				
+				for (int f = 0; f < fCount; f++) {
+					decodedRules[f] = (NSArray) futures[f].get();
+				}
+			} catch (InterruptedException ie) {
+				throw new ForwardException(ie);
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				
+				throw new ForwardException(cause);
+			} finally {
+				executor.shutdown();
+			}
+		}
+		
+		NSMutableArray rules = new NSMutableArray();
+		boolean logTimes = NSLog.debugLoggingAllowedForLevel(NSLog.DebugLevelInformational);
+		
+		for (int f = 0; f < fCount; f++) {
+			if (decodedRules[f] != null) {
+				rules.addObjectsFromArray(decodedRules[f]);
+			}
+			
+			if (logTimes) {
+				String location = (String) ((NSArray) ruleFiles.objectAtIndex(f)).objectAtIndex(0);
+				
+				NSLog.debug.appendln("Decoded " + location + " in " + tasks[f].decodeTime()
+						+ " ms");
+			}
+		}
+		
+		return rules;
 	}
 	
 	
-	
-	// Protected class methods
-	
 	protected static NSArray decode(String string)
 	{
 		if (string != null) {
@@ -368,4 +520,45 @@ public class RuleModelUtilities
 			return ((name != null) && (name.endsWith(MODEL_EXT)) && (new File(dir, name).isFile()));
 		}
 	}
+	
+	
+	
+	/**
+	 * Decodes the contents of one model file and times the operation.
+	 */
+	protected static class DecodeTask implements Callable
+	{
+		private String	string;
+		
+		
+		private long	decodeTime;
+		
+		
+		
+		
+		protected DecodeTask(String string)
+		{
+			this.string = string;
+		}
+		
+		
+		/**
+		 * @return the time spent in decoding, in milliseconds
+		 */
+		public long decodeTime()
+		{
+			return this.decodeTime;
+		}
+		
+		
+		public Object call()
+		{
+			long start = System.currentTimeMillis();
+			NSArray rules = RuleModelUtilities.decode(this.string);
+			
+			this.decodeTime = System.currentTimeMillis() - start;
+			
+			return rules;
+		}
+	}
 }
\ No newline at end of file
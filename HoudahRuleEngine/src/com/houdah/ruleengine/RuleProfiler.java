@@ -0,0 +1,379 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.webobjects.eocontrol.EOSortOrdering;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Collects the cost of rule evaluation in TracingRuleContexts.<br/>
+ * 
+ * For each rule, counts how often its left-hand side was evaluated and
+ * matched, how often it fired and the time spent doing so. For each key,
+ * counts the hits and misses of the per-context value cache. Times are
+ * inclusive: evaluating a rule may cause inference of the keys it tests.<br/>
+ * 
+ * Profiling is turned on by setting the PROFILE_PROPERTY system property to
+ * true. Otherwise sharedInstance() is null and TracingRuleContext skips all
+ * bookkeeping.
+ */
+public class RuleProfiler
+{
+	// Public class constants
+	
+	/**
+	 * System property enabling the profiler.
+	 */
+	public static final String			PROFILE_PROPERTY		= "HoudahRuleEngine.profile";
+	
+	
+	public static final String			RULE_KEY				= "rule";
+	
+	
+	public static final String			KEY_KEY					= "key";
+	
+	
+	public static final String			EVALUATION_COUNT_KEY	= "evaluationCount";
+	
+	
+	public static final String			MATCH_COUNT_KEY			= "matchCount";
+	
+	
+	public static final String			EVALUATION_TIME_KEY		= "evaluationTime";
+	
+	
+	public static final String			FIRE_COUNT_KEY			= "fireCount";
+	
+	
+	public static final String			FIRE_TIME_KEY			= "fireTime";
+	
+	
+	public static final String			HIT_COUNT_KEY			= "hitCount";
+	
+	
+	public static final String			MISS_COUNT_KEY			= "missCount";
+	
+	
+	public static final String			HIT_RATIO_KEY			= "hitRatio";
+	
+	
+	
+	// Private class constants
+	
+	private static final RuleProfiler	sharedInstance;
+	
+	
+	
+	// Static initializer
+	
+	static {
+		sharedInstance = (Boolean.getBoolean(PROFILE_PROPERTY)) ? new RuleProfiler() : null;
+	}
+	
+	
+	
+	// Private instance variables
+	
+	private ConcurrentHashMap			ruleStatistics;
+	
+	
+	private ConcurrentHashMap			keyStatistics;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 */
+	public RuleProfiler()
+	{
+		this.ruleStatistics = new ConcurrentHashMap();
+		this.keyStatistics = new ConcurrentHashMap();
+	}
+	
+	
+	
+	// Public class methods
+	
+	/**
+	 * The profiler used by TracingRuleContext.
+	 * 
+	 * @return the profiler, null unless profiling is enabled
+	 */
+	public static RuleProfiler sharedInstance()
+	{
+		return RuleProfiler.sharedInstance;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	public void ruleWasEvaluated(Rule rule, boolean matched, long nanoseconds)
+	{
+		RuleStatistics statistics = statisticsForRule(rule);
+		
+		statistics.evaluationCount.incrementAndGet();
+		statistics.evaluationTime.addAndGet(nanoseconds);
+		
+		if (matched) {
+			statistics.matchCount.incrementAndGet();
+		}
+	}
+	
+	
+	public void ruleWasFired(Rule rule, long nanoseconds)
+	{
+		RuleStatistics statistics = statisticsForRule(rule);
+		
+		statistics.fireCount.incrementAndGet();
+		statistics.fireTime.addAndGet(nanoseconds);
+	}
+	
+	
+	public void cachedValueWasLookedUp(String key, boolean found)
+	{
+		KeyStatistics statistics = (KeyStatistics) this.keyStatistics.get(key);
+		
+		if (statistics == null) {
+			KeyStatistics newStatistics = new KeyStatistics();
+			
+			statistics = (KeyStatistics) this.keyStatistics.putIfAbsent(key, newStatistics);
+			
+			if (statistics == null) {
+				statistics = newStatistics;
+			}
+		}
+		
+		if (found) {
+			statistics.hitCount.incrementAndGet();
+		} else {
+			statistics.missCount.incrementAndGet();
+		}
+	}
+	
+	
+	/**
+	 * Statistics per rule, sorted in descending order.
+	 * 
+	 * @param sortKey
+	 *            one of the *_COUNT_KEY or *_TIME_KEY constants. Times are
+	 *            in microseconds.
+	 * @return an array of dictionaries
+	 */
+	public NSArray ruleReport(String sortKey)
+	{
+		NSMutableArray rows = new NSMutableArray(this.ruleStatistics.size());
+		Iterator entryIterator = this.ruleStatistics.entrySet().iterator();
+		
+		while (entryIterator.hasNext()) {
+			Map.Entry entry = (Map.Entry) entryIterator.next();
+			RuleStatistics statistics = (RuleStatistics) entry.getValue();
+			NSMutableDictionary row = new NSMutableDictionary();
+			
+			row.setObjectForKey(entry.getKey().toString(), RULE_KEY);
+			row.setObjectForKey(new Long(statistics.evaluationCount.get()), EVALUATION_COUNT_KEY);
+			row.setObjectForKey(new Long(statistics.matchCount.get()), MATCH_COUNT_KEY);
+			row.setObjectForKey(new Long(statistics.evaluationTime.get() / 1000),
+					EVALUATION_TIME_KEY);
+			row.setObjectForKey(new Long(statistics.fireCount.get()), FIRE_COUNT_KEY);
+			row.setObjectForKey(new Long(statistics.fireTime.get() / 1000), FIRE_TIME_KEY);
+			
+			rows.addObject(row);
+		}
+		
+		return RuleProfiler.sortedRows(rows, sortKey, EVALUATION_TIME_KEY);
+	}
+	
+	
+	/**
+	 * Cache statistics per key, sorted in descending order.
+	 * 
+	 * @param sortKey
+	 *            HIT_COUNT_KEY, MISS_COUNT_KEY or HIT_RATIO_KEY
+	 * @return an array of dictionaries
+	 */
+	public NSArray keyReport(String sortKey)
+	{
+		NSMutableArray rows = new NSMutableArray(this.keyStatistics.size());
+		Iterator entryIterator = this.keyStatistics.entrySet().iterator();
+		
+		while (entryIterator.hasNext()) {
+			Map.Entry entry = (Map.Entry) entryIterator.next();
+			KeyStatistics statistics = (KeyStatistics) entry.getValue();
+			long hitCount = statistics.hitCount.get();
+			long missCount = statistics.missCount.get();
+			long lookupCount = hitCount + missCount;
+			NSMutableDictionary row = new NSMutableDictionary();
+			
+			row.setObjectForKey(entry.getKey(), KEY_KEY);
+			row.setObjectForKey(new Long(hitCount), HIT_COUNT_KEY);
+			row.setObjectForKey(new Long(missCount), MISS_COUNT_KEY);
+			row.setObjectForKey(new Double((lookupCount > 0) ? (double) hitCount / lookupCount
+					: 0.0), HIT_RATIO_KEY);
+			
+			rows.addObject(row);
+		}
+		
+		return RuleProfiler.sortedRows(rows, sortKey, MISS_COUNT_KEY);
+	}
+	
+	
+	/**
+	 * Formats both reports as tab separated text.
+	 */
+	public String report(String sortKey)
+	{
+		StringBuffer buffer = new StringBuffer();
+		
+		RuleProfiler.appendRows(buffer, ruleReport(sortKey), new String[] { EVALUATION_TIME_KEY,
+				EVALUATION_COUNT_KEY, MATCH_COUNT_KEY, FIRE_TIME_KEY, FIRE_COUNT_KEY, RULE_KEY });
+		buffer.append("\n");
+		RuleProfiler.appendRows(buffer, keyReport(sortKey), new String[] { HIT_RATIO_KEY,
+				HIT_COUNT_KEY, MISS_COUNT_KEY, KEY_KEY });
+		
+		return buffer.toString();
+	}
+	
+	
+	public void reset()
+	{
+		this.ruleStatistics.clear();
+		this.keyStatistics.clear();
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected RuleStatistics statisticsForRule(Rule rule)
+	{
+		RuleStatistics statistics = (RuleStatistics) this.ruleStatistics.get(rule);
+		
+		if (statistics == null) {
+			RuleStatistics newStatistics = new RuleStatistics();
+			
+			statistics = (RuleStatistics) this.ruleStatistics.putIfAbsent(rule, newStatistics);
+			
+			if (statistics == null) {
+				statistics = newStatistics;
+			}
+		}
+		
+		return statistics;
+	}
+	
+	
+	
+	// Protected class methods
+	
+	/**
+	 * Sorts rows in descending order of the given key. Unknown keys fall back
+	 * to the default key.
+	 */
+	protected static NSArray sortedRows(NSArray rows, String sortKey, String defaultSortKey)
+	{
+		if ((rows.count() == 0) || (sortKey == null)
+				|| !(((NSDictionary) rows.objectAtIndex(0)).objectForKey(sortKey) instanceof Number)) {
+			sortKey = defaultSortKey;
+		}
+		
+		NSArray sortOrderings = new NSArray(EOSortOrdering.sortOrderingWithKey(sortKey,
+				EOSortOrdering.CompareDescending));
+		
+		return EOSortOrdering.sortedArrayUsingKeyOrderArray(rows, sortOrderings);
+	}
+	
+	
+	protected static void appendRows(StringBuffer buffer, NSArray rows, String[] keys)
+	{
+		for (int k = 0; k < keys.length; k++) {
+			buffer.append((k > 0) ? "\t" : "");
+			buffer.append(keys[k]);
+		}
+		
+		buffer.append("\n");
+		
+		int rCount = rows.count();
+		
+		for (int r = 0; r < rCount; r++) {
+			NSDictionary row = (NSDictionary) rows.objectAtIndex(r);
+			
+			for (int k = 0; k < keys.length; k++) {
+				buffer.append((k > 0) ? "\t" : "");
+				buffer.append(row.objectForKey(keys[k]));
+			}
+			
+			buffer.append("\n");
+		}
+	}
+	
+	
+	
+	
+	// Protected inner classes
+	
+	protected static class RuleStatistics
+	{
+		protected AtomicLong	evaluationCount	= new AtomicLong();
+		
+		
+		protected AtomicLong	matchCount		= new AtomicLong();
+		
+		
+		protected AtomicLong	evaluationTime	= new AtomicLong();
+		
+		
+		protected AtomicLong	fireCount		= new AtomicLong();
+		
+		
+		protected AtomicLong	fireTime		= new AtomicLong();
+	}
+	
+	
+	
+	protected static class KeyStatistics
+	{
+		protected AtomicLong	hitCount	= new AtomicLong();
+		
+		
+		protected AtomicLong	missCount	= new AtomicLong();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSKeyValueCoding;
+
+/**
+ * Rule context that may be queried by any number of threads at once.<br/>
+ * 
+ * Each query is answered by a short-lived child of a base context. The child
+ * holds the bindings passed along with the query. The base context is never
+ * modified by this class and must not be modified by its creator once
+ * shared.<br/>
+ * 
+ * Answers are kept in a concurrent cache keyed by the queried key and the
+ * bindings. Only answers for non-volatile keys, with bindings made of
+ * strings, numbers and booleans, are cached.
+ * 
+ * @see DependencyGraph#isVolatile(int)
+ */
+public class SharedRuleContext
+{
+	// Protected class constants
+	
+	/**
+	 * Number of cached answers beyond which the cache is emptied.
+	 */
+	protected static final int	MAXIMUM_CACHE_SIZE	= 1024;
+	
+	
+	
+	// Private instance variables
+	
+	private RuleContext			baseContext;
+	
+	
+	private ConcurrentHashMap	cachedValues;
+	
+	
+	
+	
+	// Constructors
+	
+	/**
+	 * Designated constructor.
+	 * 
+	 * @param baseContext
+	 *            context holding the values common to all queries
+	 */
+	public SharedRuleContext(RuleContext baseContext)
+	{
+		this.baseContext = baseContext;
+		this.cachedValues = new ConcurrentHashMap();
+	}
+	
+	
+	
+	// Public accessors
+	
+	public RuleContext baseContext()
+	{
+		return this.baseContext;
+	}
+	
+	
+	
+	// Public instance methods
+	
+	public Object valueForKey(String key)
+	{
+		return valueForKeyWithBindings(key, null);
+	}
+	
+	
+	/**
+	 * Infers the value of a key in the base context, extended by the given
+	 * bindings.
+	 * 
+	 * @param key
+	 *            the key to infer
+	 * @param bindings
+	 *            values to set before inferring, may be null
+	 * @return the inferred value
+	 */
+	public Object valueForKeyWithBindings(String key, NSDictionary bindings)
+	{
+		CacheKey cacheKey = null;
+		
+		if (isCacheable(key, bindings)) {
+			cacheKey = new CacheKey(key, bindings);
+			
+			Object value = this.cachedValues.get(cacheKey);
+			
+			if (value != null) {
+				return (value != NSKeyValueCoding.NullValue) ? value : null;
+			}
+		}
+		
+		RuleContext localContext = new RuleContext(this.baseContext);
+		
+		localContext.takeValuesFromDictionary(bindings);
+		
+		Object value = localContext.valueForKey(key);
+		
+		if (cacheKey != null) {
+			if (this.cachedValues.size() >= MAXIMUM_CACHE_SIZE) {
+				this.cachedValues.clear();
+			}
+			
+			this.cachedValues.put(cacheKey, (value != null) ? value : NSKeyValueCoding.NullValue);
+		}
+		
+		return value;
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected boolean isCacheable(String key, NSDictionary bindings)
+	{
+		RuleModel model = this.baseContext.model();
+		int keyId = model.keyTable().idForKey(key);
+		
+		if ((keyId < 0) || model.dependencyGraph().isVolatile(keyId)) {
+			return false;
+		}
+		
+		if (bindings != null) {
+			Enumeration values = bindings.objectEnumerator();
+			
+			while (values.hasMoreElements()) {
+				Object value = values.nextElement();
+				
+				if (!((value instanceof String) || (value instanceof Number)
+						|| (value instanceof Boolean) || (value == NSKeyValueCoding.NullValue))) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	
+	
+	// Private inner classes
+	
+	private static class CacheKey
+	{
+		private String			key;
+		
+		
+		private NSDictionary	bindings;
+		
+		
+		private int				hashCode;
+		
+		
+		
+		
+		private CacheKey(String key, NSDictionary bindings)
+		{
+			this.key = key;
+			this.bindings = (bindings != null) ? bindings.immutableClone()
+					: NSDictionary.EmptyDictionary;
+			this.hashCode = key.hashCode();
+			
+			Enumeration bindingKeys = this.bindings.keyEnumerator();
+			
+			while (bindingKeys.hasMoreElements()) {
+				Object bindingKey = bindingKeys.nextElement();
+				
+				this.hashCode += bindingKey.hashCode()
+						^ this.bindings.objectForKey(bindingKey).hashCode();
+			}
+		}
+		
+		
+		public boolean equals(Object object)
+		{
+			if (object instanceof CacheKey) {
+				CacheKey other = (CacheKey) object;
+				
+				return ((this.hashCode == other.hashCode) && this.key.equals(other.key) && this.bindings
+						.equals(other.bindings));
+			}
+			
+			return false;
+		}
+		
+		
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+	}
+}
@@ -114,8 +114,10 @@ public class SimpleAssignment implements Assignment
 		if ((object != null) && (getClass() == object.getClass())) {
 			SimpleAssignment other = (SimpleAssignment) object;
 			
-			return ((this.keyPath.equals(other.keyPath)) && (this.value
-					.equals(other.value)));
+			boolean sameValue = (this.value != null) ? this.value.equals(other.value)
+					: (other.value == null);
+			
+			return ((this.keyPath.equals(other.keyPath)) && sameValue);
 		}
 		
 		return false;
@@ -34,7 +34,10 @@ import com.webobjects.foundation.NSMutableDictionary;
 /**
  * Subclass of RuleContext.<br/>
  * 
- * Keeps tabs on locally used (set or inferred) values.
+ * Keeps tabs on locally used (set or inferred) values.<br/>
+ * 
+ * When the RuleProfiler is enabled, also reports rule evaluations, firings
+ * and cache lookups to it.
  * 
  * @author bernard
  * 
@@ -46,6 +49,9 @@ public class TracingRuleContext extends RuleContext
 	private NSMutableDictionary	localValues;
 	
 	
+	private RuleProfiler		profiler;
+	
+	
 	
 	
 	// Constructors
@@ -81,6 +87,7 @@ public class TracingRuleContext extends RuleContext
 	protected void init()
 	{
 		this.localValues = new NSMutableDictionary();
+		this.profiler = RuleProfiler.sharedInstance();
 	}
 	
 	
@@ -149,4 +156,45 @@ public class TracingRuleContext extends RuleContext
 		
 		super.takeValuesFromDictionary(dictionary);
 	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected boolean ruleMatches(Rule rule)
+	{
+		if (this.profiler == null) {
+			return super.ruleMatches(rule);
+		}
+		
+		long start = System.nanoTime();
+		boolean matches = super.ruleMatches(rule);
+		
+		this.profiler.ruleWasEvaluated(rule, matches, System.nanoTime() - start);
+		
+		return matches;
+	}
+	
+	
+	protected Object fireRule(Rule rule)
+	{
+		if (this.profiler == null) {
+			return super.fireRule(rule);
+		}
+		
+		long start = System.nanoTime();
+		Object value = super.fireRule(rule);
+		
+		this.profiler.ruleWasFired(rule, System.nanoTime() - start);
+		
+		return value;
+	}
+	
+	
+	protected void cachedValueWasLookedUp(String key, boolean found)
+	{
+		if (this.profiler != null) {
+			this.profiler.cachedValueWasLookedUp(key, found);
+		}
+	}
 }
\ No newline at end of file
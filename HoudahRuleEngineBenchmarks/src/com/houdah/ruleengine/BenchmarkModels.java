@@ -0,0 +1,189 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.io.File;
+
+import com.houdah.foundation.utilities.StringUtilities;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Rule models and query workloads used by the benchmarks.<br/>
+ * 
+ * The "agile" model is the real default.agile.d2wmodel file. Its location is
+ * read from the AGILE_MODEL_PROPERTY system property and defaults to its
+ * place in the source tree, relative to this module. The "synthetic" model
+ * has SYNTHETIC_RULE_COUNT generated rules.
+ */
+public class BenchmarkModels
+{
+	// Public class constants
+	
+	public static final String	AGILE					= "agile";
+	
+	
+	public static final String	SYNTHETIC				= "synthetic";
+	
+	
+	public static final String	AGILE_MODEL_PROPERTY	= "HoudahRuleEngineBenchmarks.agileModel";
+	
+	
+	public static final int		SYNTHETIC_RULE_COUNT	= 10000;
+	
+	
+	
+	// Protected class constants
+	
+	protected static final String	DEFAULT_AGILE_MODEL		= "../HoudahAgileComponents/Resources/default.agile.d2wmodel";
+	
+	
+	protected static final long		SEED					= 42;
+	
+	
+	protected static final String[]	AGILE_TASKS				= { "edit", "search", "quickSearch",
+			"list", "detail", "describe", "identify" };
+	
+	
+	protected static final String[]	AGILE_ENTITY_NAMES		= { "Movie", "Studio", "Talent" };
+	
+	
+	protected static final String[]	AGILE_KEYS				= { "controllerClass",
+			"formatterName", "editActionLabel", "fetchSpecificationName", "size",
+			"descriptorClass", "signature" };
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor
+	 */
+	private BenchmarkModels()
+	{
+		throw new IllegalStateException("Do not instantiate this utility class");
+	}
+	
+	
+	
+	// Public class methods
+	
+	public static String agileModelContents()
+	{
+		File file = new File(System.getProperty(AGILE_MODEL_PROPERTY, DEFAULT_AGILE_MODEL));
+		String contents = StringUtilities.stringFromFile(file);
+		
+		if (contents == null) {
+			throw new IllegalStateException("Cannot read " + file.getAbsolutePath());
+		}
+		
+		return contents;
+	}
+	
+	
+	/**
+	 * Freshly decoded or generated rules of a model.
+	 */
+	public static NSArray rules(String modelName)
+	{
+		if (AGILE.equals(modelName)) {
+			return RuleModelUtilities.decode(BenchmarkModels.agileModelContents());
+		} else if (SYNTHETIC.equals(modelName)) {
+			return SyntheticRuleModel.rules(SYNTHETIC_RULE_COUNT, SEED);
+		}
+		
+		throw new IllegalArgumentException("Unknown model: " + modelName);
+	}
+	
+	
+	/**
+	 * The keys queried by the benchmarks.
+	 */
+	public static String[] queryKeys(String modelName)
+	{
+		if (AGILE.equals(modelName)) {
+			return AGILE_KEYS;
+		} else if (SYNTHETIC.equals(modelName)) {
+			String[] keys = new String[SyntheticRuleModel.KEY_COUNT];
+			
+			for (int k = 0; k < keys.length; k++) {
+				keys[k] = SyntheticRuleModel.keyName(k);
+			}
+			
+			return keys;
+		}
+		
+		throw new IllegalArgumentException("Unknown model: " + modelName);
+	}
+	
+	
+	/**
+	 * The task values of a model.
+	 */
+	public static String[] tasks(String modelName)
+	{
+		return (AGILE.equals(modelName)) ? AGILE_TASKS : SyntheticRuleModel.TASKS;
+	}
+	
+	
+	/**
+	 * Distinct sets of context values the benchmarks cycle through.
+	 */
+	public static NSDictionary[] bindings(String modelName)
+	{
+		String[] tasks = BenchmarkModels.tasks(modelName);
+		int entityCount = (AGILE.equals(modelName)) ? AGILE_ENTITY_NAMES.length
+				: SyntheticRuleModel.ENTITY_COUNT;
+		NSDictionary[] bindings = new NSDictionary[tasks.length * entityCount];
+		
+		for (int e = 0; e < entityCount; e++) {
+			String entityName = (AGILE.equals(modelName)) ? AGILE_ENTITY_NAMES[e]
+					: SyntheticRuleModel.entityName(e);
+			
+			for (int t = 0; t < tasks.length; t++) {
+				NSMutableDictionary binding = new NSMutableDictionary();
+				
+				binding.setObjectForKey(tasks[t], "task");
+				binding.setObjectForKey(entityName, "entityName");
+				
+				if (SYNTHETIC.equals(modelName)) {
+					binding.setObjectForKey(SyntheticRuleModel.propertyKey((e + t)
+							% SyntheticRuleModel.PROPERTY_COUNT), "propertyKey");
+				}
+				
+				bindings[e * tasks.length + t] = binding.immutableClone();
+			}
+		}
+		
+		return bindings;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Inference throughput of a single RuleContext.<br/>
+ * 
+ * <ul>
+ * <li>coldInference: a fresh context per query, nothing cached locally
+ * <li>warmInference: the same context queried over and over
+ * <li>invalidationChurn: takeValueForKey() on a context key followed by a
+ * query depending on it
+ * <li>allPossibleValuesUniquedByPriority, valuesWhileTakingSuccessiveValues
+ * and valuesWithSuccessiveBindings: the bulk query methods
+ * </ul>
+ * Build with "mvn -Pbenchmarks package" and run with "java -jar
+ * HoudahRuleEngineBenchmarks/target/benchmarks.jar". Pass
+ * -jvmArgs -DHoudahRuleEngine.inferenceCacheSize=4096 to measure with the
+ * shared inference cache enabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InferenceBenchmark
+{
+	// Public parameters
+	
+	@Param( { BenchmarkModels.AGILE, BenchmarkModels.SYNTHETIC })
+	public String			modelName;
+	
+	
+	
+	// Private instance variables
+	
+	private RuleModel		model;
+	
+	
+	private NSDictionary[]	bindings;
+	
+	
+	private String[]		keys;
+	
+	
+	private NSArray			tasks;
+	
+	
+	private NSArray			taskBindings;
+	
+	
+	private RuleContext		warmContext;
+	
+	
+	private RuleContext		churnContext;
+	
+	
+	private int				counter;
+	
+	
+	
+	
+	// Setup
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.model = new RuleModel(BenchmarkModels.rules(this.modelName));
+		this.bindings = BenchmarkModels.bindings(this.modelName);
+		this.keys = BenchmarkModels.queryKeys(this.modelName);
+		this.tasks = new NSArray(BenchmarkModels.tasks(this.modelName));
+		
+		NSMutableArray taskBindings = new NSMutableArray();
+		
+		for (int t = 0; t < this.tasks.count(); t++) {
+			taskBindings.addObject(new NSDictionary(this.tasks.objectAtIndex(t), "task"));
+		}
+		
+		this.taskBindings = taskBindings;
+		
+		this.warmContext = new RuleContext(this.model);
+		this.warmContext.takeValuesFromDictionary(this.bindings[0]);
+		
+		this.churnContext = new RuleContext(this.model);
+		this.churnContext.takeValuesFromDictionary(this.bindings[0]);
+		
+		this.counter = 0;
+	}
+	
+	
+	
+	// Benchmarks
+	
+	@Benchmark
+	public Object coldInference()
+	{
+		RuleContext context = new RuleContext(this.model);
+		
+		context.takeValuesFromDictionary(nextBindings());
+		
+		return context.valueForKey(nextKey());
+	}
+	
+	
+	@Benchmark
+	public Object warmInference()
+	{
+		return this.warmContext.valueForKey(nextKey());
+	}
+	
+	
+	@Benchmark
+	public Object invalidationChurn()
+	{
+		this.churnContext.takeValueForKey(nextBindings().objectForKey("task"), "task");
+		
+		return this.churnContext.valueForKey(nextKey());
+	}
+	
+	
+	@Benchmark
+	public NSArray allPossibleValuesUniquedByPriority()
+	{
+		return this.warmContext.allPossibleValuesUniquedByPriorityForKey(nextKey());
+	}
+	
+	
+	@Benchmark
+	public NSArray valuesWhileTakingSuccessiveValues()
+	{
+		return this.churnContext.valuesForKeyWhileTakingSuccessiveValuesForKey(nextKey(),
+				this.tasks, "task");
+	}
+	
+	
+	@Benchmark
+	public NSArray valuesWithSuccessiveBindings()
+	{
+		return this.churnContext.valuesForKeyWithSuccessiveBindings(nextKey(), this.taskBindings);
+	}
+	
+	
+	
+	// Protected instance methods
+	
+	protected NSDictionary nextBindings()
+	{
+		return this.bindings[(this.counter++ & Integer.MAX_VALUE) % this.bindings.length];
+	}
+	
+	
+	protected String nextKey()
+	{
+		return this.keys[(this.counter++ & Integer.MAX_VALUE) % this.keys.length];
+	}
+}
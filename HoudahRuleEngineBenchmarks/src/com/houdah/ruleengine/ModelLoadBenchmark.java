@@ -0,0 +1,112 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.webobjects.foundation.NSArray;
+
+/**
+ * Time taken to turn model files into a ready to use RuleModel.<br/>
+ * 
+ * Rules are decoded afresh for each model build, as rules cache their
+ * compiled left-hand side. The cost of building the RuleModel alone is the
+ * difference between the load and decode figures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelLoadBenchmark
+{
+	// Private instance variables
+	
+	private String	agileContents;
+	
+	
+	private String	syntheticContents;
+	
+	
+	
+	
+	// Setup
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.agileContents = BenchmarkModels.agileModelContents();
+		this.syntheticContents = RuleModelUtilities.encode(BenchmarkModels
+				.rules(BenchmarkModels.SYNTHETIC));
+	}
+	
+	
+	
+	// Benchmarks
+	
+	@Benchmark
+	public NSArray decodeAgileModel()
+	{
+		return RuleModelUtilities.decode(this.agileContents);
+	}
+	
+	
+	@Benchmark
+	public RuleModel loadAgileModel()
+	{
+		return new RuleModel(RuleModelUtilities.decode(this.agileContents));
+	}
+	
+	
+	@Benchmark
+	public NSArray decodeSyntheticModel()
+	{
+		return RuleModelUtilities.decode(this.syntheticContents);
+	}
+	
+	
+	@Benchmark
+	public RuleModel loadSyntheticModel()
+	{
+		return new RuleModel(RuleModelUtilities.decode(this.syntheticContents));
+	}
+}
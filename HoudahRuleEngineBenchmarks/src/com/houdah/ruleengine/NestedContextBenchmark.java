@@ -0,0 +1,125 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.webobjects.foundation.NSDictionary;
+
+/**
+ * Cost of inference in contexts nested below a chain of parent contexts.<br/>
+ * 
+ * The entity name, and the property key of synthetic models, are stored in
+ * the root of a chain of the given depth. Each query creates a leaf context below the chain, sets the task and infers a
+ * key, as the agile components do for each page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestedContextBenchmark
+{
+	// Public parameters
+	
+	@Param( { BenchmarkModels.AGILE, BenchmarkModels.SYNTHETIC })
+	public String			modelName;
+	
+	
+	@Param( { "1", "4", "16" })
+	public int				depth;
+	
+	
+	
+	// Private instance variables
+	
+	private NSDictionary[]	bindings;
+	
+	
+	private String[]		keys;
+	
+	
+	private RuleContext		deepestContext;
+	
+	
+	private int				counter;
+	
+	
+	
+	
+	// Setup
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		RuleModel model = new RuleModel(BenchmarkModels.rules(this.modelName));
+		
+		this.bindings = BenchmarkModels.bindings(this.modelName);
+		this.keys = BenchmarkModels.queryKeys(this.modelName);
+		this.deepestContext = new RuleContext(model);
+		this.deepestContext.takeValuesFromDictionary(this.bindings[0]);
+		this.deepestContext.takeValueForKey(null, "task");
+		
+		for (int d = 1; d < this.depth; d++) {
+			this.deepestContext = new RuleContext(this.deepestContext);
+		}
+		
+		this.counter = 0;
+	}
+	
+	
+	
+	// Benchmarks
+	
+	@Benchmark
+	public Object nestedInference()
+	{
+		RuleContext context = new RuleContext(this.deepestContext);
+		int index = this.counter++ & Integer.MAX_VALUE;
+		
+		context.takeValueForKey(this.bindings[index % this.bindings.length].objectForKey("task"),
+				"task");
+		
+		return context.valueForKey(this.keys[index % this.keys.length]);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Modified MIT License
+ * 
+ * Copyright (c) 2006-2007 Houdah Software s.à r.l.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * Except as contained in this notice, the name(s) of the above copyright holders
+ * shall not be used in advertising or otherwise to promote the sale, use or other 
+ * dealings in this Software without prior written authorization.
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+**/
+
+package com.houdah.ruleengine;
+
+import java.util.Random;
+
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * Generator for large rule models shaped like the agile models.<br/>
+ * 
+ * Rules assign one of KEY_COUNT keys depending on the task, the entity name
+ * and the property key. About one rule in ten derives its value from another,
+ * lower numbered, key through a KeyValueAssignment. Generation is
+ * deterministic for a given seed.
+ */
+public class SyntheticRuleModel
+{
+	// Public class constants
+	
+	public static final String[]	TASKS			= { "list", "edit", "search", "detail", "describe" };
+	
+	
+	public static final int			ENTITY_COUNT	= 50;
+	
+	
+	public static final int			PROPERTY_COUNT	= 20;
+	
+	
+	public static final int			KEY_COUNT		= 40;
+	
+	
+	
+	
+	// Constructor
+	
+	/**
+	 * Designated constructor
+	 */
+	private SyntheticRuleModel()
+	{
+		throw new IllegalStateException("Do not instantiate this utility class");
+	}
+	
+	
+	
+	// Public class methods
+	
+	public static NSArray rules(int ruleCount, long seed)
+	{
+		Random random = new Random(seed);
+		NSMutableArray rules = new NSMutableArray(ruleCount);
+		
+		for (int r = 0; r < ruleCount; r++) {
+			int keyIndex = random.nextInt(KEY_COUNT);
+			NSMutableArray conditions = new NSMutableArray();
+			
+			if (random.nextInt(4) > 0) {
+				conditions.addObject(SyntheticRuleModel.equality("task",
+						TASKS[random.nextInt(TASKS.length)]));
+			}
+			
+			if (random.nextInt(2) > 0) {
+				conditions.addObject(SyntheticRuleModel.equality("entityName", SyntheticRuleModel
+						.entityName(random.nextInt(ENTITY_COUNT))));
+			}
+			
+			if ((random.nextInt(3) == 0) || (conditions.count() == 0)) {
+				conditions.addObject(SyntheticRuleModel.equality("propertyKey",
+						SyntheticRuleModel.propertyKey(random.nextInt(PROPERTY_COUNT))));
+			}
+			
+			EOQualifier lhs = (conditions.count() == 1) ? (EOQualifier) conditions.objectAtIndex(0)
+					: new EOAndQualifier(conditions);
+			Assignment rhs;
+			
+			if ((keyIndex > 0) && (random.nextInt(10) == 0)) {
+				rhs = new KeyValueAssignment(SyntheticRuleModel.keyName(keyIndex),
+						SyntheticRuleModel.keyName(random.nextInt(keyIndex)));
+			} else {
+				rhs = new SimpleAssignment(SyntheticRuleModel.keyName(keyIndex), "value" + r);
+			}
+			
+			rules.addObject(new Rule(lhs, rhs, random.nextInt(4)));
+		}
+		
+		return rules;
+	}
+	
+	
+	public static String keyName(int index)
+	{
+		return "key" + index;
+	}
+	
+	
+	public static String entityName(int index)
+	{
+		return "Entity" + index;
+	}
+	
+	
+	public static String propertyKey(int index)
+	{
+		return "property" + index;
+	}
+	
+	
+	
+	// Protected class methods
+	
+	protected static EOQualifier equality(String key, String value)
+	{
+		return new EOKeyValueQualifier(key, EOQualifier.QualifierOperatorEqual, value);
+	}
+}